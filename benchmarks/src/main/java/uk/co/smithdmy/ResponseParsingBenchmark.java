@@ -0,0 +1,152 @@
+package uk.co.smithdmy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSession;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+  * Measures the cost of turning a response body of movie rows into something the caller can use, for the
+  * buffered JSONObject API response, the streaming row reader and typed binding.
+  */
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (value = 1, jvmArgsAppend = "-Xmx2g")
+@State (Scope.Benchmark)
+public class ResponseParsingBenchmark
+{
+    //--------------------------------------------------------------
+    
+    public record Movie (int id, String title, int runningMins) {}
+    
+    //--------------------------------------------------------------
+    
+    @Param ({"10", "1000", "100000"})
+    public int rows;
+    
+    private PostgrestWrapper postgrestWrapper;
+    private HttpResponse<String> httpResponse;
+    private byte[] body;
+    
+    //--------------------------------------------------------------
+    
+    // Builds a response body in the same shape as the PostgrestStub /movies/ response
+    static String getMoviesBody (int rows)
+    {
+        JSONArray movies = new JSONArray ();
+        
+        for (int idx = 0; idx < rows; idx++)
+        {
+            movies.put
+                (   new JSONObject ()
+                        .put ("id", idx * 10)
+                        .put ("title", "Movie number " + idx)
+                        .put ("runningMins", 90 + idx % 90)
+                );
+        }
+        
+        return movies.toString ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    // A received response, as passed to the wrapper's response parsing
+    private static HttpResponse<String> getHttpResponse
+        (   String  body,
+            int     rows
+        )
+    {
+        HttpHeaders httpHeaders =
+            HttpHeaders.of
+                (   Map.of
+                        (   "Content-Range",    List.of ("0-" + (rows - 1) + "/" + rows),
+                            "Content-Location", List.of ("/movies/")
+                        ),
+                    (name, value) -> true
+                );
+        
+        return
+            new HttpResponse<String> ()
+            {
+                public int statusCode () { return 200; }
+                public HttpRequest request () { return null; }
+                public Optional<HttpResponse<String>> previousResponse () { return Optional.empty (); }
+                public HttpHeaders headers () { return httpHeaders; }
+                public String body () { return body; }
+                public Optional<SSLSession> sslSession () { return Optional.empty (); }
+                public URI uri () { return URI.create ("http://localhost:8001/movies/"); }
+                public HttpClient.Version version () { return HttpClient.Version.HTTP_1_1; }
+            };
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Setup
+    public void setup ()
+    {
+        String moviesBody = getMoviesBody (rows);
+        
+        postgrestWrapper = new PostgrestWrapperBuilder ("http://localhost:8001/", "movies").build ();
+        httpResponse = getHttpResponse (moviesBody, rows);
+        body = moviesBody.getBytes (StandardCharsets.UTF_8);
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Benchmark
+    public JSONObject parseApiResponse ()
+    {
+        return postgrestWrapper.parseHttpResponse (httpResponse);
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Benchmark
+    public void streamRows (Blackhole blackhole) throws IOException
+    {
+        try (var rowReader = new PostgrestRowReader (new ByteArrayInputStream (body)))
+        {
+            while (rowReader.hasNext ())
+            {
+                blackhole.consume (rowReader.next ());
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Benchmark
+    public List<Movie> bindTypedRows ()
+    {
+        return PostgrestResultMapper.readList (new ByteArrayInputStream (body), Movie.class);
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,240 @@
+package uk.co.smithdmy;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lombok.Getter;
+
+import org.json.JSONObject;
+
+/**
+  * Rate limits failed logins per email address and per client address, so that a credential-stuffing
+  * burst is turned away before reaching the upstream, without a thread being held for any of it. Opt-in:
+  * set one with PostgrestWrapper.setAuthenticationThrottle (), which shares it across the JVM.
+  *
+  * Each key has a token bucket of maxFailures failed logins, refilled at one per refillInterval; once a
+  * key's bucket is empty, logins for it are refused until a token is refilled. Buckets are kept as the
+  * time they will next be full (the generic cell rate algorithm), one long per bucket, updated lock-free.
+  *
+  * Memory is bounded by hashing keys onto a fixed number of stripes, in separate tables for emails and
+  * client addresses. As in a count-min sketch, each key is counted in HASHES stripes and is throttled only
+  * if all of them are, so a user is locked out by colliding with other keys only if every one of their
+  * stripes is shared with failing keys. The hashes are seeded per throttle, so that colliding keys cannot
+  * be worked out in advance. A spray of failures over enough distinct emails to exhaust most stripes can
+  * still throttle other users - size the tables for the expected number of failing keys.
+  */
+public class AuthenticationThrottle
+{
+    //--------------------------------------------------------------
+    
+    // The number of stripes each key is counted in
+    private static final int HASHES = 3;
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final int maxFailures;
+    
+    @Getter
+    private final Duration refillInterval;
+    
+    // The time, relative to originNanos, when each stripe's bucket will be full again
+    private final AtomicLongArray emailFullAtNanos;
+    private final AtomicLongArray clientFullAtNanos;
+    
+    // Times are kept relative to this, as System.nanoTime () may be negative
+    private final long originNanos = System.nanoTime ();
+    
+    private final long hashSeed = ThreadLocalRandom.current ().nextLong ();
+    
+    //--------------------------------------------------------------
+    
+    private static String normaliseEmail (String email) { return email.trim ().toLowerCase (Locale.ROOT); }
+    
+    //--------------------------------------------------------------
+    
+    // A seeded 64-bit hash of the key (FNV-1a, finished with MurmurHash3's mix)
+    private long hash (String key)
+    {
+        long hash = this.hashSeed;
+        
+        for (int index = 0; index < key.length (); index++)
+        {
+            hash = (hash ^ key.charAt (index)) * 0x100000001B3L;
+        }
+        
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        
+        return hash ^ (hash >>> 33);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the key's stripes, derived from the two halves of its hash
+    private int[] getStripes
+        (   String          key,
+            AtomicLongArray fullAtNanos
+        )
+    {
+        long hash = this.hash (key);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32) | 1;
+        
+        int stripes[] = new int[HASHES];
+        
+        for (int index = 0; index < HASHES; index++)
+        {
+            stripes[index] = Math.floorMod (hash1 + index * hash2, fullAtNanos.length ());
+        }
+        
+        return stripes;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns how long until the key's bucket has a token again, or 0 if it has one now - the least wait of its stripes
+    private long getWaitNanos
+        (   String          key,
+            AtomicLongArray fullAtNanos,
+            long            nowNanos
+        )
+    {
+        long allowanceNanos = (this.maxFailures - 1) * this.refillInterval.toNanos ();
+        long waitNanos = Long.MAX_VALUE;
+        
+        for (int stripe : this.getStripes (key, fullAtNanos))
+        {
+            waitNanos = Math.min (waitNanos, fullAtNanos.get (stripe) - nowNanos - allowanceNanos);
+        }
+        
+        return Math.max (0, waitNanos);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Takes a token from each of the key's stripes
+    private void recordFailure
+        (   String          key,
+            AtomicLongArray fullAtNanos,
+            long            nowNanos
+        )
+    {
+        long refillNanos = this.refillInterval.toNanos ();
+        
+        for (int stripe : this.getStripes (key, fullAtNanos))
+        {
+            fullAtNanos.accumulateAndGet (stripe, nowNanos, (fullAt, now) -> Math.max (fullAt, now) + refillNanos);
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns how long to refuse logins for the email and client address, or Duration.ZERO if a login may
+      * be attempted now.
+      * 
+      * @param  clientAddress  The client's address, or null if not known
+      */
+    public Duration getRetryAfter
+        (   String  email,
+            String  clientAddress
+        )
+    {
+        long nowNanos = System.nanoTime () - this.originNanos;
+        long waitNanos = this.getWaitNanos (normaliseEmail (email), this.emailFullAtNanos, nowNanos);
+        
+        if (clientAddress != null)
+        {
+            waitNanos = Math.max (waitNanos, this.getWaitNanos (clientAddress, this.clientFullAtNanos, nowNanos));
+        }
+        
+        return Duration.ofNanos (waitNanos);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Records a failed login for the email and client address.
+      * 
+      * @param  clientAddress  The client's address, or null if not known
+      */
+    public void recordFailure
+        (   String  email,
+            String  clientAddress
+        )
+    {
+        long nowNanos = System.nanoTime () - this.originNanos;
+        
+        this.recordFailure (normaliseEmail (email), this.emailFullAtNanos, nowNanos);
+        
+        if (clientAddress != null)
+        {
+            this.recordFailure (clientAddress, this.clientFullAtNanos, nowNanos);
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    private int getThrottledStripes (AtomicLongArray fullAtNanos)
+    {
+        long nowNanos = System.nanoTime () - this.originNanos;
+        int throttledStripes = 0;
+        
+        for (int stripe = 0; stripe < fullAtNanos.length (); stripe++)
+        {
+            if (fullAtNanos.get (stripe) - nowNanos > (this.maxFailures - 1) * this.refillInterval.toNanos ())
+            {
+                throttledStripes++;
+            }
+        }
+        
+        return throttledStripes;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public JSONObject getStatistics ()
+    {
+        return
+            new JSONObject ()
+                .put ("stripes", this.emailFullAtNanos.length ())
+                .put ("throttled_email_stripes", this.getThrottledStripes (this.emailFullAtNanos))
+                .put ("throttled_client_stripes", this.getThrottledStripes (this.clientFullAtNanos));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public AuthenticationThrottle
+        (   int         maxFailures,
+            Duration    refillInterval,
+            int         stripes
+        )
+    {
+        if (maxFailures < 1 || stripes < HASHES)
+        {
+            throw new IllegalArgumentException ("Requires maxFailures >= 1 and stripes >= " + HASHES);
+        }
+        
+        this.maxFailures = maxFailures;
+        this.refillInterval = refillInterval;
+        this.emailFullAtNanos = new AtomicLongArray (stripes);
+        this.clientFullAtNanos = new AtomicLongArray (stripes);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Allows 10 failed logins per key, refilled at one every 6 seconds - after which a key gets 10 logins
+      * a minute - over 16384 stripes for each of emails and client addresses (256 KB in all).
+      */
+    public AuthenticationThrottle ()
+    {
+        this (10, Duration.ofSeconds (6), 16384);
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,300 @@
+package uk.co.smithdmy;
+
+import java.time.Duration;
+import java.util.Set;
+
+import lombok.Getter;
+
+import org.json.JSONObject;
+
+/**
+  * Stops requests being sent to an upstream that is failing, so that they fail fast with a 503 rather than
+  * each waiting for the upstream to fail in turn.
+  *
+  * While CLOSED, the outcomes of the last windowSize requests are recorded. Once at least minimumRequests
+  * have been recorded and the proportion that failed - no response at all, or one of failureStatusCodes -
+  * reaches failureRateThreshold, the breaker OPENs and rejects every request. After openDuration it goes
+  * HALF_OPEN and lets probe requests through, one at a time: the breaker CLOSEs again once halfOpenProbes
+  * probes have succeeded in a row, and reOPENs on the first that fails.
+  *
+  * Each request is admitted in the breaker's current generation, which changes with every change of state.
+  * Outcomes reported for an earlier generation - e.g. a slow request sent while CLOSED that completes after
+  * the breaker has opened and gone HALF_OPEN - are ignored, so only probes decide whether to close again.
+  */
+public class CircuitBreaker
+{
+    //--------------------------------------------------------------
+    
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    };
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final double failureRateThreshold;
+    
+    @Getter
+    private final int minimumRequests;
+    
+    @Getter
+    private final int windowSize;
+    
+    @Getter
+    private final Duration openDuration;
+    
+    @Getter
+    private final int halfOpenProbes;
+    
+    @Getter
+    private final Set<Integer> failureStatusCodes;
+    
+    private State state = State.CLOSED;
+    
+    // Ring buffer of the outcomes of the most recent requests while closed
+    private final boolean[] failureWindow;
+    private int windowPosition = 0;
+    private int windowCount = 0;
+    private int windowFailures = 0;
+    
+    // Changes with every change of state, so that outcomes of requests admitted before it can be ignored
+    private long generation = 0;
+    
+    private long openedAtNanos;
+    private boolean probeInFlight = false;
+    private int successfulProbes = 0;
+    
+    private long rejectedRequests = 0;
+    private long timesOpened = 0;
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the generation a request is admitted in, or -1 if it may not be sent now. A request that is
+      * admitted must report its outcome with recordResult (), or recordNotSent () if it is not sent after
+      * all, passing the generation it was admitted in.
+      */
+    public synchronized long tryAcquire ()
+    {
+        if (this.state == State.OPEN)
+        {
+            if (System.nanoTime () - this.openedAtNanos < this.openDuration.toNanos ())
+            {
+                this.rejectedRequests++;
+                
+                return -1;
+            }
+            
+            this.state = State.HALF_OPEN;
+            this.generation++;
+            this.successfulProbes = 0;
+        }
+        
+        if (this.state == State.HALF_OPEN)
+        {
+            if (this.probeInFlight)
+            {
+                this.rejectedRequests++;
+                
+                return -1;
+            }
+            
+            this.probeInFlight = true;
+        }
+        
+        return this.generation;
+    }
+    
+    //--------------------------------------------------------------
+    
+    private boolean isFailure
+        (   int         statusCode,
+            Throwable   exception
+        )
+    {
+        return (exception != null || this.failureStatusCodes.contains (statusCode));
+    }
+    
+    //--------------------------------------------------------------
+    
+    private void open ()
+    {
+        this.state = State.OPEN;
+        this.generation++;
+        this.openedAtNanos = System.nanoTime ();
+        this.probeInFlight = false;
+        this.timesOpened++;
+    }
+    
+    //--------------------------------------------------------------
+    
+    private void close ()
+    {
+        this.state = State.CLOSED;
+        this.generation++;
+        this.probeInFlight = false;
+        this.windowPosition = 0;
+        this.windowCount = 0;
+        this.windowFailures = 0;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Records the outcome of a request allowed by tryAcquire ().
+      *
+      * @param  generation  The generation returned by tryAcquire ()
+      * @param  statusCode  The response status code, or 0 if no response was received
+      * @param  exception   The failure, or null if a response was received
+      */
+    public synchronized void recordResult
+        (   long        generation,
+            int         statusCode,
+            Throwable   exception
+        )
+    {
+        // Admitted before the last change of state, so the outcome no longer applies
+        if (generation != this.generation)
+        {
+            return;
+        }
+        
+        boolean failure = this.isFailure (statusCode, exception);
+        
+        switch (this.state)
+        {
+            case HALF_OPEN:
+            {
+                if (failure)
+                {
+                    this.open ();
+                }
+                else if (++this.successfulProbes >= this.halfOpenProbes)
+                {
+                    this.close ();
+                }
+                else
+                {
+                    this.probeInFlight = false;
+                }
+                
+                break;
+            }
+            case CLOSED:
+            {
+                if (this.windowCount == this.windowSize)
+                {
+                    this.windowFailures -= (this.failureWindow[this.windowPosition] ? 1 : 0);
+                }
+                else
+                {
+                    this.windowCount++;
+                }
+                
+                this.failureWindow[this.windowPosition] = failure;
+                this.windowFailures += (failure ? 1 : 0);
+                this.windowPosition = (this.windowPosition + 1) % this.windowSize;
+                
+                if  (   this.windowCount >= this.minimumRequests
+                        &&
+                        this.windowFailures >= this.failureRateThreshold * this.windowCount
+                    )
+                {
+                    this.open ();
+                }
+                
+                break;
+            }
+            default: // Not reached, as no request is admitted while open
+            {
+                break;
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Releases a request allowed by tryAcquire () that was not sent, e.g. because it was shed
+    public synchronized void recordNotSent (long generation)
+    {
+        if (this.state == State.HALF_OPEN && generation == this.generation)
+        {
+            this.probeInFlight = false;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    public synchronized State getState ()
+    {
+        // Report the breaker as half-open once it is ready to probe, even before a probe has been sent
+        if (this.state == State.OPEN && System.nanoTime () - this.openedAtNanos >= this.openDuration.toNanos ())
+        {
+            return State.HALF_OPEN;
+        }
+        
+        return this.state;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public synchronized long getRejectedRequests () { return this.rejectedRequests; }
+    
+    public synchronized long getTimesOpened () { return this.timesOpened; }
+    
+    //--------------------------------------------------------------
+    
+    public synchronized JSONObject getStatistics ()
+    {
+        return
+            new JSONObject ()
+                .put ("state", this.getState ().toString ())
+                .put ("window_requests", this.windowCount)
+                .put ("window_failures", this.windowFailures)
+                .put ("rejected", this.rejectedRequests)
+                .put ("times_opened", this.timesOpened);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public CircuitBreaker
+        (   double          failureRateThreshold,
+            int             minimumRequests,
+            int             windowSize,
+            Duration        openDuration,
+            int             halfOpenProbes,
+            Set<Integer>    failureStatusCodes
+        )
+    {
+        if (minimumRequests < 1 || minimumRequests > windowSize || halfOpenProbes < 1)
+        {
+            throw new IllegalArgumentException ("Requires 1 <= minimumRequests <= windowSize and halfOpenProbes >= 1");
+        }
+        
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumRequests = minimumRequests;
+        this.windowSize = windowSize;
+        this.openDuration = openDuration;
+        this.halfOpenProbes = halfOpenProbes;
+        this.failureStatusCodes = failureStatusCodes;
+        
+        this.failureWindow = new boolean[windowSize];
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Opens when half of the last 20 requests (and at least 10) have failed to connect or returned 502, 503
+      * or 504, for 10 seconds, then closes after 3 successful probes.
+      */
+    public CircuitBreaker ()
+    {
+        this (0.5, 10, 20, Duration.ofSeconds (10), 3, Set.of (502, 503, 504));
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,90 @@
+package uk.co.smithdmy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+  * Holds the circuit breakers shared by wrappers, keyed by base URL - or by base URL and resource, for a
+  * breaker that trips for one failing resource without affecting the rest of the upstream. Breakers are
+  * created on first use, from the breaker factory, unless one has been registered first.
+  */
+public class CircuitBreakerRegistry
+{
+    //--------------------------------------------------------------
+    
+    @Getter
+    private static final CircuitBreakerRegistry instance = new CircuitBreakerRegistry ();
+    
+    //--------------------------------------------------------------
+    
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<> ();
+    
+    // Creates the breakers not registered explicitly - only affects breakers not yet created
+    @Getter
+    @Setter
+    private volatile Supplier<CircuitBreaker> circuitBreakerFactory = CircuitBreaker::new;
+    
+    //--------------------------------------------------------------
+    
+    // Base URLs are keyed with a trailing /, as in HttpClientRegistry
+    private static String getKey
+        (   String  baseUrl,
+            String  resource
+        )
+    {
+        return
+                (baseUrl.endsWith ("/") ? baseUrl : baseUrl + "/")
+            +   (resource == null ? "" : resource.replaceAll ("^/+|/+$", ""));
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Registers the breaker for the upstream, or for one resource of the upstream if resource is not null.
+      */
+    public void register
+        (   String          baseUrl,
+            String          resource,
+            CircuitBreaker  circuitBreaker
+        )
+    {
+        this.circuitBreakers.put (getKey (baseUrl, resource), circuitBreaker);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void unregister
+        (   String  baseUrl,
+            String  resource
+        )
+    {
+        this.circuitBreakers.remove (getKey (baseUrl, resource));
+    }
+    
+    //--------------------------------------------------------------
+    
+    public CircuitBreaker getCircuitBreaker (String baseUrl)
+    {
+        return this.getCircuitBreaker (baseUrl, null);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public CircuitBreaker getCircuitBreaker
+        (   String  baseUrl,
+            String  resource
+        )
+    {
+        return this.circuitBreakers.computeIfAbsent (getKey (baseUrl, resource), key -> this.circuitBreakerFactory.get ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    private CircuitBreakerRegistry () {} // Hides the constructor
+    
+    //--------------------------------------------------------------
+}
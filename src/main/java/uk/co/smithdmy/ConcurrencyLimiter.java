@@ -0,0 +1,313 @@
+package uk.co.smithdmy;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+
+import org.json.JSONObject;
+
+/**
+  * Limits the number of requests in flight at once, queueing (up to maxQueueLength, for up to maxQueueWait)
+  * or rejecting requests beyond the limit with a PostgrestRejectedException.
+  *
+  * The limit adapts to the upstream by AIMD (additive increase, multiplicative decrease): it grows by about
+  * one for every limit's worth of successful requests while the limit is in use, and is cut by 10% whenever
+  * a request times out, fails, is throttled (429, 503 or 504), or is slower than the latency threshold if one
+  * is set. The limit is cut at most once per round trip: requests sent before the last cut do not cut it
+  * again, so a burst of slow responses counts as one signal. Share one limiter between every wrapper for an
+  * upstream. A fixed limiter - where the minimum and maximum limits are equal - acts as a bulkhead, e.g. to
+  * stop one resource using every connection.
+  */
+public class ConcurrencyLimiter
+{
+    //--------------------------------------------------------------
+    
+    private static final double BACKOFF_RATIO = 0.9;
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Permission to send one request, which must be released exactly once when the request completes.
+      */
+    public static class Permit
+    {
+        private final ConcurrencyLimiter concurrencyLimiter;
+        private final long acquiredNanos = System.nanoTime ();
+        
+        private Permit (ConcurrencyLimiter concurrencyLimiter)
+        {
+            this.concurrencyLimiter = concurrencyLimiter;
+        }
+        
+        /**
+          * @param  statusCode  The response status code, or 0 if the request failed
+          * @param  exception   The failure, or null if a response was received
+          */
+        public void release
+            (   int         statusCode,
+                Throwable   exception
+            )
+        {
+            if (this.concurrencyLimiter != null)
+            {
+                this.concurrencyLimiter.release (this.acquiredNanos, statusCode, exception);
+            }
+        }
+    };
+    
+    // For wrappers without a limiter
+    private static final CompletableFuture<Permit> UNLIMITED_PERMIT = CompletableFuture.completedFuture (new Permit (null));
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final int minLimit;
+    
+    @Getter
+    private final int maxLimit;
+    
+    @Getter
+    private final int maxQueueLength;
+    
+    @Getter
+    private final Duration maxQueueWait;
+    
+    // Requests slower than this reduce the limit as if they had failed - if null, only failures reduce it
+    @Getter
+    private Duration latencyThreshold;
+    
+    private double limit;
+    private int inFlightRequests = 0;
+    
+    // When the limit was last cut - overloaded requests sent before this were already accounted for
+    private long lastBackoffNanos = System.nanoTime ();
+    
+    private final Deque<CompletableFuture<Permit>> queuedRequests = new ArrayDeque<> ();
+    
+    private long acceptedRequests = 0;
+    private long queuedRequestCount = 0;
+    private long rejectedRequests = 0;
+    
+    //--------------------------------------------------------------
+    
+    public ConcurrencyLimiter latencyThreshold (Duration latencyThreshold)
+    {
+        this.latencyThreshold = latencyThreshold;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns a permit from the limiter - or straight away if there is no limiter
+    static CompletableFuture<Permit> acquire (ConcurrencyLimiter concurrencyLimiter)
+    {
+        return (concurrencyLimiter == null ? UNLIMITED_PERMIT : concurrencyLimiter.acquire ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns a permit straight away if the limit has not been reached, otherwise queues for one. The future
+      * fails with a PostgrestRejectedException if the queue is full, or no permit is free within maxQueueWait.
+      */
+    public CompletableFuture<Permit> acquire ()
+    {
+        CompletableFuture<Permit> queuedRequest;
+        
+        synchronized (this)
+        {
+            if (this.inFlightRequests < (int) this.limit)
+            {
+                this.inFlightRequests++;
+                this.acceptedRequests++;
+                
+                return CompletableFuture.completedFuture (new Permit (this));
+            }
+            
+            if (this.queuedRequests.size () >= this.maxQueueLength)
+            {
+                this.rejectedRequests++;
+                
+                return
+                    CompletableFuture.failedFuture
+                        (   new PostgrestRejectedException
+                                ("Concurrency limit of " + (int) this.limit + " reached with " + this.queuedRequests.size () + " requests queued")
+                        );
+            }
+            
+            queuedRequest = new CompletableFuture<> ();
+            
+            this.queuedRequests.add (queuedRequest);
+            this.queuedRequestCount++;
+        }
+        
+        // Reject the request if it is still queued once the wait is over
+        CompletableFuture
+            .delayedExecutor (this.maxQueueWait.toNanos (), TimeUnit.NANOSECONDS)
+            .execute
+                (   () ->
+                    {
+                        boolean expired;
+                        
+                        synchronized (this)
+                        {
+                            expired = this.queuedRequests.remove (queuedRequest);
+                            
+                            if (expired)
+                            {
+                                this.rejectedRequests++;
+                            }
+                        }
+                        
+                        if (expired)
+                        {
+                            queuedRequest.completeExceptionally
+                                (   new PostgrestRejectedException
+                                        ("No concurrency permit was free within " + this.maxQueueWait.toMillis () + " ms")
+                                );
+                        }
+                    }
+                );
+        
+        return queuedRequest;
+    }
+    
+    //--------------------------------------------------------------
+    
+    private boolean isOverloaded
+        (   long        latencyNanos,
+            int         statusCode,
+            Throwable   exception
+        )
+    {
+        return
+            (   exception != null
+                ||
+                statusCode == 429
+                ||
+                statusCode == 503
+                ||
+                statusCode == 504
+                ||
+                (   this.latencyThreshold != null
+                    &&
+                    latencyNanos > this.latencyThreshold.toNanos ()
+                )
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    private void release
+        (   long        acquiredNanos,
+            int         statusCode,
+            Throwable   exception
+        )
+    {
+        List<CompletableFuture<Permit>> dequeuedRequests = new ArrayList<> ();
+        long nowNanos = System.nanoTime ();
+        
+        synchronized (this)
+        {
+            // Only grow the limit while it is being used, or it would grow without bound when idle
+            if (this.isOverloaded (nowNanos - acquiredNanos, statusCode, exception))
+            {
+                if (acquiredNanos - this.lastBackoffNanos >= 0)
+                {
+                    this.limit = Math.max (this.minLimit, this.limit * BACKOFF_RATIO);
+                    this.lastBackoffNanos = nowNanos;
+                }
+            }
+            else if (this.inFlightRequests * 2 >= this.limit)
+            {
+                this.limit = Math.min (this.maxLimit, this.limit + 1 / this.limit);
+            }
+            
+            this.inFlightRequests--;
+            
+            while (this.inFlightRequests < (int) this.limit && !this.queuedRequests.isEmpty ())
+            {
+                dequeuedRequests.add (this.queuedRequests.poll ());
+                
+                this.inFlightRequests++;
+                this.acceptedRequests++;
+            }
+        }
+        
+        // Completed outside the lock, as completing runs the requests' dependent stages
+        for (CompletableFuture<Permit> dequeuedRequest : dequeuedRequests)
+        {
+            dequeuedRequest.complete (new Permit (this));
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    public synchronized int getLimit () { return (int) this.limit; }
+    
+    public synchronized int getInFlightRequests () { return this.inFlightRequests; }
+    
+    public synchronized int getQueueLength () { return this.queuedRequests.size (); }
+    
+    public synchronized long getRejectedRequests () { return this.rejectedRequests; }
+    
+    //--------------------------------------------------------------
+    
+    public synchronized JSONObject getStatistics ()
+    {
+        return
+            new JSONObject ()
+                .put ("limit", (int) this.limit)
+                .put ("in_flight", this.inFlightRequests)
+                .put ("queue_length", this.queuedRequests.size ())
+                .put ("accepted", this.acceptedRequests)
+                .put ("queued", this.queuedRequestCount)
+                .put ("rejected", this.rejectedRequests);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public ConcurrencyLimiter
+        (   int         initialLimit,
+            int         minLimit,
+            int         maxLimit,
+            int         maxQueueLength,
+            Duration    maxQueueWait
+        )
+    {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit)
+        {
+            throw new IllegalArgumentException ("Limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueueLength = maxQueueLength;
+        this.maxQueueWait = maxQueueWait;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Creates a limiter whose limit does not adapt - a bulkhead.
+      */
+    public static ConcurrencyLimiter fixed
+        (   int         limit,
+            int         maxQueueLength,
+            Duration    maxQueueWait
+        )
+    {
+        return new ConcurrencyLimiter (limit, limit, limit, maxQueueLength, maxQueueWait);
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,43 @@
+package uk.co.smithdmy;
+
+/**
+  * How PostgREST counts the rows matching a request, for the total in the Content-Range header. An exact
+  * count runs a full COUNT (*) of the filtered rows alongside every request - often the most expensive part
+  * of a paged GET - so large or deeply paged results are better served by an estimate, or by no count at
+  * all and a separate count fetched only when needed (see PostgrestWrapper.fetchCount ()).
+  */
+public enum CountStrategy
+{
+    //--------------------------------------------------------------
+    
+    // A full COUNT (*) of the filtered rows
+    EXACT ("exact"),
+    
+    // The query planner's estimate - cheap, but may be well off
+    PLANNED ("planned"),
+    
+    // Exact for small results, otherwise the planner's estimate
+    ESTIMATED ("estimated"),
+    
+    // No count - the total in the Content-Range header is *
+    NONE (null);
+    
+    //--------------------------------------------------------------
+    
+    private final String preference;
+    
+    //--------------------------------------------------------------
+    
+    // The count= value of the Prefer header, or null if no count is requested
+    public String getPreference () { return this.preference; }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    private CountStrategy (String preference)
+    {
+        this.preference = preference;
+    }
+    
+    //--------------------------------------------------------------
+}
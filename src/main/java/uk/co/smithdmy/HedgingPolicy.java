@@ -0,0 +1,168 @@
+package uk.co.smithdmy;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+  * When to hedge a GET or HEAD request - that is, send a second, identical request if the first has not
+  * responded within a given percentile of the latencies seen so far, and use whichever response arrives
+  * first. This trims the tail latency caused by a slow or restarting upstream, at the cost of a few
+  * percent more requests.
+  *
+  * Latencies are learned from the requests sent with the policy, so a policy should be shared only by
+  * wrappers for the same endpoint. No request is hedged until minSamples latencies have been recorded,
+  * and never sooner than minDelay. Latencies are kept for a rotating window, so that a spike raises the
+  * hedge delay for no more than two windows: the percentile is taken from the current window once it has
+  * minSamples latencies, and from the previous window until then.
+  */
+@ToString (onlyExplicitlyIncluded = true)
+public class HedgingPolicy
+{
+    //--------------------------------------------------------------
+    
+    @Getter
+    @ToString.Include
+    private final double percentile;
+    
+    @Getter
+    @ToString.Include
+    private final Duration minDelay;
+    
+    @Getter
+    @ToString.Include
+    private final int minSamples;
+    
+    @Getter
+    @ToString.Include
+    private final Duration window;
+    
+    // Latencies of the first request of each hedged pair (hedges would bias the percentile downwards), in
+    // the current and the previous window
+    private volatile LatencyHistogram latencyHistogram = new LatencyHistogram ();
+    private volatile LatencyHistogram previousLatencyHistogram = new LatencyHistogram ();
+    private volatile long windowStartNanos = System.nanoTime ();
+    
+    private final AtomicLong hedgedRequests = new AtomicLong ();
+    
+    //--------------------------------------------------------------
+    
+    // Starts a new window if the current one has ended - latencies recorded meanwhile may land in either
+    private void rotateWindow ()
+    {
+        if (System.nanoTime () - this.windowStartNanos < this.window.toNanos ())
+        {
+            return;
+        }
+        
+        synchronized (this)
+        {
+            long nowNanos = System.nanoTime ();
+            
+            if (nowNanos - this.windowStartNanos >= this.window.toNanos ())
+            {
+                // A window with no latencies leaves none to fall back on, rather than ones from long ago
+                this.previousLatencyHistogram =
+                    (   nowNanos - this.windowStartNanos < 2 * this.window.toNanos ()
+                        ?   this.latencyHistogram
+                        :   new LatencyHistogram ()
+                    );
+                this.latencyHistogram = new LatencyHistogram ();
+                this.windowStartNanos = nowNanos;
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns how long to wait for the first response before hedging, or -1 if not to hedge yet
+    long getHedgeDelayNanos ()
+    {
+        this.rotateWindow ();
+        
+        LatencyHistogram latencyHistogram = this.latencyHistogram;
+        
+        if (latencyHistogram.getCount () < this.minSamples)
+        {
+            latencyHistogram = this.previousLatencyHistogram;
+            
+            if (latencyHistogram.getCount () < this.minSamples)
+            {
+                return -1;
+            }
+        }
+        
+        return
+            Math.max
+                (   this.minDelay.toNanos (),
+                    latencyHistogram.getPercentileMicros (this.percentile) * 1000
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    void recordLatencyNanos (long latencyNanos)
+    {
+        this.rotateWindow ();
+        
+        this.latencyHistogram.recordNanos (latencyNanos);
+    }
+    
+    //--------------------------------------------------------------
+    
+    void recordHedgedRequest ()
+    {
+        this.hedgedRequests.incrementAndGet ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    public long getHedgedRequests () { return this.hedgedRequests.get (); }
+    
+    // The latencies recorded in the current window
+    public LatencyHistogram getLatencyHistogram () { return this.latencyHistogram; }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public HedgingPolicy
+        (   double      percentile,
+            Duration    minDelay,
+            int         minSamples,
+            Duration    window
+        )
+    {
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.minSamples = minSamples;
+        this.window = window;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Keeps latencies for one-minute windows.
+      */
+    public HedgingPolicy
+        (   double      percentile,
+            Duration    minDelay,
+            int         minSamples
+        )
+    {
+        this (percentile, minDelay, minSamples, Duration.ofMinutes (1));
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Hedges requests slower than the 95th percentile, once 20 latencies have been recorded.
+      */
+    public HedgingPolicy (Duration minDelay)
+    {
+        this (95, minDelay, 20);
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,161 @@
+package uk.co.smithdmy;
+
+import java.net.http.HttpClient;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import lombok.Getter;
+
+/**
+  * Holds one HttpClient per PostgREST upstream, keyed by base URL, each created from its own
+  * HttpClientSettings. Upstreams that have not been registered share a client created from the
+  * default settings.
+  * 
+  * Lookups of existing clients do not lock, so the registry can be used on every request.
+  */
+public class HttpClientRegistry
+{
+    //--------------------------------------------------------------
+    
+    @Getter
+    private static final HttpClientRegistry instance = new HttpClientRegistry ();
+    
+    //--------------------------------------------------------------
+    
+    private final Map<String, HttpClient> httpClients = new ConcurrentHashMap<> ();
+    
+    @Getter
+    private volatile HttpClientSettings defaultSettings = HttpClientSettings.builder ().build ();
+    
+    private volatile HttpClient defaultHttpClient;
+    
+    // Clients created from the default settings to run on a given executor, keyed by the executor. Weak
+    // keys would not help, as each client refers to its executor - clients are removed by unregister (Executor)
+    private final Map<Executor, HttpClient> executorHttpClients = new ConcurrentHashMap<> ();
+    
+    //--------------------------------------------------------------
+    
+    // Base URLs are keyed with a trailing / so that "http://host/" and "http://host" share a client
+    private static String getKey (String baseUrl)
+    {
+        return baseUrl.endsWith ("/") ? baseUrl : baseUrl + "/";
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Creates the HttpClient for the given upstream from the settings, replacing any existing client for it.
+      * 
+      * @param  baseUrl   The base URL of the PostgREST upstream, as passed to PostgrestWrapperBuilder
+      * @param  settings  The settings to create the upstream's HttpClient with
+      */
+    public HttpClient register
+        (   String              baseUrl,
+            HttpClientSettings  settings
+        )
+    {
+        HttpClient httpClient = settings.createHttpClient ();
+        
+        this.httpClients.put (getKey (baseUrl), httpClient);
+        
+        return httpClient;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void unregister (String baseUrl)
+    {
+        this.httpClients.remove (getKey (baseUrl));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Removes the client created for the executor by getHttpClient (baseUrl, executor), e.g. once it is shut down
+    public void unregister (Executor executor)
+    {
+        this.executorHttpClients.remove (executor);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Applies to upstreams not registered with their own settings - clients already returned are unaffected
+    public synchronized void setDefaultSettings (HttpClientSettings defaultSettings)
+    {
+        this.defaultSettings = defaultSettings;
+        this.defaultHttpClient = null;
+        this.executorHttpClients.clear ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    public HttpClient getDefaultHttpClient ()
+    {
+        HttpClient httpClient = this.defaultHttpClient;
+        
+        if (httpClient != null)
+        {
+            return httpClient;
+        }
+        
+        synchronized (this)
+        {
+            if (this.defaultHttpClient == null)
+            {
+                this.defaultHttpClient = this.defaultSettings.createHttpClient ();
+            }
+            
+            return this.defaultHttpClient;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the HttpClient registered for the given upstream, or the default HttpClient if none is registered.
+      * 
+      * @param  baseUrl  The base URL of the PostgREST upstream
+      */
+    public HttpClient getHttpClient (String baseUrl)
+    {
+        HttpClient httpClient = this.httpClients.get (getKey (baseUrl));
+        
+        return httpClient != null ? httpClient : this.getDefaultHttpClient ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * As getHttpClient (baseUrl), except that an upstream not registered with its own settings gets a client
+      * created from the default settings that runs its asynchronous tasks on the given executor, shared by
+      * every caller with the same executor.
+      * 
+      * The client is kept until the executor is unregistered, so the executor should be long-lived and
+      * shared, e.g. one per application - a new executor per request would keep a new client per request.
+      */
+    public HttpClient getHttpClient
+        (   String      baseUrl,
+            Executor    executor
+        )
+    {
+        HttpClient httpClient = this.httpClients.get (getKey (baseUrl));
+        
+        if (httpClient != null)
+        {
+            return httpClient;
+        }
+        
+        return
+            this.executorHttpClients
+                .computeIfAbsent
+                    (   executor,
+                        key -> this.defaultSettings.toBuilder ().executor (key).build ().createHttpClient ()
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    private HttpClientRegistry () {} // Hides the constructor
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,135 @@
+package uk.co.smithdmy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+  * The tunable settings used by HttpClientRegistry to create the HttpClient for a PostgREST upstream.
+  * Unset values fall back to the java.net.http defaults.
+  * 
+  * Note that connection keep-alive is not a per-client setting in java.net.http - it is set for the
+  * whole JVM with the jdk.httpclient.keepalive.timeout system property (in seconds).
+  */
+@Builder (toBuilder = true)
+@Getter
+@ToString
+public class HttpClientSettings
+{
+    //--------------------------------------------------------------
+    
+    // Executor for the client's asynchronous tasks and dependent stages - null uses the client's own pool
+    private final Executor executor;
+    
+    @Builder.Default
+    private final HttpClient.Version version = HttpClient.Version.HTTP_2;
+    
+    // Null waits indefinitely for a connection, as per the java.net.http default
+    private final Duration connectTimeout;
+    
+    @Builder.Default
+    private final HttpClient.Redirect followRedirects = HttpClient.Redirect.NEVER;
+    
+    //--------------------------------------------------------------
+    
+    public HttpClient createHttpClient ()
+    {
+        HttpClient.Builder httpClientBuilder =
+            HttpClient
+                .newBuilder ()
+                .version (this.version)
+                .followRedirects (this.followRedirects);
+        
+        if (this.executor != null)
+        {
+            httpClientBuilder = httpClientBuilder.executor (this.executor);
+        }
+        
+        if (this.connectTimeout != null)
+        {
+            httpClientBuilder = httpClientBuilder.connectTimeout (this.connectTimeout);
+        }
+        
+        return httpClientBuilder.build ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    // The size of the platform thread pool used in place of virtual threads before Java 21
+    public static final int FALLBACK_THREADS = Math.max (8, 4 * Runtime.getRuntime ().availableProcessors ());
+    
+    //--------------------------------------------------------------
+    
+    // Created on first use
+    private static class SharedVirtualThreadExecutor
+    {
+        private static final ExecutorService instance = newVirtualThreadExecutor ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns an executor shared by all callers, as created by newVirtualThreadExecutor () - it is never
+      * shut down.
+      */
+    public static ExecutorService getVirtualThreadExecutor ()
+    {
+        return SharedVirtualThreadExecutor.instance;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns an executor that starts a new virtual thread per task when running on Java 21 or later.
+      * The project targets Java 17, where there are no virtual threads: there the executor is a bounded
+      * pool of FALLBACK_THREADS daemon platform threads, with further tasks queued. The wrapper's tasks do
+      * not block, so the pool keeps up with many requests in flight, but tasks that block - e.g. callers
+      * joining futures on it - can use up the pool.
+      */
+    public static ExecutorService newVirtualThreadExecutor ()
+    {
+        try
+        {
+            return
+                (ExecutorService)
+                    Executors.class
+                        .getMethod ("newVirtualThreadPerTaskExecutor")
+                        .invoke (null);
+        }
+        catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException exception)
+        {
+            var threadPoolExecutor =
+                new ThreadPoolExecutor
+                    (   FALLBACK_THREADS,
+                        FALLBACK_THREADS,
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<> (),
+                        runnable ->
+                        {
+                            Thread thread = new Thread (runnable);
+                            thread.setDaemon (true);
+                            
+                            return thread;
+                        }
+                    );
+            
+            // Idle threads are let go, so an unused pool costs nothing
+            threadPoolExecutor.allowCoreThreadTimeOut (true);
+            
+            return threadPoolExecutor;
+        }
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,425 @@
+package uk.co.smithdmy;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+  * Logs in registered principals (email addresses) with PostgREST's login function and caches their JWTs,
+  * so that requests sent with a token manager take the cached token rather than logging in each time.
+  *
+  * Each token's lifetime is read from the exp claim of its JWT, or is defaultLifetime if it has none, and a
+  * login returning a token that has already expired fails. A token is refreshed in the background
+  * refreshAhead before it expires (or half way through its lifetime, if sooner), provided it has been used
+  * since it was issued, so that idle principals are not logged in forever. Requests keep using the old
+  * token until the new one arrives. Concurrent logins for a principal are coalesced into one, so only the
+  * first request, or one after a token has lapsed, waits for a login.
+  */
+public class JwtTokenManager
+{
+    //--------------------------------------------------------------
+    
+    private Log log = LogFactory.getLog (this.getClass ());
+    
+    //--------------------------------------------------------------
+    
+    private record Token
+        (   String  jwt,
+            long    issuedAtNanos,
+            long    refreshAtNanos,
+            long    expiresAtNanos
+        )
+    {
+    
+    };
+    
+    //--------------------------------------------------------------
+    
+    private static class Principal
+    {
+        private final String password;
+        
+        private volatile Token token;
+        private volatile long lastUsedNanos;
+        
+        // The login in flight, shared by every request that needs it
+        private final AtomicReference<CompletableFuture<Token>> futureLogin = new AtomicReference<> ();
+        
+        private Principal (String password)
+        {
+            this.password = password;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final String baseUrl;
+    
+    @Getter
+    private final String functionName;
+    
+    // The property of the login response body holding the JWT
+    @Getter
+    private final String tokenField;
+    
+    @Getter
+    private final Duration refreshAhead;
+    
+    @Getter
+    private final Duration defaultLifetime;
+    
+    // The executor to log in and time refreshes on, or null for the client's own executor and the common pool
+    @Getter
+    @Setter
+    private Executor executor;
+    
+    private final Map<String, Principal> principals = new ConcurrentHashMap<> ();
+    
+    private final AtomicLong logins = new AtomicLong ();
+    private final AtomicLong failedLogins = new AtomicLong ();
+    
+    //--------------------------------------------------------------
+    
+    // Returns the exp claim of the JWT in seconds since the epoch, or -1 if it is not a JWT or has no exp
+    static long getExpiryEpochSeconds (String jwt)
+    {
+        String jwtParts[] = jwt.split ("\\.", -1); // Keeping the empty signature of an unsigned JWT
+        
+        if (jwtParts.length != 3)
+        {
+            return -1;
+        }
+        
+        try
+        {
+            return
+                new JSONObject (new String (Base64.getUrlDecoder ().decode (jwtParts[1]), StandardCharsets.UTF_8))
+                    .optLong ("exp", -1);
+        }
+        catch (IllegalArgumentException | JSONException exception)
+        {
+            return -1;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    private long getLifetimeNanos (String jwt)
+    {
+        long expiryEpochSeconds = getExpiryEpochSeconds (jwt);
+        
+        if (expiryEpochSeconds < 0)
+        {
+            return this.defaultLifetime.toNanos ();
+        }
+        
+        return Math.max (0, TimeUnit.MILLISECONDS.toNanos (expiryEpochSeconds * 1000 - System.currentTimeMillis ()));
+    }
+    
+    //--------------------------------------------------------------
+    
+    private Principal getPrincipal (String email)
+    {
+        Principal principal = this.principals.get (email);
+        
+        if (principal == null)
+        {
+            throw new IllegalArgumentException ("No principal registered for " + email);
+        }
+        
+        return principal;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Registers the credentials to log in the principal with, replacing any registered before.
+      */
+    public void register
+        (   String  email,
+            String  password
+        )
+    {
+        this.principals.put (email, new Principal (password));
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void unregister (String email)
+    {
+        this.principals.remove (email);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Refreshes the token when it is due, if it is still the principal's token and has been used
+    private void scheduleRefresh
+        (   String      email,
+            Principal   principal,
+            Token       token
+        )
+    {
+        long delayNanos = Math.max (0, token.refreshAtNanos () - System.nanoTime ());
+        
+        Runnable refresh =
+            () ->
+            {
+                if  (   this.principals.get (email) == principal
+                        &&
+                        principal.token == token
+                        &&
+                        principal.lastUsedNanos - token.issuedAtNanos () > 0
+                    )
+                {
+                    this.login (email, principal);
+                }
+            };
+        
+        CompletableFuture
+            .runAsync
+                (   refresh,
+                    this.executor != null
+                        ?   CompletableFuture.delayedExecutor (delayNanos, TimeUnit.NANOSECONDS, this.executor)
+                        :   CompletableFuture.delayedExecutor (delayNanos, TimeUnit.NANOSECONDS)
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Logs the principal in, or returns the login already in flight
+    private CompletableFuture<Token> login
+        (   String      email,
+            Principal   principal
+        )
+    {
+        CompletableFuture<Token> futureLogin = new CompletableFuture<> ();
+        CompletableFuture<Token> inFlightLogin = principal.futureLogin.compareAndExchange (null, futureLogin);
+        
+        if (inFlightLogin != null)
+        {
+            return inFlightLogin;
+        }
+        
+        // Composed onto a completed future, so that a failure to build the request also completes the login
+        CompletableFuture
+            .completedFuture (email)
+            .thenCompose
+                (   ignored ->
+                        PostgrestWrapper.authenticateUserAsync
+                            (   this.baseUrl,
+                                this.functionName,
+                                email,
+                                principal.password,
+                                null,
+                                this.executor,
+                                null // A flood of bad logins for the principal must not stop its token being refreshed
+                            )
+                )
+            .thenApply
+                (   authResponse ->
+                    {
+                        if (!authResponse.getBoolean ("succeeded"))
+                        {
+                            throw new PostgrestResponseException (authResponse.getInt ("status_code"), authResponse.optJSONObject ("body"), null);
+                        }
+                        
+                        String jwt = authResponse.getJSONObject ("body").getString (this.tokenField);
+                        
+                        long issuedAtNanos = System.nanoTime ();
+                        long lifetimeNanos = this.getLifetimeNanos (jwt);
+                        
+                        // A token that has already expired would be rejected by every request it was used for
+                        if (lifetimeNanos <= 0)
+                        {
+                            throw
+                                new PostgrestResponseException
+                                    (   HttpURLConnection.HTTP_BAD_GATEWAY,
+                                        new JSONObject ().put ("message", "Login returned an expired token"),
+                                        null
+                                    );
+                        }
+                        
+                        // Short-lived tokens are refreshed half way through, rather than on every request
+                        long refreshAheadNanos = Math.min (this.refreshAhead.toNanos (), lifetimeNanos / 2);
+                        
+                        return
+                            new Token
+                                (   jwt,
+                                    issuedAtNanos,
+                                    issuedAtNanos + lifetimeNanos - refreshAheadNanos,
+                                    issuedAtNanos + lifetimeNanos
+                                );
+                    }
+                )
+            .whenComplete
+                (   (token, exception) ->
+                    {
+                        if (exception == null)
+                        {
+                            this.logins.incrementAndGet ();
+                            
+                            principal.token = token;
+                            
+                            this.scheduleRefresh (email, principal, token);
+                        }
+                        else
+                        {
+                            this.failedLogins.incrementAndGet ();
+                            
+                            log.warn ("Failed to log in " + email + ": " + exception.getMessage ());
+                        }
+                        
+                        // Clear the login before completing it, so that requests it fails can start another
+                        principal.futureLogin.set (null);
+                        
+                        if (exception == null)
+                        {
+                            futureLogin.complete (token);
+                        }
+                        else
+                        {
+                            futureLogin.completeExceptionally (exception);
+                        }
+                    }
+                );
+        
+        return futureLogin;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the principal's JWT - at once if a token is cached and has not expired, or otherwise when
+      * the principal has logged in. A token due for refresh is returned at once while it is refreshed.
+      * Failed logins complete the future with a PostgrestResponseException.
+      */
+    public CompletableFuture<String> getTokenAsync (String email)
+    {
+        Principal principal = this.getPrincipal (email);
+        Token token = principal.token;
+        long nowNanos = System.nanoTime ();
+        
+        principal.lastUsedNanos = nowNanos;
+        
+        if (token != null && nowNanos - token.expiresAtNanos () < 0)
+        {
+            // In case the scheduled refresh is late, or was skipped while the token was idle
+            if (nowNanos - token.refreshAtNanos () >= 0)
+            {
+                this.login (email, principal);
+            }
+            
+            return CompletableFuture.completedFuture (token.jwt ());
+        }
+        
+        return this.login (email, principal).thenApply (Token::jwt);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public String getToken (String email)
+    {
+        try
+        {
+            return this.getTokenAsync (email).join ();
+        }
+        catch (CompletionException exception)
+        {
+            if (exception.getCause () instanceof RuntimeException runtimeException)
+            {
+                throw runtimeException;
+            }
+            
+            throw exception;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Discards the principal's token if it is the given JWT, e.g. after PostgREST has rejected it, so that
+      * the next request logs in again.
+      */
+    public void invalidate
+        (   String  email,
+            String  jwt
+        )
+    {
+        Principal principal = this.principals.get (email);
+        Token token = (principal != null ? principal.token : null);
+        
+        if (token != null && token.jwt ().equals (jwt))
+        {
+            principal.token = null;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    public long getLogins () { return this.logins.get (); }
+    
+    public long getFailedLogins () { return this.failedLogins.get (); }
+    
+    //--------------------------------------------------------------
+    
+    public JSONObject getStatistics ()
+    {
+        return
+            new JSONObject ()
+                .put ("principals", this.principals.size ())
+                .put ("logins", this.logins.get ())
+                .put ("failed_logins", this.failedLogins.get ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public JwtTokenManager
+        (   String      baseUrl,
+            String      functionName,
+            String      tokenField,
+            Duration    refreshAhead,
+            Duration    defaultLifetime
+        )
+    {
+        this.baseUrl = baseUrl;
+        this.functionName = functionName;
+        this.tokenField = tokenField;
+        this.refreshAhead = refreshAhead;
+        this.defaultLifetime = defaultLifetime;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Reads the JWT from jwt_token, as PostgrestWrapperBuilder.jwtAuthString (JSONObject) does, and refreshes
+      * tokens a minute before they expire - or after an hour, for tokens without an exp claim.
+      */
+    public JwtTokenManager
+        (   String  baseUrl,
+            String  functionName
+        )
+    {
+        this (baseUrl, functionName, "jwt_token", Duration.ofMinutes (1), Duration.ofHours (1));
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,178 @@
+package uk.co.smithdmy;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONObject;
+
+/**
+  * A thread-safe histogram of latencies, recorded to microsecond resolution in log-linear buckets - exact
+  * below 16 microseconds, then eight buckets per power of two, so any reported percentile is within 12.5%
+  * of the true value. Recording is lock-free and allocation-free, so it can be called on every request.
+  */
+public class LatencyHistogram
+{
+    //--------------------------------------------------------------
+    
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    
+    // Enough buckets for any non-negative long number of microseconds
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (Long.SIZE - 5) * SUB_BUCKETS;
+    
+    //--------------------------------------------------------------
+    
+    private final AtomicLongArray bucketCounts = new AtomicLongArray (BUCKET_COUNT);
+    
+    private final AtomicLong count = new AtomicLong ();
+    private final AtomicLong totalMicros = new AtomicLong ();
+    private final AtomicLong maxMicros = new AtomicLong ();
+    
+    //--------------------------------------------------------------
+    
+    private static int getBucket (long micros)
+    {
+        if (micros < LINEAR_BUCKETS)
+        {
+            return (int) micros;
+        }
+        
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros (micros); // At least 4
+        int subBucket = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // The largest value that falls into the bucket
+    private static long getBucketUpperBound (int bucket)
+    {
+        if (bucket < LINEAR_BUCKETS)
+        {
+            return bucket;
+        }
+        
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void recordMicros (long micros)
+    {
+        micros = Math.max (0, micros);
+        
+        this.bucketCounts.incrementAndGet (getBucket (micros));
+        this.count.incrementAndGet ();
+        this.totalMicros.addAndGet (micros);
+        this.maxMicros.accumulateAndGet (micros, Math::max);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void recordNanos (long nanos)
+    {
+        this.recordMicros (nanos / 1000);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void record (Duration latency)
+    {
+        this.recordNanos (latency.toNanos ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    public long getCount () { return this.count.get (); }
+    
+    public long getMaxMicros () { return this.maxMicros.get (); }
+    
+    //--------------------------------------------------------------
+    
+    public double getMeanMicros ()
+    {
+        long count = this.count.get ();
+        
+        return (count == 0 ? 0 : (double) this.totalMicros.get () / count);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the latency, in microseconds, at or below which the given percentage of recorded latencies fall
+      * (rounded up to the top of its bucket, but never above the maximum recorded), or 0 if none are recorded.
+      *
+      * @param  percentile  Between 0 and 100, e.g. 99.9
+      */
+    public long getPercentileMicros (double percentile)
+    {
+        long count = this.count.get ();
+        
+        if (count == 0)
+        {
+            return 0;
+        }
+        
+        long targetCount = Math.max (1, (long) Math.ceil (count * Math.min (percentile, 100) / 100));
+        long cumulativeCount = 0;
+        
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++)
+        {
+            cumulativeCount += this.bucketCounts.get (bucket);
+            
+            if (cumulativeCount >= targetCount)
+            {
+                return Math.min (getBucketUpperBound (bucket), this.getMaxMicros ());
+            }
+        }
+        
+        return this.getMaxMicros ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void reset ()
+    {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++)
+        {
+            this.bucketCounts.set (bucket, 0);
+        }
+        
+        this.count.set (0);
+        this.totalMicros.set (0);
+        this.maxMicros.set (0);
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static double toMillis (double micros)
+    {
+        return Math.round (micros) / 1000.0;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the count, mean, maximum and common percentiles, in milliseconds.
+      */
+    public JSONObject getStatistics ()
+    {
+        return
+            new JSONObject ()
+                .put ("count", this.getCount ())
+                .put ("mean_ms", toMillis (this.getMeanMicros ()))
+                .put ("p50_ms", toMillis (this.getPercentileMicros (50)))
+                .put ("p90_ms", toMillis (this.getPercentileMicros (90)))
+                .put ("p99_ms", toMillis (this.getPercentileMicros (99)))
+                .put ("p999_ms", toMillis (this.getPercentileMicros (99.9)))
+                .put ("max_ms", toMillis (this.getMaxMicros ()));
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,121 @@
+package uk.co.smithdmy;
+
+import java.net.http.HttpHeaders;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+  * Controls what the wrapper logs about each request. Requests and responses are logged at DEBUG as a
+  * single line each - method, URI, status and headers, with credentials redacted. Response bodies are only
+  * logged at TRACE, truncated to maxBodyChars, and only for a sample of responses. Nothing is formatted
+  * unless the level is enabled, so logging costs next to nothing when it is off.
+  */
+@Builder
+@Getter
+@ToString
+public class LoggingSettings
+{
+    //--------------------------------------------------------------
+    
+    public static final Set<String> DEFAULT_REDACTED_HEADERS =
+        Set.of
+            (   "authorization",
+                "proxy-authorization",
+                "cookie",
+                "set-cookie",
+                "apikey"
+            );
+    
+    //--------------------------------------------------------------
+    
+    // Names of headers whose values are replaced with *** - compared case-insensitively
+    @Builder.Default
+    private final Set<String> redactedHeaders = DEFAULT_REDACTED_HEADERS;
+    
+    // Response bodies longer than this are cut short in the log
+    @Builder.Default
+    private final int maxBodyChars = 1024;
+    
+    // The fraction of response bodies logged (at TRACE), between 0 and 1
+    @Builder.Default
+    private final double bodySampleRate = 1.0;
+    
+    //--------------------------------------------------------------
+    
+    public static LoggingSettings defaults ()
+    {
+        return LoggingSettings.builder ().build ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    private boolean isRedacted (String headerName)
+    {
+        for (String redactedHeader : this.redactedHeaders)
+        {
+            if (redactedHeader.equalsIgnoreCase (headerName))
+            {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Formats the headers as {name=[value], ...}, with the values of redacted headers replaced with ***.
+      */
+    public String formatHeaders (HttpHeaders httpHeaders)
+    {
+        StringBuilder formattedHeaders = new StringBuilder ("{");
+        
+        for (Map.Entry<String, List<String>> header : httpHeaders.map ().entrySet ())
+        {
+            formattedHeaders
+                .append (formattedHeaders.length () == 1 ? "" : ", ")
+                .append (header.getKey ().toLowerCase (Locale.ROOT))
+                .append ('=')
+                .append (this.isRedacted (header.getKey ()) ? "[***]" : header.getValue ().toString ());
+        }
+        
+        return formattedHeaders.append ('}').toString ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Whether to log this response's body, according to the sample rate
+    public boolean isBodySampled ()
+    {
+        return
+            (   this.bodySampleRate >= 1.0
+                ||
+                ThreadLocalRandom.current ().nextDouble () < this.bodySampleRate
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the body, truncated to maxBodyChars with a note of how many characters were cut.
+      */
+    public String formatBody (String body)
+    {
+        if (body == null || body.length () <= this.maxBodyChars)
+        {
+            return body;
+        }
+        
+        return body.substring (0, this.maxBodyChars) + "... (" + (body.length () - this.maxBodyChars) + " more chars)";
+    }
+    
+    //--------------------------------------------------------------
+}
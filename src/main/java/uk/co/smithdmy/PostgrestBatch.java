@@ -0,0 +1,318 @@
+package uk.co.smithdmy;
+
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import lombok.Getter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatusCode;
+
+/**
+  * Sends a batch of independent requests - any mix of wrappers, resources and methods - concurrently, so
+  * that the batch takes as long as its slowest request rather than the sum of them all. No more than
+  * maxConcurrency requests are in flight at once; each wrapper's request is sent as soon as a slot frees.
+  * Wrappers for the same upstream share its client from HttpClientRegistry, which negotiates HTTP/2 where
+  * the upstream supports it, multiplexing the batch over a single connection.
+  *
+  * Every request gets an API response, as from getHttpResponse (): one that fails to send has the usual
+  * synthetic 500 response, and one with no response within the request timeout (from when it is sent) a
+  * 504 response. A timed out request keeps its slot until it completes, as it cannot be cancelled once
+  * sent, so that maxConcurrency is a cap on requests actually in flight even against a hung upstream. A
+  * batch never fails as a whole - the batch response lists the indexes of the requests that failed.
+  */
+public class PostgrestBatch
+{
+    //--------------------------------------------------------------
+    
+    // The batch status when some requests failed - not defined in HttpURLConnection
+    private static final int HTTP_MULTI_STATUS = 207;
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final int maxConcurrency;
+    
+    // How long to wait for each request - if null, requests are waited for indefinitely
+    @Getter
+    private final Duration requestTimeout;
+    
+    //--------------------------------------------------------------
+    
+    private static boolean isError (JSONObject apiResponse)
+    {
+        return HttpStatusCode.valueOf (apiResponse.getInt ("status_code")).isError ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static JSONObject getErrorResponse
+        (   int     statusCode,
+            String  message
+        )
+    {
+        return
+            new JSONObject ()
+                .put ("status_code", statusCode)
+                .put ("body", new JSONObject ().put ("message", message));
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Sends the requests of a single batch, starting the next as each completes. Slots freed while requests
+      * are being started - e.g. by requests that complete at once from a response cache - are taken up by
+      * the loop already starting them, rather than by a nested call, so the stack never grows with the batch.
+      */
+    private class BatchSender
+    {
+        //----------------------------------------------------------
+        
+        private final List<PostgrestWrapper> postgrestWrappers;
+        private final List<CompletableFuture<JSONObject>> apiResponses;
+        
+        private final AtomicInteger freeSlots = new AtomicInteger (PostgrestBatch.this.maxConcurrency);
+        
+        // The number of calls to sendRequests () not yet served - only the first sends requests
+        private final AtomicInteger pendingSends = new AtomicInteger ();
+        
+        // Only read and written while sending requests, by one thread at a time
+        private int nextIndex = 0;
+        
+        //----------------------------------------------------------
+        
+        private void sendRequest (int index)
+        {
+            CompletableFuture<JSONObject> apiResponse = this.apiResponses.get (index);
+            CompletableFuture<JSONObject> futureResponse;
+            
+            try
+            {
+                futureResponse = this.postgrestWrappers.get (index).getHttpResponseAsync ();
+            }
+            catch (RuntimeException exception) // Failed to build the request
+            {
+                futureResponse = CompletableFuture.failedFuture (exception);
+            }
+            
+            if (PostgrestBatch.this.requestTimeout != null)
+            {
+                apiResponse.completeOnTimeout
+                    (   getErrorResponse (HttpURLConnection.HTTP_GATEWAY_TIMEOUT, "No response within " + PostgrestBatch.this.requestTimeout),
+                        PostgrestBatch.this.requestTimeout.toNanos (),
+                        TimeUnit.NANOSECONDS
+                    );
+            }
+            
+            // Completes the batch's own future, so that a timeout never completes a future shared with other callers
+            futureResponse.whenComplete
+                (   (response, exception) ->
+                    {
+                        if (exception != null)
+                        {
+                            apiResponse.complete (getErrorResponse (HttpURLConnection.HTTP_INTERNAL_ERROR, String.valueOf (exception.getMessage ())));
+                        }
+                        else
+                        {
+                            apiResponse.complete (response);
+                        }
+                        
+                        // Only now is the request no longer in flight, even if it has already timed out
+                        this.freeSlots.incrementAndGet ();
+                        this.sendRequests ();
+                    }
+                );
+        }
+        
+        //----------------------------------------------------------
+        
+        // Sends requests not yet sent while there are free slots
+        void sendRequests ()
+        {
+            if (this.pendingSends.getAndIncrement () != 0)
+            {
+                return;
+            }
+            
+            do
+            {
+                while (this.nextIndex < this.apiResponses.size () && this.freeSlots.get () > 0)
+                {
+                    this.freeSlots.decrementAndGet ();
+                    this.sendRequest (this.nextIndex++);
+                }
+            }
+            while (this.pendingSends.decrementAndGet () != 0);
+        }
+        
+        //----------------------------------------------------------
+        
+        private BatchSender
+            (   List<PostgrestWrapper>                  postgrestWrappers,
+                List<CompletableFuture<JSONObject>>     apiResponses
+            )
+        {
+            this.postgrestWrappers = postgrestWrappers;
+            this.apiResponses = apiResponses;
+        }
+        
+        //----------------------------------------------------------
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Starts sending the batch, returning a future of each request's API response, in the order given
+    private List<CompletableFuture<JSONObject>> send (List<PostgrestWrapper> postgrestWrappers)
+    {
+        List<CompletableFuture<JSONObject>> apiResponses = new ArrayList<> (postgrestWrappers.size ());
+        
+        for (int idx = 0; idx < postgrestWrappers.size (); idx++)
+        {
+            apiResponses.add (new CompletableFuture<> ());
+        }
+        
+        new BatchSender (postgrestWrappers, apiResponses).sendRequests ();
+        
+        return apiResponses;
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static JSONObject getBatchResponse
+        (   int         requestCount,
+            JSONArray   failedIndexes
+        )
+    {
+        return
+            new JSONObject ()
+                .put ("status_code", failedIndexes.isEmpty () ? HttpURLConnection.HTTP_OK : HTTP_MULTI_STATUS)
+                .put ("requests", requestCount)
+                .put ("failed", failedIndexes);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Sends the requests concurrently, completing once all have responded or timed out with a batch
+      * response of the API response of each request, in the order given, under "responses". The status
+      * code is 200 if every request succeeded, otherwise 207 with the indexes of the error responses
+      * under "failed".
+      */
+    public CompletableFuture<JSONObject> executeAsync (List<PostgrestWrapper> postgrestWrappers)
+    {
+        List<CompletableFuture<JSONObject>> apiResponses = this.send (postgrestWrappers);
+        
+        return
+            CompletableFuture
+                .allOf (apiResponses.toArray (new CompletableFuture<?>[0]))
+                .thenApply
+                    (   ignored ->
+                        {
+                            JSONArray responses = new JSONArray ();
+                            JSONArray failedIndexes = new JSONArray ();
+                            
+                            for (int idx = 0; idx < apiResponses.size (); idx++)
+                            {
+                                JSONObject apiResponse = apiResponses.get (idx).join ();
+                                
+                                responses.put (apiResponse);
+                                
+                                if (isError (apiResponse))
+                                {
+                                    failedIndexes.put (idx);
+                                }
+                            }
+                            
+                            return getBatchResponse (apiResponses.size (), failedIndexes).put ("responses", responses);
+                        }
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    public JSONObject execute (List<PostgrestWrapper> postgrestWrappers)
+    {
+        return this.executeAsync (postgrestWrappers).join ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Sends the requests concurrently and passes each API response to the consumer, on the calling thread,
+      * as soon as it completes - so not necessarily in the order given. Returns the batch response once all
+      * have been passed, as per executeAsync () but without the responses.
+      *
+      * @param  responseConsumer  Called with the index and API response of each request
+      */
+    public JSONObject forEachCompleted
+        (   List<PostgrestWrapper>              postgrestWrappers,
+            BiConsumer<Integer, JSONObject>     responseConsumer
+        )
+    {
+        BlockingQueue<Map.Entry<Integer, JSONObject>> completedResponses = new LinkedBlockingQueue<> ();
+        
+        List<CompletableFuture<JSONObject>> apiResponses = this.send (postgrestWrappers);
+        
+        for (int idx = 0; idx < apiResponses.size (); idx++)
+        {
+            final int index = idx;
+            
+            apiResponses.get (idx).thenAccept (apiResponse -> completedResponses.add (new AbstractMap.SimpleEntry<> (index, apiResponse)));
+        }
+        
+        JSONArray failedIndexes = new JSONArray ();
+        
+        try
+        {
+            for (int completed = 0; completed < apiResponses.size (); completed++)
+            {
+                var completedResponse = completedResponses.take ();
+                
+                if (isError (completedResponse.getValue ()))
+                {
+                    failedIndexes.put (completedResponse.getKey ());
+                }
+                
+                responseConsumer.accept (completedResponse.getKey (), completedResponse.getValue ());
+            }
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread ().interrupt ();
+            
+            throw new IllegalStateException ("Interrupted while waiting for batch responses", exception);
+        }
+        
+        return getBatchResponse (apiResponses.size (), failedIndexes);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestBatch
+        (   int         maxConcurrency,
+            Duration    requestTimeout
+        )
+    {
+        if (maxConcurrency < 1)
+        {
+            throw new IllegalArgumentException ("Batch concurrency must be at least 1");
+        }
+        
+        this.maxConcurrency = maxConcurrency;
+        this.requestTimeout = requestTimeout;
+    }
+    
+    //--------------------------------------------------------------
+}
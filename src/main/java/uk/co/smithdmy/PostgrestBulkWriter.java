@@ -0,0 +1,356 @@
+package uk.co.smithdmy;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+  * Inserts (or upserts) many rows into a resource by POSTing them as JSON arrays in chunks, rather than
+  * one request per row. A chunk is sent once it reaches either the maximum number of rows or the maximum
+  * number of bytes, with no more than maxConcurrency chunks in flight at once.
+  *
+  * The resource, schema, authorisation and headers are taken from the wrapper, whose request method must be POST.
+  */
+public class PostgrestBulkWriter
+{
+    //--------------------------------------------------------------
+    
+    private Log log = LogFactory.getLog (this.getClass ());
+    
+    //--------------------------------------------------------------
+    
+    private final PostgrestWrapper postgrestWrapper;
+    
+    @Getter
+    private int maxChunkRows = 1000;
+    
+    @Getter
+    private int maxChunkBytes = 4 * 1024 * 1024;
+    
+    @Getter
+    private int maxConcurrency = 4;
+    
+    // Merge rows whose primary key (or onConflict columns) already exist, rather than failing the chunk
+    @Getter
+    private boolean upsert = false;
+    
+    @Getter
+    private String onConflict;
+    
+    // Return the written rows in each chunk's response - not needed unless the rows are used afterwards
+    @Getter
+    private boolean returnRepresentation = false;
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestBulkWriter maxChunkRows (int maxChunkRows)
+    {
+        if (maxChunkRows < 1)
+        {
+            throw new IllegalArgumentException ("Chunks must hold at least 1 row");
+        }
+        
+        this.maxChunkRows = maxChunkRows;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestBulkWriter maxChunkBytes (int maxChunkBytes)
+    {
+        if (maxChunkBytes < 1)
+        {
+            throw new IllegalArgumentException ("Chunks must hold at least 1 byte");
+        }
+        
+        this.maxChunkBytes = maxChunkBytes;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestBulkWriter maxConcurrency (int maxConcurrency)
+    {
+        if (maxConcurrency < 1)
+        {
+            throw new IllegalArgumentException ("Bulk write concurrency must be at least 1");
+        }
+        
+        this.maxConcurrency = maxConcurrency;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Upserts rows using Prefer: resolution=merge-duplicates.
+      *
+      * @param  onConflict  Comma-separated columns with a unique constraint to merge on, or null for the primary key
+      */
+    public PostgrestBulkWriter upsert (String onConflict)
+    {
+        this.upsert = true;
+        this.onConflict = onConflict;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestBulkWriter returnRepresentation (boolean returnRepresentation)
+    {
+        this.returnRepresentation = returnRepresentation;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    private PostgrestRequestTemplate getRequestTemplate ()
+    {
+        return
+            this.postgrestWrapper
+                .getRequestTemplate ()
+                .withHeader
+                    (   "Prefer",
+                            "return="
+                        +   (this.returnRepresentation ? "representation" : "minimal")
+                        +   (this.upsert ? ", resolution=merge-duplicates" : "")
+                        +   ", tx="
+                        +   (this.postgrestWrapper.isCommitTransaction () ? "commit" : "rollback")
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends a chunk, completing with its result rather than exceptionally
+    private CompletableFuture<JSONObject> sendChunk
+        (   PostgrestRequestTemplate    requestTemplate,
+            int                         chunk,
+            int                         rowCount,
+            String                      chunkBody
+        )
+    {
+        var httpRequest =
+            requestTemplate
+                .newHttpRequest
+                    (   this.onConflict == null ? null : "on_conflict=" + PostgrestQuery.encode (this.onConflict),
+                        chunkBody
+                    );
+        
+        // Each chunk takes the token manager's current JWT, so a long write outlives the token it started with
+        return
+            this.postgrestWrapper
+                .getJwtAsync ()
+                .thenCompose
+                    (   jwt ->
+                            this.postgrestWrapper
+                                .sendHttpRequestAsync (PostgrestWrapper.authorise (httpRequest, jwt))
+                                .thenApply
+                                    (   httpResponse ->
+                                        {
+                                            this.postgrestWrapper.checkJwtRejected (jwt, httpResponse.statusCode ());
+                                            
+                                            return httpResponse;
+                                        }
+                                    )
+                    )
+                .handle
+                    (   (httpResponse, exception) ->
+                        {
+                            JSONObject chunkResult =
+                                new JSONObject ()
+                                    .put ("chunk", chunk)
+                                    .put ("rows", rowCount);
+                            
+                            if (exception != null)
+                            {
+                                log.warn ("Chunk " + chunk + " failed: " + exception.getMessage ());
+                                
+                                // Failed logins are reported with the login's status
+                                return
+                                    chunkResult
+                                        .put
+                                            (   "status_code",
+                                                exception.getCause () instanceof PostgrestResponseException responseException
+                                                    ?   responseException.getStatusCode ()
+                                                    :   HttpURLConnection.HTTP_INTERNAL_ERROR
+                                            );
+                            }
+                            
+                            chunkResult = chunkResult.put ("status_code", httpResponse.statusCode ());
+                            
+                            if (HttpStatusCode.valueOf (httpResponse.statusCode ()).isError ())
+                            {
+                                log.warn ("Chunk " + chunk + " returned status " + httpResponse.statusCode ());
+                                
+                                chunkResult = chunkResult.put ("body", new JSONObject (httpResponse.body ()));
+                                
+                                return chunkResult;
+                            }
+                            
+                            // Chunks bypass the wrapper's cache, so cached reads of the resource are invalidated here
+                            if (this.postgrestWrapper.getResponseCache () != null)
+                            {
+                                this.postgrestWrapper.getResponseCache ().invalidate (requestTemplate.getResourceUri ());
+                            }
+                            
+                            if (this.returnRepresentation && httpResponse.body ().startsWith ("["))
+                            {
+                                chunkResult = chunkResult.put ("body", new JSONArray (httpResponse.body ()));
+                            }
+                            
+                            return chunkResult;
+                        }
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Writes the rows in chunks and returns a summary of the results of every chunk. The status_code of the
+      * summary is that of the first failed chunk, if any, otherwise that of the last chunk. Chunks are not
+      * retried and a failed chunk does not stop later chunks being sent.
+      *
+      * @param  rows  The rows to write - read once, in order, as chunks are sent
+      */
+    public JSONObject write (Iterable<JSONObject> rows)
+    {
+        PostgrestRequestTemplate requestTemplate = this.getRequestTemplate ();
+        
+        Semaphore concurrencyPermits = new Semaphore (this.maxConcurrency);
+        List<CompletableFuture<JSONObject>> chunkResults = new ArrayList<> ();
+        
+        StringBuilder chunkBody = new StringBuilder ("[");
+        int chunkBytes = 1;
+        int chunkRows = 0;
+        
+        try
+        {
+            for (JSONObject row : rows)
+            {
+                String rowJson = row.toString ();
+                int rowBytes = rowJson.getBytes (StandardCharsets.UTF_8).length + 1; // Including the separator
+                
+                // Send the current chunk if this row would take it over either limit
+                if  (   chunkRows > 0
+                        &&
+                        (   chunkRows >= this.maxChunkRows
+                            ||
+                            chunkBytes + rowBytes > this.maxChunkBytes
+                        )
+                    )
+                {
+                    concurrencyPermits.acquire ();
+                    
+                    chunkResults.add
+                        (   this.sendChunk (requestTemplate, chunkResults.size (), chunkRows, chunkBody.append (']').toString ())
+                                .whenComplete ((chunkResult, exception) -> concurrencyPermits.release ())
+                        );
+                    
+                    chunkBody = new StringBuilder ("[");
+                    chunkBytes = 1;
+                    chunkRows = 0;
+                }
+                
+                chunkBody.append (chunkRows == 0 ? "" : ",").append (rowJson);
+                chunkBytes += rowBytes;
+                chunkRows++;
+            }
+            
+            if (chunkRows > 0)
+            {
+                concurrencyPermits.acquire ();
+                
+                chunkResults.add
+                    (   this.sendChunk (requestTemplate, chunkResults.size (), chunkRows, chunkBody.append (']').toString ())
+                            .whenComplete ((chunkResult, exception) -> concurrencyPermits.release ())
+                    );
+            }
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread ().interrupt ();
+            
+            throw new IllegalStateException ("Interrupted while writing chunks", exception);
+        }
+        
+        JSONArray chunks = new JSONArray ();
+        JSONObject failedChunk = null;
+        int statusCode = HttpURLConnection.HTTP_NO_CONTENT;
+        int rowsWritten = 0;
+        
+        for (CompletableFuture<JSONObject> futureChunkResult : chunkResults)
+        {
+            JSONObject chunkResult;
+            try
+            {
+                chunkResult = futureChunkResult.join ();
+            }
+            catch (CompletionException exception) // Only if the chunk's response could not be parsed
+            {
+                chunkResult =
+                    new JSONObject ()
+                        .put ("chunk", chunks.length ())
+                        .put ("status_code", HttpURLConnection.HTTP_INTERNAL_ERROR);
+            }
+            
+            chunks.put (chunkResult);
+            statusCode = chunkResult.getInt ("status_code");
+            
+            if (HttpStatusCode.valueOf (statusCode).isError ())
+            {
+                failedChunk = (failedChunk == null ? chunkResult : failedChunk);
+            }
+            else
+            {
+                rowsWritten += chunkResult.getInt ("rows");
+            }
+        }
+        
+        return
+            new JSONObject ()
+                .put ("status_code", failedChunk == null ? statusCode : failedChunk.getInt ("status_code"))
+                .put ("rows_written", rowsWritten)
+                .put ("chunks", chunks);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public JSONObject write (Stream<JSONObject> rows)
+    {
+        return this.write ((Iterable<JSONObject>) rows::iterator);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestBulkWriter (PostgrestWrapper postgrestWrapper)
+    {
+        if (postgrestWrapper.getRequestMethod () != RequestMethod.POST)
+        {
+            throw new IllegalArgumentException ("Bulk writes must use the POST method, not " + postgrestWrapper.getRequestMethod ());
+        }
+        
+        this.postgrestWrapper = postgrestWrapper;
+    }
+    
+    //--------------------------------------------------------------
+}
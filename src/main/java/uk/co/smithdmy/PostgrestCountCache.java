@@ -0,0 +1,168 @@
+package uk.co.smithdmy;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+
+import org.json.JSONObject;
+
+/**
+  * A short-lived cache of row counts fetched by PostgrestWrapper.fetchCount (), shared by any wrappers it
+  * is given to, so that a total shown alongside every page is only counted once per time to live.
+  *
+  * Counts are keyed in the same way as PostgrestResponseCache keys responses, plus the count strategy.
+  * Concurrent requests for the same count share a single request, and failed requests are not cached.
+  */
+public class PostgrestCountCache
+{
+    //--------------------------------------------------------------
+    
+    private record CachedCount
+        (   CompletableFuture<Long>     futureCount,
+            long                        expiresAtNanos
+        )
+    {
+        boolean isFresh ()
+        {
+            return System.nanoTime () - this.expiresAtNanos < 0;
+        }
+    };
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final int maxEntries;
+    
+    @Getter
+    private final Duration timeToLive;
+    
+    private final Map<String, CachedCount> cachedCounts = new ConcurrentHashMap<> ();
+    
+    private final AtomicLong hits = new AtomicLong ();
+    private final AtomicLong misses = new AtomicLong ();
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the cached count for the key if fresh, otherwise counts with the given supplier and caches the
+      * count once it completes successfully.
+      */
+    CompletableFuture<Long> get
+        (   String                              key,
+            Supplier<CompletableFuture<Long>>   countSupplier
+        )
+    {
+        CachedCount cachedCount = this.cachedCounts.get (key);
+        
+        if (cachedCount != null && cachedCount.isFresh ())
+        {
+            this.hits.incrementAndGet ();
+            
+            return cachedCount.futureCount ();
+        }
+        
+        this.misses.incrementAndGet ();
+        
+        // Drop expired counts before adding, and everything if still full - counts are cheap to refetch
+        if (this.cachedCounts.size () >= this.maxEntries)
+        {
+            this.cachedCounts.values ().removeIf (count -> !count.isFresh ());
+            
+            if (this.cachedCounts.size () >= this.maxEntries)
+            {
+                this.cachedCounts.clear ();
+            }
+        }
+        
+        CompletableFuture<Long> futureCount = new CompletableFuture<> ();
+        
+        CachedCount newCount =
+            this.cachedCounts
+                .compute
+                    (   key,
+                        (ignored, existingCount) ->
+                            existingCount != null && existingCount.isFresh () // Being counted by another caller
+                                ?   existingCount
+                                :   new CachedCount
+                                        (   futureCount,
+                                            System.nanoTime () + this.timeToLive.toNanos ()
+                                        )
+                    );
+        
+        // Only the caller that added the entry fetches the count
+        if (newCount.futureCount () == futureCount)
+        {
+            CompletableFuture<Long> fetchedCount;
+            
+            try
+            {
+                fetchedCount = countSupplier.get ();
+            }
+            catch (RuntimeException exception)
+            {
+                fetchedCount = CompletableFuture.failedFuture (exception);
+            }
+            
+            fetchedCount
+                .whenComplete
+                    (   (count, exception) ->
+                        {
+                            if (exception != null)
+                            {
+                                this.cachedCounts.remove (key, newCount);
+                                futureCount.completeExceptionally (exception);
+                            }
+                            else
+                            {
+                                futureCount.complete (count);
+                            }
+                        }
+                    );
+        }
+        
+        return newCount.futureCount ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    public void clear ()
+    {
+        this.cachedCounts.clear ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    public long getHits () { return this.hits.get (); }
+    
+    public long getMisses () { return this.misses.get (); }
+    
+    //--------------------------------------------------------------
+    
+    public JSONObject getStatistics ()
+    {
+        return
+            new JSONObject ()
+                .put ("entries", this.cachedCounts.size ())
+                .put ("hits", this.getHits ())
+                .put ("misses", this.getMisses ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestCountCache
+        (   int         maxEntries,
+            Duration    timeToLive
+        )
+    {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,129 @@
+package uk.co.smithdmy;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+  * The row filters shared by a PostgrestQuery and the or/and groups within it. Each filter takes a column
+  * (which may be a column of an embedded resource, e.g. directors.name) and a value - either a literal,
+  * which is formatted and URL-encoded when the query is compiled, or a PostgrestQuery.Parameter, which is
+  * bound each time the compiled query is used.
+  */
+public abstract class PostgrestFilters<T extends PostgrestFilters<T>>
+{
+    //--------------------------------------------------------------
+    
+    // Adds the condition column op value - for in, the value is a collection or a parameter bound to one
+    abstract T addCondition
+        (   String  column,
+            String  operator,
+            Object  value
+        );
+    
+    // Adds a group of conditions combined with the operator (or/and)
+    abstract T addGroup
+        (   String                  operator,
+            PostgrestQuery.Group    group
+        );
+    
+    //--------------------------------------------------------------
+    
+    public T eq (String column, Object value) { return this.addCondition (column, "eq", value); }
+    
+    public T neq (String column, Object value) { return this.addCondition (column, "neq", value); }
+    
+    public T gt (String column, Object value) { return this.addCondition (column, "gt", value); }
+    
+    public T gte (String column, Object value) { return this.addCondition (column, "gte", value); }
+    
+    public T lt (String column, Object value) { return this.addCondition (column, "lt", value); }
+    
+    public T lte (String column, Object value) { return this.addCondition (column, "lte", value); }
+    
+    //--------------------------------------------------------------
+    
+    // Pattern matches use * as the wildcard, e.g. like ("title", "*Star*")
+    public T like (String column, Object pattern) { return this.addCondition (column, "like", pattern); }
+    
+    public T ilike (String column, Object pattern) { return this.addCondition (column, "ilike", pattern); }
+    
+    //--------------------------------------------------------------
+    
+    public T in
+        (   String          column,
+            Collection<?>   values
+        )
+    {
+        if (values.isEmpty ())
+        {
+            throw new IllegalArgumentException ("in () on " + column + " requires at least one value");
+        }
+        
+        return this.addCondition (column, "in", values);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public T in
+        (   String      column,
+            Object...   values
+        )
+    {
+        return this.in (column, List.of (values));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Binds the parameter to a collection of values each time the query is used
+    public T in
+        (   String                      column,
+            PostgrestQuery.Parameter    parameter
+        )
+    {
+        return this.addCondition (column, "in", parameter);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Filters on column IS NULL, TRUE or FALSE, for null, true or false respectively.
+      */
+    public T is
+        (   String      column,
+            Boolean     value
+        )
+    {
+        return this.addCondition (column, "is", String.valueOf (value));
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Adds a group of conditions of which any must hold, e.g. or (group -> group.lt ("id", 10).gt ("id", 90)).
+      */
+    public T or (Consumer<PostgrestQuery.Group> groupBuilder)
+    {
+        var group = new PostgrestQuery.Group ();
+        
+        groupBuilder.accept (group);
+        
+        return this.addGroup ("or", group);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Adds a group of conditions that must all hold - only needed within an or group.
+      */
+    public T and (Consumer<PostgrestQuery.Group> groupBuilder)
+    {
+        var group = new PostgrestQuery.Group ();
+        
+        groupBuilder.accept (group);
+        
+        return this.addGroup ("and", group);
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,241 @@
+package uk.co.smithdmy;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import lombok.Getter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatusCode;
+
+/**
+  * Pages through the results of a GET request by key rather than by offset: each page is ordered by a
+  * unique key column and filtered to the rows after the last key of the previous page, e.g.
+  * id=gt.120&order=id.asc&limit=100. Unlike limit/offset paging, the cost of a page does not grow with its
+  * depth, as the database seeks straight to the first row of the page instead of scanning past the rows
+  * before it, and rows inserted or deleted while paging do not shift later pages.
+  *
+  * Rows are iterated one at a time, with the next page fetched only once the rows of the current page run
+  * out - or, with prefetch, requested as soon as the current page arrives, so that it is fetched while the
+  * current page is processed. The wrapper's query string may filter the rows, but must not order or page
+  * them.
+  */
+public class PostgrestKeysetPaginator implements Iterable<JSONObject>
+{
+    //--------------------------------------------------------------
+    
+    private final PostgrestWrapper postgrestWrapper;
+    
+    // The column to order and filter by, which must be unique and not null, e.g. the primary key
+    @Getter
+    private final String keyColumn;
+    
+    // The property of each row holding the key, if not named the same as the column
+    @Getter
+    private final String keyProperty;
+    
+    @Getter
+    private final int pageSize;
+    
+    @Getter
+    private final boolean ascending;
+    
+    @Getter
+    private final boolean prefetch;
+    
+    //--------------------------------------------------------------
+    
+    // Returns a wrapper for requesting the page after the given key, or the first page if the key is null
+    PostgrestWrapper getPageWrapper (Object lastKey)
+    {
+        var queryString =
+            (   this.postgrestWrapper.getQueryString () == null
+                ?   ""
+                :   this.postgrestWrapper.getQueryString ().replaceFirst ("^\\?", "")
+            );
+        
+        var pageQueryString =
+                (queryString.isEmpty () ? "" : queryString + "&")
+            +   (   lastKey == null
+                    ?   ""
+                    :   PostgrestQuery.encode (this.keyColumn)
+                    +   (this.ascending ? "=gt." : "=lt.")
+                    +   PostgrestQuery.encode (lastKey.toString ())
+                    +   "&"
+                )
+            +   "order=" + PostgrestQuery.encode (this.keyColumn) + (this.ascending ? ".asc" : ".desc")
+            +   "&limit=" + this.pageSize;
+        
+        var pageWrapper = this.postgrestWrapper.copyWithQueryString (pageQueryString);
+        
+        // Pages are never counted - a total would cost a full count of the rows on every page
+        pageWrapper.setCountStrategy (CountStrategy.NONE);
+        
+        return pageWrapper;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Requests the page after the given key, completing with its rows
+    private CompletableFuture<JSONArray> fetchPageAsync (Object lastKey)
+    {
+        return
+            this.getPageWrapper (lastKey)
+                .getHttpResponseAsync ()
+                .thenApply
+                    (   pageResponse ->
+                        {
+                            int statusCode = pageResponse.getInt ("status_code");
+                            
+                            if (HttpStatusCode.valueOf (statusCode).isError ())
+                            {
+                                throw new PostgrestResponseException (statusCode, pageResponse.optJSONObject ("body"), null);
+                            }
+                            
+                            return pageResponse.optJSONArray ("body", new JSONArray ());
+                        }
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns an iterator over every row, in key order. Each iterator pages through the rows afresh.
+      *
+      * @throws PostgrestResponseException  From hasNext () or next (), if a page request fails
+      */
+    @Override
+    public Iterator<JSONObject> iterator ()
+    {
+        return new KeysetIterator ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    private class KeysetIterator implements Iterator<JSONObject>
+    {
+        //----------------------------------------------------------
+        
+        private JSONArray page;
+        private int position = 0;
+        
+        private Object lastKey = null;
+        private boolean lastPage = false;
+        
+        // The page requested but not yet iterated, or null if it has not been requested
+        private CompletableFuture<JSONArray> nextPage;
+        
+        //----------------------------------------------------------
+        
+        @Override
+        public boolean hasNext ()
+        {
+            while (this.page == null || this.position >= this.page.length ())
+            {
+                if (this.nextPage == null)
+                {
+                    if (this.lastPage)
+                    {
+                        return false;
+                    }
+                    
+                    this.nextPage = fetchPageAsync (this.lastKey);
+                }
+                
+                try
+                {
+                    this.page = this.nextPage.join ();
+                }
+                catch (CompletionException exception)
+                {
+                    throw
+                        (   exception.getCause () instanceof PostgrestResponseException responseException
+                            ?   responseException
+                            :   new PostgrestResponseException (500, null, exception.getCause ())
+                        );
+                }
+                finally
+                {
+                    this.nextPage = null;
+                }
+                
+                this.position = 0;
+                
+                // A short page is the last, so there is no need to request an empty page after it
+                this.lastPage = (this.page.length () < pageSize);
+                
+                if (!this.page.isEmpty ())
+                {
+                    this.lastKey = this.page.getJSONObject (this.page.length () - 1).get (keyProperty);
+                }
+                
+                if (prefetch && !this.lastPage)
+                {
+                    this.nextPage = fetchPageAsync (this.lastKey);
+                }
+            }
+            
+            return true;
+        }
+        
+        //----------------------------------------------------------
+        
+        @Override
+        public JSONObject next ()
+        {
+            if (!this.hasNext ())
+            {
+                throw new NoSuchElementException ();
+            }
+            
+            return this.page.getJSONObject (this.position++);
+        }
+        
+        //----------------------------------------------------------
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestKeysetPaginator
+        (   PostgrestWrapper    postgrestWrapper,
+            String              keyColumn,
+            String              keyProperty,
+            int                 pageSize,
+            boolean             ascending,
+            boolean             prefetch
+        )
+    {
+        if (pageSize < 1)
+        {
+            throw new IllegalArgumentException ("Page size must be at least 1");
+        }
+        
+        this.postgrestWrapper = postgrestWrapper;
+        this.keyColumn = keyColumn;
+        this.keyProperty = keyProperty;
+        this.pageSize = pageSize;
+        this.ascending = ascending;
+        this.prefetch = prefetch;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Pages in ascending order of the key column, whose property in each row has the same name, prefetching
+      * each next page.
+      */
+    public PostgrestKeysetPaginator
+        (   PostgrestWrapper    postgrestWrapper,
+            String              keyColumn,
+            int                 pageSize
+        )
+    {
+        this (postgrestWrapper, keyColumn, keyColumn, pageSize, true, true);
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,185 @@
+package uk.co.smithdmy;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+  * An in-memory PostgrestMetricsListener, keeping a latency histogram and counters for each combination of
+  * request method and resource (endpoint), which may be shared between wrappers. Recording is lock-free,
+  * so the overhead on each request is a few atomic updates.
+  */
+public class PostgrestMetrics implements PostgrestMetricsListener
+{
+    //--------------------------------------------------------------
+    
+    /**
+      * The metrics of one endpoint - a request method and resource, e.g. GET movies.
+      */
+    public static class EndpointMetrics
+    {
+        private final LatencyHistogram latencyHistogram = new LatencyHistogram ();
+        
+        private final Map<Integer, LongAdder> statusCodeCounts = new ConcurrentHashMap<> ();
+        
+        private final AtomicLong inFlightRequests = new AtomicLong ();
+        
+        private final LongAdder failures = new LongAdder ();
+        private final LongAdder bytesSent = new LongAdder ();
+        private final LongAdder bytesReceived = new LongAdder ();
+        private final LongAdder rowsReturned = new LongAdder ();
+        private final LongAdder retries = new LongAdder ();
+        
+        //----------------------------------------------------------
+        
+        public LatencyHistogram getLatencyHistogram () { return this.latencyHistogram; }
+        
+        public long getRequests () { return this.latencyHistogram.getCount (); }
+        
+        public long getInFlightRequests () { return this.inFlightRequests.get (); }
+        
+        // Requests for which no response was received
+        public long getFailures () { return this.failures.sum (); }
+        
+        public long getBytesSent () { return this.bytesSent.sum (); }
+        
+        public long getBytesReceived () { return this.bytesReceived.sum (); }
+        
+        public long getRowsReturned () { return this.rowsReturned.sum (); }
+        
+        public long getRetries () { return this.retries.sum (); }
+        
+        //----------------------------------------------------------
+        
+        public long getStatusCodeCount (int statusCode)
+        {
+            LongAdder statusCodeCount = this.statusCodeCounts.get (statusCode);
+            
+            return (statusCodeCount == null ? 0 : statusCodeCount.sum ());
+        }
+        
+        //----------------------------------------------------------
+        
+        public JSONObject getStatistics ()
+        {
+            JSONObject statusCodes = new JSONObject ();
+            
+            for (Map.Entry<Integer, LongAdder> statusCodeCount : new TreeMap<> (this.statusCodeCounts).entrySet ())
+            {
+                statusCodes.put (statusCodeCount.getKey ().toString (), statusCodeCount.getValue ().sum ());
+            }
+            
+            return
+                new JSONObject ()
+                    .put ("requests", this.getRequests ())
+                    .put ("in_flight", this.getInFlightRequests ())
+                    .put ("failures", this.getFailures ())
+                    .put ("status_codes", statusCodes)
+                    .put ("bytes_sent", this.getBytesSent ())
+                    .put ("bytes_received", this.getBytesReceived ())
+                    .put ("rows_returned", this.getRowsReturned ())
+                    .put ("retries", this.getRetries ())
+                    .put ("latency", this.latencyHistogram.getStatistics ());
+        }
+    };
+    
+    //--------------------------------------------------------------
+    
+    private final Map<String, EndpointMetrics> endpointMetrics = new ConcurrentHashMap<> ();
+    
+    //--------------------------------------------------------------
+    
+    private static String getEndpoint
+        (   String          resource,
+            RequestMethod   requestMethod
+        )
+    {
+        return requestMethod + " " + resource;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the metrics of the endpoint, which are created (empty) if no request has been made to it yet.
+      */
+    public EndpointMetrics getEndpointMetrics
+        (   String          resource,
+            RequestMethod   requestMethod
+        )
+    {
+        return this.endpointMetrics.computeIfAbsent (getEndpoint (resource, requestMethod), endpoint -> new EndpointMetrics ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    public void requestStarted
+        (   String          resource,
+            RequestMethod   requestMethod
+        )
+    {
+        this.getEndpointMetrics (resource, requestMethod).inFlightRequests.incrementAndGet ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    public void requestCompleted (PostgrestRequestMetrics requestMetrics)
+    {
+        EndpointMetrics endpointMetrics = this.getEndpointMetrics (requestMetrics.resource (), requestMetrics.requestMethod ());
+        
+        endpointMetrics.inFlightRequests.decrementAndGet ();
+        endpointMetrics.latencyHistogram.recordNanos (requestMetrics.latencyNanos ());
+        
+        if (requestMetrics.exception () != null)
+        {
+            endpointMetrics.failures.increment ();
+        }
+        else
+        {
+            endpointMetrics.statusCodeCounts
+                .computeIfAbsent (requestMetrics.statusCode (), statusCode -> new LongAdder ())
+                .increment ();
+        }
+        
+        endpointMetrics.bytesSent.add (requestMetrics.bytesSent ());
+        endpointMetrics.bytesReceived.add (requestMetrics.bytesReceived ());
+        endpointMetrics.rowsReturned.add (requestMetrics.rowsReturned ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    public void requestRetried
+        (   String          resource,
+            RequestMethod   requestMethod,
+            int             attempt
+        )
+    {
+        this.getEndpointMetrics (resource, requestMethod).retries.increment ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the statistics of every endpoint requested, keyed on method and resource, e.g. GET movies.
+      */
+    public JSONObject getStatistics ()
+    {
+        JSONObject statistics = new JSONObject ();
+        
+        for (Map.Entry<String, EndpointMetrics> endpointMetrics : new TreeMap<> (this.endpointMetrics).entrySet ())
+        {
+            statistics.put (endpointMetrics.getKey (), endpointMetrics.getValue ().getStatistics ());
+        }
+        
+        return statistics;
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,47 @@
+package uk.co.smithdmy;
+
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+  * Receives metrics for every request a wrapper sends upstream, when set on the wrapper. Responses served
+  * from a response cache or shared by request coalescing are not sent upstream, so are not reported -
+  * see the cache's and coalescer's own statistics for those.
+  *
+  * Listeners are called on the threads completing the requests, so must be thread-safe and quick. Every
+  * method has an empty default, so implementations need only override those they use. PostgrestMetrics
+  * is an in-memory implementation.
+  */
+public interface PostgrestMetricsListener
+{
+    //--------------------------------------------------------------
+    
+    // Called as the request is sent - followed by exactly one call to requestCompleted ()
+    default void requestStarted
+        (   String          resource,
+            RequestMethod   requestMethod
+        )
+    {
+    
+    }
+    
+    //--------------------------------------------------------------
+    
+    default void requestCompleted (PostgrestRequestMetrics requestMetrics)
+    {
+    
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Called before a failed request is sent again - each attempt is also reported as a request of its own
+    default void requestRetried
+        (   String          resource,
+            RequestMethod   requestMethod,
+            int             attempt
+        )
+    {
+    
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,269 @@
+package uk.co.smithdmy;
+
+import java.net.HttpURLConnection;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import lombok.Getter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatusCode;
+
+/**
+  * Pages through the results of a GET request using limit/offset query parameters. The first page is
+  * fetched on its own to learn the total row count from its Content-Range header, then the remaining
+  * pages are fetched in parallel, with no more than maxConcurrency requests in flight at once.
+  *
+  * The wrapper's query string should include an order parameter so that the pages are consistent.
+  */
+public class PostgrestPaginator
+{
+    //--------------------------------------------------------------
+    
+    private Log log = LogFactory.getLog (this.getClass ());
+    
+    //--------------------------------------------------------------
+    
+    private final PostgrestWrapper postgrestWrapper;
+    
+    @Getter
+    private final int pageSize;
+    
+    @Getter
+    private final int maxConcurrency;
+    
+    //--------------------------------------------------------------
+    
+    // Returns a wrapper for requesting the given page (zero-based) of results
+    private PostgrestWrapper getPageWrapper (int page)
+    {
+        var queryString =
+            (   this.postgrestWrapper.getQueryString () == null
+                ?   ""
+                :   this.postgrestWrapper.getQueryString ().replaceFirst ("^\\?", "")
+            );
+        
+        var pageQueryString =
+                (queryString.isEmpty () ? "" : queryString + "&")
+            +   "limit=" + this.pageSize
+            +   "&offset=" + ((long) page * this.pageSize);
+        
+        return this.postgrestWrapper.copyWithQueryString (pageQueryString);
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static boolean isError (JSONObject pageResponse)
+    {
+        return HttpStatusCode.valueOf (pageResponse.getInt ("status_code")).isError ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static int getRowCount (JSONObject pageResponse)
+    {
+        return
+            (   pageResponse.optJSONArray ("body") == null
+                ?   0
+                :   pageResponse.getJSONArray ("body").length ()
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Fetches every page and passes each page's API response to the page consumer, on the calling thread,
+      * as the pages complete - so pages after the first are not necessarily passed in page order.
+      * Stops requesting further pages on the first error response, which is then returned. Otherwise
+      * returns a summary of the pages fetched.
+      *
+      * @param  pageConsumer  Called with the page number (zero-based) and API response of each page
+      */
+    public JSONObject forEachPage (BiConsumer<Integer, JSONObject> pageConsumer)
+    {
+        JSONObject firstPageResponse = this.getPageWrapper (0).getHttpResponse ();
+        
+        if (isError (firstPageResponse))
+        {
+            return firstPageResponse;
+        }
+        
+        pageConsumer.accept (0, firstPageResponse);
+        
+        int recordCount = firstPageResponse.optInt ("record_count", 0);
+        int pagesFetched = 1;
+        
+        // Total unknown (e.g. a Content-Range of 0-9/*), so fetch pages one at a time until a short page
+        if (recordCount == 0)
+        {
+            JSONObject pageResponse = firstPageResponse;
+            
+            while (getRowCount (pageResponse) == this.pageSize)
+            {
+                pageResponse = this.getPageWrapper (pagesFetched).getHttpResponse ();
+                
+                if (isError (pageResponse))
+                {
+                    return pageResponse;
+                }
+                
+                pageConsumer.accept (pagesFetched++, pageResponse);
+            }
+            
+            return
+                new JSONObject ()
+                    .put ("status_code", firstPageResponse.getInt ("status_code"))
+                    .put ("pages", pagesFetched);
+        }
+        
+        int pageCount = (int) ((recordCount + (long) this.pageSize - 1) / this.pageSize);
+        
+        if (log.isDebugEnabled ())
+        {
+            log.debug ("Fetching " + pageCount + " pages of " + this.pageSize + " rows");
+        }
+        
+        // Remaining pages are queued as they complete, to be passed to the consumer on this thread
+        BlockingQueue<Map.Entry<Integer, JSONObject>> completedPages = new LinkedBlockingQueue<> ();
+        Semaphore concurrencyPermits = new Semaphore (this.maxConcurrency);
+        
+        JSONObject errorResponse = null;
+        int pagesRequested = 1;
+        
+        try
+        {
+            while (pagesFetched < pageCount)
+            {
+                // Dispatch as many pages as the concurrency cap allows, unless an error has been returned
+                while  (   errorResponse == null
+                           &&
+                           pagesRequested < pageCount
+                           &&
+                           concurrencyPermits.tryAcquire ()
+                       )
+                {
+                    final int page = pagesRequested++;
+                    
+                    this.getPageWrapper (page)
+                        .getHttpResponseAsync ()
+                        .whenComplete
+                            (   (pageResponse, exception) ->
+                                {
+                                    concurrencyPermits.release ();
+                                    completedPages.add
+                                        (   new AbstractMap.SimpleEntry<>
+                                                (   page,
+                                                    exception == null
+                                                        ?   pageResponse
+                                                        :   new JSONObject ().put ("status_code", HttpURLConnection.HTTP_INTERNAL_ERROR)
+                                                )
+                                        );
+                                }
+                            );
+                }
+                
+                if (pagesFetched == pagesRequested) // Nothing left in flight after an error
+                {
+                    break;
+                }
+                
+                var completedPage = completedPages.take ();
+                pagesFetched++;
+                
+                if (isError (completedPage.getValue ()))
+                {
+                    errorResponse = (errorResponse == null ? completedPage.getValue () : errorResponse);
+                    continue;
+                }
+                
+                if (errorResponse == null)
+                {
+                    pageConsumer.accept (completedPage.getKey (), completedPage.getValue ());
+                }
+            }
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread ().interrupt ();
+            
+            throw new IllegalStateException ("Interrupted while fetching pages", exception);
+        }
+        
+        if (errorResponse != null)
+        {
+            return errorResponse;
+        }
+        
+        return
+            new JSONObject ()
+                .put ("status_code", firstPageResponse.getInt ("status_code"))
+                .put ("pages", pagesFetched)
+                .put ("record_count", recordCount);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Fetches every page and reassembles the rows, in page order, into a single API response shaped like
+      * that of PostgrestWrapper.getHttpResponse(). Returns the first error response if any page fails.
+      */
+    public JSONObject fetchAll ()
+    {
+        Map<Integer, JSONArray> pageBodies = new TreeMap<> ();
+        
+        JSONObject summaryResponse =
+            this.forEachPage
+                (   (page, pageResponse) ->
+                        pageBodies.put (page, pageResponse.getJSONArray ("body"))
+                );
+        
+        if (isError (summaryResponse))
+        {
+            return summaryResponse;
+        }
+        
+        JSONArray body = new JSONArray ();
+        
+        for (JSONArray pageBody : pageBodies.values ())
+        {
+            body.putAll (pageBody);
+        }
+        
+        return
+            new JSONObject ()
+                .put ("status_code", summaryResponse.getInt ("status_code"))
+                .put ("body", body)
+                .put ("record_from", body.isEmpty () ? 0 : 1)
+                .put ("record_to", body.length ())
+                .put ("record_count", summaryResponse.optInt ("record_count", body.length ()));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestPaginator
+        (   PostgrestWrapper    postgrestWrapper,
+            int                 pageSize,
+            int                 maxConcurrency
+        )
+    {
+        if (pageSize < 1 || maxConcurrency < 1)
+        {
+            throw new IllegalArgumentException ("Page size and maximum concurrency must both be at least 1");
+        }
+        
+        this.postgrestWrapper = postgrestWrapper;
+        this.pageSize = pageSize;
+        this.maxConcurrency = maxConcurrency;
+    }
+    
+    //--------------------------------------------------------------
+}
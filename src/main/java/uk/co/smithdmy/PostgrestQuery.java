@@ -0,0 +1,645 @@
+package uk.co.smithdmy;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+  * Builds a PostgREST query string - columns to select, row filters, ordering and paging - without any
+  * string concatenation or URL encoding by the caller, e.g.
+  *
+  *     new PostgrestQuery ().gte ("running_mins", 130).order ("title", false).limit (10)
+  *
+  * Columns are validated as they are added, so a malformed query fails before it is sent. The query is
+  * compiled once into a Compiled query string; values given as parameters, e.g. eq ("id", param ("id")),
+  * are left as slots in it to be bound on each use, so a query can be built once and reused for every call.
+  */
+public final class PostgrestQuery extends PostgrestFilters<PostgrestQuery>
+{
+    //--------------------------------------------------------------
+    
+    // A value bound each time the compiled query is used
+    public record Parameter (String name)
+    {
+    
+    };
+    
+    //--------------------------------------------------------------
+    
+    // Where a parameter's value goes - within an or/and group or an in list, values containing PostgREST's
+    // reserved characters must be double-quoted
+    private record Slot
+        (   String      name,
+            boolean     quoted,
+            boolean     list
+        )
+    {
+    
+    };
+    
+    //--------------------------------------------------------------
+    
+    // Characters that may not appear in a column, as they delimit the query string or the filter syntax
+    private static final Pattern INVALID_COLUMN_PATTERN = Pattern.compile ("[\\s=&?#,()\"]");
+    
+    // Characters that may not appear in a select column, as they delimit the query string - others are encoded
+    private static final Pattern INVALID_SELECT_PATTERN = Pattern.compile ("[\\s=&?#]");
+    
+    // Characters that require a value to be quoted within a group or list
+    private static final Pattern RESERVED_VALUE_PATTERN = Pattern.compile ("[\\s,.:()\"\\\\]");
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * A query string fragment - literal, already encoded text interspersed with parameter slots.
+      */
+    static final class Fragment
+    {
+        //----------------------------------------------------------
+        
+        private final List<Object> parts = new ArrayList<> ();
+        
+        //----------------------------------------------------------
+        
+        Fragment append (String literal)
+        {
+            int last = this.parts.size () - 1;
+            
+            // Merge adjacent literals, so that compiled queries have as few parts as possible
+            if (last >= 0 && this.parts.get (last) instanceof String previous)
+            {
+                this.parts.set (last, previous + literal);
+            }
+            else
+            {
+                this.parts.add (literal);
+            }
+            
+            return this;
+        }
+        
+        //----------------------------------------------------------
+        
+        Fragment append (Fragment fragment)
+        {
+            for (Object part : fragment.parts)
+            {
+                if (part instanceof String literal)
+                {
+                    this.append (literal);
+                }
+                else
+                {
+                    this.parts.add (part);
+                }
+            }
+            
+            return this;
+        }
+        
+        //----------------------------------------------------------
+        
+        Fragment appendValue
+            (   Object      value,
+                boolean     quoted,
+                boolean     list
+            )
+        {
+            if (value instanceof Parameter parameter)
+            {
+                this.parts.add (new Slot (parameter.name (), quoted, list));
+                
+                return this;
+            }
+            
+            return this.append (formatValue (value, quoted, list));
+        }
+        
+        //----------------------------------------------------------
+        
+        boolean isEmpty () { return this.parts.isEmpty (); }
+        
+        //----------------------------------------------------------
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * A group of conditions combined with or/and. Within a group, values are quoted where PostgREST
+      * requires it, so any value may be used.
+      */
+    public static final class Group extends PostgrestFilters<Group>
+    {
+        //----------------------------------------------------------
+        
+        private final List<Fragment> conditions = new ArrayList<> ();
+        
+        //----------------------------------------------------------
+        
+        @Override
+        Group addCondition
+            (   String  column,
+                String  operator,
+                Object  value
+            )
+        {
+            this.conditions.add
+                (   new Fragment ()
+                        .append (encode (checkColumn (column)) + "." + operator + ".")
+                        .appendValue (value, true, operator.equals ("in"))
+                );
+            
+            return this;
+        }
+        
+        //----------------------------------------------------------
+        
+        @Override
+        Group addGroup
+            (   String  operator,
+                Group   group
+            )
+        {
+            this.conditions.add (new Fragment ().append (operator).append (group.toFragment ()));
+            
+            return this;
+        }
+        
+        //----------------------------------------------------------
+        
+        // Returns the conditions as (condition,condition,...)
+        Fragment toFragment ()
+        {
+            if (this.conditions.isEmpty ())
+            {
+                throw new IllegalArgumentException ("An or/and group requires at least one condition");
+            }
+            
+            var fragment = new Fragment ().append ("(");
+            
+            for (int idx = 0; idx < this.conditions.size (); idx++)
+            {
+                fragment.append (idx == 0 ? "" : ",").append (this.conditions.get (idx));
+            }
+            
+            return fragment.append (")");
+        }
+        
+        //----------------------------------------------------------
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * The compiled, immutable form of a query, which can be shared between threads. If the query has
+      * parameters, each use binds values to them; otherwise getQueryString () returns the query string as is.
+      */
+    public static final class Compiled
+    {
+        //----------------------------------------------------------
+        
+        // Literal text before each slot, with the text after the last slot at the end
+        private final String[] literals;
+        private final Slot[] slots;
+        
+        private final List<String> parameterNames;
+        
+        //----------------------------------------------------------
+        
+        // Names of the parameters, in the order they first appear in the query
+        public List<String> getParameterNames () { return this.parameterNames; }
+        
+        //----------------------------------------------------------
+        
+        public String getQueryString ()
+        {
+            if (this.slots.length > 0)
+            {
+                throw new IllegalStateException ("Query has unbound parameters " + this.parameterNames);
+            }
+            
+            return this.literals[0];
+        }
+        
+        //----------------------------------------------------------
+        
+        /**
+          * Returns the query string with the given values bound to the parameters by name.
+          */
+        public String bind (Map<String, ?> values)
+        {
+            var queryString = new StringBuilder (this.literals[0]);
+            
+            for (int idx = 0; idx < this.slots.length; idx++)
+            {
+                Slot slot = this.slots[idx];
+                
+                if (!values.containsKey (slot.name ()))
+                {
+                    throw new IllegalArgumentException ("No value bound to query parameter " + slot.name ());
+                }
+                
+                queryString
+                    .append (formatValue (values.get (slot.name ()), slot.quoted (), slot.list ()))
+                    .append (this.literals[idx + 1]);
+            }
+            
+            return queryString.toString ();
+        }
+        
+        //----------------------------------------------------------
+        
+        /**
+          * Returns the query string with the given values bound to the parameters in the order of
+          * getParameterNames ().
+          */
+        public String bind (Object... values)
+        {
+            if (values.length != this.parameterNames.size ())
+            {
+                throw new IllegalArgumentException ("Query has " + this.parameterNames.size () + " parameters but " + values.length + " values were given");
+            }
+            
+            Map<String, Object> namedValues = new LinkedHashMap<> ();
+            
+            for (int idx = 0; idx < values.length; idx++)
+            {
+                namedValues.put (this.parameterNames.get (idx), values[idx]);
+            }
+            
+            return this.bind (namedValues);
+        }
+        
+        //----------------------------------------------------------
+        
+        // The query string with :name in place of each parameter
+        @Override
+        public String toString ()
+        {
+            var queryString = new StringBuilder (this.literals[0]);
+            
+            for (int idx = 0; idx < this.slots.length; idx++)
+            {
+                queryString.append (':').append (this.slots[idx].name ()).append (this.literals[idx + 1]);
+            }
+            
+            return queryString.toString ();
+        }
+        
+        //----------------------------------------------------------
+        
+        // CONSTRUCTOR
+        private Compiled (Fragment fragment)
+        {
+            List<String> literalList = new ArrayList<> ();
+            List<Slot> slotList = new ArrayList<> ();
+            Set<String> parameterNameSet = new LinkedHashSet<> ();
+            
+            String literal = "";
+            
+            for (Object part : fragment.parts)
+            {
+                if (part instanceof Slot slot)
+                {
+                    literalList.add (literal);
+                    slotList.add (slot);
+                    parameterNameSet.add (slot.name ());
+                    
+                    literal = "";
+                }
+                else
+                {
+                    literal = (String) part;
+                }
+            }
+            
+            literalList.add (literal);
+            
+            this.literals = literalList.toArray (new String[0]);
+            this.slots = slotList.toArray (new Slot[0]);
+            this.parameterNames = List.copyOf (parameterNameSet);
+        }
+        
+        //----------------------------------------------------------
+    }
+    
+    //--------------------------------------------------------------
+    
+    private final List<String> selectColumns = new ArrayList<> ();
+    private final List<Fragment> filters = new ArrayList<> ();
+    private final List<String> orderColumns = new ArrayList<> ();
+    
+    private Integer limit;
+    private Long offset;
+    
+    // Compiled on first use, and discarded whenever the query changes
+    private Compiled compiled;
+    
+    //--------------------------------------------------------------
+    
+    public static Parameter param (String name)
+    {
+        return new Parameter (name);
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static String checkColumn (String column)
+    {
+        if (column == null || column.isEmpty () || INVALID_COLUMN_PATTERN.matcher (column).find ())
+        {
+            throw new IllegalArgumentException ("Invalid column in query: \"" + column + "\"");
+        }
+        
+        return column;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Percent-encodes the text for a query string, with spaces as %20 rather than +
+    static String encode (String text)
+    {
+        return URLEncoder.encode (text, StandardCharsets.UTF_8).replace ("+", "%20");
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Percent-encodes a select list for a query string, e.g. for JSON paths such as data->>name or quoted
+      * columns, leaving the commas, colons and parentheses of the select syntax as they are.
+      */
+    static String encodeSelect (String select)
+    {
+        return
+            encode (select)
+                .replace ("%2C", ",")
+                .replace ("%3A", ":")
+                .replace ("%28", "(")
+                .replace ("%29", ")");
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static String formatValue
+        (   Object      value,
+            boolean     quoted,
+            boolean     list
+        )
+    {
+        if (list)
+        {
+            if (!(value instanceof Collection<?> values) || values.isEmpty ())
+            {
+                throw new IllegalArgumentException ("in () requires a non-empty collection of values, not " + value);
+            }
+            
+            var formattedValues = new StringBuilder ("(");
+            
+            for (Object listValue : values)
+            {
+                formattedValues
+                    .append (formattedValues.length () == 1 ? "" : ",")
+                    .append (formatValue (listValue, true, false));
+            }
+            
+            return formattedValues.append (")").toString ();
+        }
+        
+        if (value == null)
+        {
+            throw new IllegalArgumentException ("Filter values may not be null - use is () to filter on null");
+        }
+        
+        String text = value.toString ();
+        
+        if (quoted && RESERVED_VALUE_PATTERN.matcher (text).find ())
+        {
+            text = "\"" + text.replace ("\\", "\\\\").replace ("\"", "\\\"") + "\"";
+        }
+        
+        return encode (text);
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    PostgrestQuery addCondition
+        (   String  column,
+            String  operator,
+            Object  value
+        )
+    {
+        this.filters.add
+            (   new Fragment ()
+                    .append (encode (checkColumn (column)) + "=" + operator + ".")
+                    .appendValue (value, operator.equals ("in"), operator.equals ("in"))
+            );
+        
+        this.compiled = null;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    PostgrestQuery addGroup
+        (   String  operator,
+            Group   group
+        )
+    {
+        this.filters.add (new Fragment ().append (operator + "=").append (group.toFragment ()));
+        
+        this.compiled = null;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the columns as the value of a select= parameter, e.g. id,title,directors(name), checking that
+      * each is a column, * or a column from alias () or embed ().
+      */
+    public static String selectList (String... columns)
+    {
+        if (columns.length == 0)
+        {
+            throw new IllegalArgumentException ("At least one column must be selected");
+        }
+        
+        for (String column : columns)
+        {
+            if (column == null || column.isEmpty () || INVALID_SELECT_PATTERN.matcher (column).find ())
+            {
+                throw new IllegalArgumentException ("Invalid select column: \"" + column + "\"");
+            }
+        }
+        
+        return String.join (",", columns);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the column renamed to the alias in the response, e.g. alias ("name", "title") for name:title
+    public static String alias
+        (   String  alias,
+            String  column
+        )
+    {
+        return checkColumn (alias) + ":" + column;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns an embedded resource with the given columns (or all of them if none are given), e.g.
+      * embed ("directors", "name") for directors(name). Columns may themselves be aliased or embedded.
+      */
+    public static String embed
+        (   String      resource,
+            String...   columns
+        )
+    {
+        return checkColumn (resource) + "(" + (columns.length == 0 ? "*" : selectList (columns)) + ")";
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Selects the given columns, rather than all of them - see selectList ().
+      */
+    public PostgrestQuery select (String... columns)
+    {
+        this.selectColumns.add (selectList (columns));
+        
+        this.compiled = null;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Orders by the column - calls after the first add further columns to order by
+    public PostgrestQuery order
+        (   String      column,
+            boolean     ascending
+        )
+    {
+        this.orderColumns.add (encode (checkColumn (column)) + (ascending ? ".asc" : ".desc"));
+        
+        this.compiled = null;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestQuery order (String column)
+    {
+        return this.order (column, true);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestQuery limit (int limit)
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException ("Query limit may not be negative");
+        }
+        
+        this.limit = limit;
+        this.compiled = null;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestQuery offset (long offset)
+    {
+        if (offset < 0)
+        {
+            throw new IllegalArgumentException ("Query offset may not be negative");
+        }
+        
+        this.offset = offset;
+        this.compiled = null;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Compiles the query, or returns the query compiled by a previous call if it has not changed since.
+      */
+    public Compiled compile ()
+    {
+        if (this.compiled != null)
+        {
+            return this.compiled;
+        }
+        
+        List<Fragment> parameters = new ArrayList<> ();
+        
+        if (!this.selectColumns.isEmpty ())
+        {
+            parameters.add (new Fragment ().append ("select=" + encodeSelect (String.join (",", this.selectColumns))));
+        }
+        
+        parameters.addAll (this.filters);
+        
+        if (!this.orderColumns.isEmpty ())
+        {
+            parameters.add (new Fragment ().append ("order=" + String.join (",", this.orderColumns)));
+        }
+        
+        if (this.limit != null)
+        {
+            parameters.add (new Fragment ().append ("limit=" + this.limit));
+        }
+        
+        if (this.offset != null)
+        {
+            parameters.add (new Fragment ().append ("offset=" + this.offset));
+        }
+        
+        var queryString = new Fragment ();
+        
+        for (Fragment parameter : parameters)
+        {
+            queryString.append (queryString.isEmpty () ? "" : "&").append (parameter);
+        }
+        
+        this.compiled = new Compiled (queryString);
+        
+        return this.compiled;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // The compiled query string - the query must not have parameters
+    public String toQueryString ()
+    {
+        return this.compile ().getQueryString ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    public String toString ()
+    {
+        return this.compile ().toString ();
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,23 @@
+package uk.co.smithdmy;
+
+/**
+  * Fails a request that was never sent upstream because the wrapper shed it - e.g. because a concurrency
+  * limit was reached. getHttpResponse () returns these as a synthetic 503 Service Unavailable response,
+  * rather than the synthetic 500 returned for requests that failed upstream.
+  */
+public class PostgrestRejectedException extends RuntimeException
+{
+    //--------------------------------------------------------------
+    
+    private static final long serialVersionUID = 1L;
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestRejectedException (String message)
+    {
+        super (message);
+    }
+    
+    //--------------------------------------------------------------
+}
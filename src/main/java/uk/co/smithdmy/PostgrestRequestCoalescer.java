@@ -0,0 +1,119 @@
+package uk.co.smithdmy;
+
+import java.net.http.HttpRequest;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+/**
+  * Coalesces identical GET and HEAD requests that are in flight at the same time (single-flight), so that
+  * concurrent callers share one upstream request and one parsed API response.
+  * 
+  * Requests are only identical if their method, full URI and every header (including Authorization)
+  * match, so callers with different credentials never share a response. Each caller receives its own
+  * copy of the top level of the API response, but the parsed body is shared and should not be modified.
+  */
+public class PostgrestRequestCoalescer
+{
+    //--------------------------------------------------------------
+    
+    private final Map<String, CompletableFuture<JSONObject>> inFlightRequests = new ConcurrentHashMap<> ();
+    
+    private final AtomicLong upstreamRequests = new AtomicLong ();
+    private final AtomicLong coalescedRequests = new AtomicLong ();
+    
+    //--------------------------------------------------------------
+    
+    static String getKey (HttpRequest httpRequest)
+    {
+        // HttpHeaders.map () is sorted case-insensitively by name, so equal header sets give equal keys
+        return
+                httpRequest.method ()
+            +   " "
+            +   httpRequest.uri ().toString ()
+            +   "\n"
+            +   httpRequest.headers ().map ().toString ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static JSONObject copyApiResponse (JSONObject apiResponse)
+    {
+        return
+            (   apiResponse.isEmpty ()
+                ?   new JSONObject ()
+                :   new JSONObject (apiResponse, JSONObject.getNames (apiResponse))
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the in-flight API response for the key if there is one, otherwise starts the request with
+      * the supplier and shares its API response with any identical requests made before it completes.
+      * 
+      * @param  key              Identifies identical requests - see getKey ()
+      * @param  requestSupplier  Sends the request and returns its future API response
+      */
+    public CompletableFuture<JSONObject> execute
+        (   String                                  key,
+            Supplier<CompletableFuture<JSONObject>> requestSupplier
+        )
+    {
+        CompletableFuture<JSONObject> sharedResponse = new CompletableFuture<> ();
+        CompletableFuture<JSONObject> inFlightResponse = this.inFlightRequests.putIfAbsent (key, sharedResponse);
+        
+        if (inFlightResponse != null)
+        {
+            this.coalescedRequests.incrementAndGet ();
+            
+            return inFlightResponse.thenApply (PostgrestRequestCoalescer::copyApiResponse);
+        }
+        
+        this.upstreamRequests.incrementAndGet ();
+        
+        try
+        {
+            requestSupplier
+                .get ()
+                .whenComplete
+                    (   (apiResponse, exception) ->
+                        {
+                            // Remove before completing, so that later requests are not given a completed response
+                            this.inFlightRequests.remove (key, sharedResponse);
+                            
+                            if (exception != null)
+                            {
+                                sharedResponse.completeExceptionally (exception);
+                            }
+                            else
+                            {
+                                sharedResponse.complete (apiResponse);
+                            }
+                        }
+                    );
+        }
+        catch (RuntimeException exception)
+        {
+            this.inFlightRequests.remove (key, sharedResponse);
+            
+            sharedResponse.completeExceptionally (exception);
+        }
+        
+        return sharedResponse.thenApply (PostgrestRequestCoalescer::copyApiResponse);
+    }
+    
+    //--------------------------------------------------------------
+    
+    public int getInFlightRequests () { return this.inFlightRequests.size (); }
+    
+    public long getUpstreamRequests () { return this.upstreamRequests.get (); }
+    
+    public long getCoalescedRequests () { return this.coalescedRequests.get (); }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,30 @@
+package uk.co.smithdmy;
+
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+  * The metrics of a single request sent upstream, as passed to PostgrestMetricsListener.requestCompleted ().
+  *
+  * @param  resource       The resource requested, as set on the wrapper, e.g. movies
+  * @param  requestMethod  The method of the request actually sent
+  * @param  statusCode     The response status code, or 0 if no response was received
+  * @param  latencyNanos   From sending the request until the response body was received - or, when the body
+  *                        is streamed, until the response headers were received
+  * @param  bytesSent      The length of the request body
+  * @param  bytesReceived  The length of the response body, or its Content-Length if it is streamed
+  * @param  rowsReturned   The number of rows returned, from the Content-Range header - 0 if there was none
+  * @param  exception      The failure if no response was received, otherwise null
+  */
+public record PostgrestRequestMetrics
+    (   String          resource,
+        RequestMethod   requestMethod,
+        int             statusCode,
+        long            latencyNanos,
+        long            bytesSent,
+        long            bytesReceived,
+        long            rowsReturned,
+        Throwable       exception
+    )
+{
+
+};
@@ -0,0 +1,320 @@
+package uk.co.smithdmy;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+  * An immutable, compiled form of the parts of a PostgREST request that do not change from call to call -
+  * the resource URI, columns selected, method, schema profile, Prefer header, authorisation and any
+  * additional headers. HTTP requests are created from it with only the query string and body varying, so a template can be
+  * shared freely between threads.
+  */
+@ToString (onlyExplicitlyIncluded = true)
+public final class PostgrestRequestTemplate
+{
+    //--------------------------------------------------------------
+    
+    record RequestMethodProperties
+        (   boolean         bodyExpected,
+            boolean         countExpected,
+            String          responseReturn,
+            String          profileType
+        )
+    {
+        
+    };
+    
+    //--------------------------------------------------------------
+    
+    static final Map<RequestMethod, RequestMethodProperties> REQUEST_METHODS =
+        Map.of
+            (   RequestMethod.DELETE,   new RequestMethodProperties
+                                            (   false,
+                                                false,
+                                                "minimal",
+                                                "Content"
+                                            ),
+                RequestMethod.GET,      new RequestMethodProperties
+                                            (   false,
+                                                true,
+                                                "minimal",
+                                                "Accept"
+                                            ),
+                RequestMethod.HEAD,     new RequestMethodProperties
+                                            (   false,
+                                                false,
+                                                "minimal",
+                                                "Accept"
+                                            ),
+                RequestMethod.OPTIONS,  new RequestMethodProperties
+                                            (   false,
+                                                false,
+                                                "minimal",
+                                                "Content"
+                                            ),
+                RequestMethod.PATCH,    new RequestMethodProperties
+                                            (   true,
+                                                false,
+                                                "representation",
+                                                "Content"
+                                            ),
+                RequestMethod.POST,     new RequestMethodProperties
+                                            (   true,
+                                                false,
+                                                "representation",
+                                                "Content"
+                                            ),
+                RequestMethod.PUT,      new RequestMethodProperties
+                                            (   true,
+                                                false,
+                                                "minimal",
+                                                "Content"
+                                            ),
+                RequestMethod.TRACE,    new RequestMethodProperties
+                                            (   false,
+                                                false,
+                                                "minimal",
+                                                "Content"
+                                            )
+            );
+    
+    //--------------------------------------------------------------
+    
+    // The request URI up to (but excluding) the query string
+    @Getter
+    @ToString.Include
+    private final String resourceUri;
+    
+    // The select= parameter projecting the columns returned, or null to return every column
+    @Getter
+    @ToString.Include
+    private final String selectParameter;
+    
+    @Getter
+    @ToString.Include
+    private final RequestMethod requestMethod;
+    
+    @Getter
+    private final boolean bodyExpected;
+    
+    // Header names and values, alternating, as accepted by HttpRequest.Builder.headers ()
+    private final String[] headers;
+    
+    //--------------------------------------------------------------
+    
+    // Adds the header, replacing any header of the same name (header names are case-insensitive)
+    private static void putHeader
+        (   Map<String, Map.Entry<String, String>>  headerMap,
+            String                                  name,
+            String                                  value
+        )
+    {
+        headerMap.put (name.toLowerCase (Locale.ROOT), Map.entry (name, value));
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static String[] flattenHeaders (Map<String, Map.Entry<String, String>> headerMap)
+    {
+        List<String> headerList = new ArrayList<> (headerMap.size () * 2);
+        
+        for (Map.Entry<String, String> header : headerMap.values ())
+        {
+            headerList.add (header.getKey ());
+            headerList.add (header.getValue ());
+        }
+        
+        return headerList.toArray (new String[0]);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the headers of this template, in the order they are sent, as a map of header name to value.
+      */
+    public Map<String, String> getHeaders ()
+    {
+        Map<String, String> headerMap = new LinkedHashMap<> ();
+        
+        for (int idx = 0; idx < this.headers.length; idx += 2)
+        {
+            headerMap.put (this.headers[idx], this.headers[idx + 1]);
+        }
+        
+        return headerMap;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns a copy of this template with the given header added, replacing any header of the same name.
+      */
+    public PostgrestRequestTemplate withHeader
+        (   String  name,
+            String  value
+        )
+    {
+        Map<String, Map.Entry<String, String>> headerMap = new LinkedHashMap<> ();
+        
+        for (Map.Entry<String, String> header : this.getHeaders ().entrySet ())
+        {
+            putHeader (headerMap, header.getKey (), header.getValue ());
+        }
+        
+        putHeader (headerMap, name, value);
+        
+        return
+            new PostgrestRequestTemplate
+                (   this.resourceUri,
+                    this.selectParameter,
+                    this.requestMethod,
+                    this.bodyExpected,
+                    flattenHeaders (headerMap)
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the full request URI for the given query string (which may or may not begin with ?), after
+      * any select= parameter of the template.
+      */
+    public URI getUri (String queryString)
+    {
+        if (queryString != null && queryString.startsWith ("?"))
+        {
+            queryString = queryString.substring (1);
+        }
+        
+        if (queryString == null || queryString.isEmpty ())
+        {
+            return
+                URI.create
+                    (   this.selectParameter == null
+                            ?   this.resourceUri
+                            :   this.resourceUri + "?" + this.selectParameter
+                    );
+        }
+        
+        return
+            URI.create
+                (   this.selectParameter == null
+                        ?   this.resourceUri + "?" + queryString
+                        :   this.resourceUri + "?" + this.selectParameter + "&" + queryString
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Creates a new HTTP request from this template.
+      *
+      * @param  queryString  The query string of the request, or null for none
+      * @param  body         The request body - ignored for request methods that do not expect a body
+      */
+    public HttpRequest newHttpRequest
+        (   String  queryString,
+            String  body
+        )
+    {
+        return
+            HttpRequest
+                .newBuilder (this.getUri (queryString))
+                .method
+                    (   this.requestMethod.toString (),
+                        this.bodyExpected
+                            ?   HttpRequest.BodyPublishers.ofString (body)
+                            :   HttpRequest.BodyPublishers.noBody ()
+                    )
+                .headers (this.headers)
+                .build ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    private PostgrestRequestTemplate
+        (   String          resourceUri,
+            String          selectParameter,
+            RequestMethod   requestMethod,
+            boolean         bodyExpected,
+            String[]        headers
+        )
+    {
+        this.resourceUri = resourceUri;
+        this.selectParameter = selectParameter;
+        this.requestMethod = requestMethod;
+        this.bodyExpected = bodyExpected;
+        this.headers = headers;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Compiles a template from the current settings of the wrapper.
+      */
+    public static PostgrestRequestTemplate compile (PostgrestWrapper postgrestWrapper)
+    {
+        RequestMethodProperties requestMethodProperties = REQUEST_METHODS.get (postgrestWrapper.getRequestMethod ());
+        
+        var resource = postgrestWrapper.getResource ();
+        
+        Map<String, Map.Entry<String, String>> headerMap = new LinkedHashMap<> ();
+        
+        putHeader (headerMap, "Content-Type", "application/json");
+        
+        putHeader
+            (   headerMap,
+                "Prefer",
+                    (   postgrestWrapper.getCountStrategy () == CountStrategy.NONE
+                        ?   ""
+                        :   "count=" + postgrestWrapper.getCountStrategy ().getPreference () + ", " // For the total in Content-Range
+                    )
+                +   "return="
+                +   requestMethodProperties.responseReturn ()
+                +   ", tx=" // For determining whether to commit a write request
+                +   (  postgrestWrapper.isCommitTransaction ()
+                        ?  "commit"
+                        :  "rollback"
+                    )
+            );
+        
+        putHeader
+            (   headerMap,
+                requestMethodProperties.profileType () + "-Profile",
+                postgrestWrapper.getDbSchema ()
+            );
+        
+        if (postgrestWrapper.getJwtAuthString () != null)
+        {
+            putHeader (headerMap, "Authorization", "Bearer " + postgrestWrapper.getJwtAuthString ());
+        }
+        
+        // Additional headers are applied last, so that they override the defaults above
+        for (Map.Entry<String, String> header : postgrestWrapper.getHeaders ().entrySet ())
+        {
+            putHeader (headerMap, header.getKey (), header.getValue ());
+        }
+        
+        return
+            new PostgrestRequestTemplate
+                (   postgrestWrapper.getBaseUrl () + resource + (resource.endsWith ("/") ? "" : "/"),
+                    (postgrestWrapper.getSelect () == null ? null : "select=" + PostgrestQuery.encodeSelect (postgrestWrapper.getSelect ())),
+                    postgrestWrapper.getRequestMethod (),
+                    requestMethodProperties.bodyExpected (),
+                    flattenHeaders (headerMap)
+                );
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,282 @@
+package uk.co.smithdmy;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+import org.json.JSONObject;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+  * An opt-in, size-bounded cache of successful GET responses, shared by any wrappers it is given to.
+  *
+  * Responses are keyed on the full request URI (resource and query string) and the headers that change the
+  * response - Accept, Accept-Profile, Authorization, Prefer and Range - so cached responses are never
+  * returned to a caller with different credentials, or that asked for a different count, format or range.
+  * Fresh entries are returned without a request being sent. Expired entries with an ETag are revalidated
+  * with If-None-Match, and reused if the upstream responds 304 Not Modified. The least recently used
+  * entries are evicted once either the entry or the byte limit is exceeded.
+  *
+  * Any successful PATCH, POST, PUT or DELETE sent to a resource by a wrapper using the cache, or chunk
+  * written by a PostgrestBulkWriter for such a wrapper, invalidates all cached responses for that resource.
+  */
+public class PostgrestResponseCache
+{
+    //--------------------------------------------------------------
+    
+    private static final Set<RequestMethod> WRITE_METHODS =
+        Set.of
+            (   RequestMethod.POST,
+                RequestMethod.PATCH,
+                RequestMethod.PUT,
+                RequestMethod.DELETE
+            );
+    
+    // The request headers that change the response, besides the URI - e.g. Prefer: count= decides whether
+    // the Content-Range has a total, and Accept whether the body is a JSON array, an object or CSV
+    private static final List<String> KEY_HEADERS =
+        List.of
+            (   "Accept",
+                "Accept-Profile",
+                "Authorization",
+                "Prefer",
+                "Range"
+            );
+    
+    //--------------------------------------------------------------
+    
+    record CachedResponse
+        (   HttpResponse<String>    httpResponse,
+            String                  resourceUri,
+            String                  etag,
+            long                    expiresAtNanos,
+            long                    sizeBytes
+        )
+    {
+        boolean isFresh ()
+        {
+            return System.nanoTime () - this.expiresAtNanos < 0;
+        }
+    };
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final int maxEntries;
+    
+    @Getter
+    private final long maxBytes;
+    
+    @Getter
+    private final Duration timeToLive;
+    
+    // Access-ordered, so that iteration starts from the least recently used entry
+    private final LinkedHashMap<String, CachedResponse> cachedResponses = new LinkedHashMap<> (16, 0.75f, true);
+    
+    private long cachedBytes = 0;
+    
+    private final AtomicLong hits = new AtomicLong ();
+    private final AtomicLong misses = new AtomicLong ();
+    private final AtomicLong revalidations = new AtomicLong ();
+    private final AtomicLong evictions = new AtomicLong ();
+    private final AtomicLong invalidations = new AtomicLong ();
+    
+    //--------------------------------------------------------------
+    
+    static String getKey (HttpRequest httpRequest)
+    {
+        StringBuilder key = new StringBuilder (httpRequest.uri ().toString ());
+        
+        for (String header : KEY_HEADERS)
+        {
+            key.append ('\n').append (String.join (",", httpRequest.headers ().allValues (header)));
+        }
+        
+        return key.toString ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the cached response for the key, fresh or not, counting a hit only if it is fresh
+    synchronized CachedResponse get (String key)
+    {
+        CachedResponse cachedResponse = this.cachedResponses.get (key);
+        
+        if (cachedResponse != null && cachedResponse.isFresh ())
+        {
+            this.hits.incrementAndGet ();
+        }
+        else
+        {
+            this.misses.incrementAndGet ();
+        }
+        
+        return cachedResponse;
+    }
+    
+    //--------------------------------------------------------------
+    
+    synchronized void put
+        (   String                  key,
+            String                  resourceUri,
+            HttpResponse<String>    httpResponse
+        )
+    {
+        var cachedResponse =
+            new CachedResponse
+                (   httpResponse,
+                    resourceUri,
+                    httpResponse.headers ().firstValue ("ETag").orElse (null),
+                    System.nanoTime () + this.timeToLive.toNanos (),
+                    (long) httpResponse.body ().length () * Character.BYTES + key.length () * Character.BYTES
+                );
+        
+        // Responses too large to ever fit are not cached
+        if (cachedResponse.sizeBytes () > this.maxBytes)
+        {
+            return;
+        }
+        
+        CachedResponse replacedResponse = this.cachedResponses.put (key, cachedResponse);
+        
+        if (replacedResponse != null)
+        {
+            this.cachedBytes -= replacedResponse.sizeBytes ();
+        }
+        
+        this.cachedBytes += cachedResponse.sizeBytes ();
+        
+        // Evict least recently used entries until back within both limits
+        Iterator<CachedResponse> iterator = this.cachedResponses.values ().iterator ();
+        
+        while  (   iterator.hasNext ()
+                   &&
+                   (   this.cachedResponses.size () > this.maxEntries
+                       ||
+                       this.cachedBytes > this.maxBytes
+                   )
+               )
+        {
+            this.cachedBytes -= iterator.next ().sizeBytes ();
+            iterator.remove ();
+            
+            this.evictions.incrementAndGet ();
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Marks a stale entry as fresh again after the upstream has responded 304 Not Modified
+    synchronized CachedResponse revalidate
+        (   String          key,
+            CachedResponse  cachedResponse
+        )
+    {
+        this.revalidations.incrementAndGet ();
+        
+        var revalidatedResponse =
+            new CachedResponse
+                (   cachedResponse.httpResponse (),
+                    cachedResponse.resourceUri (),
+                    cachedResponse.etag (),
+                    System.nanoTime () + this.timeToLive.toNanos (),
+                    cachedResponse.sizeBytes ()
+                );
+        
+        // Only replace the entry if it has not been invalidated or replaced in the meantime
+        this.cachedResponses.replace (key, cachedResponse, revalidatedResponse);
+        
+        return revalidatedResponse;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Whether a successful request with the method invalidates the resource's cached responses
+    static boolean isInvalidatedBy (RequestMethod requestMethod)
+    {
+        return WRITE_METHODS.contains (requestMethod);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Removes all cached responses for the resource, whatever their query string, schema or credentials.
+      *
+      * @param  resourceUri  The resource URI, excluding any query string, e.g. http://localhost:8001/movies/
+      */
+    public synchronized void invalidate (String resourceUri)
+    {
+        Iterator<CachedResponse> iterator = this.cachedResponses.values ().iterator ();
+        
+        while (iterator.hasNext ())
+        {
+            CachedResponse cachedResponse = iterator.next ();
+            
+            if (cachedResponse.resourceUri ().equals (resourceUri))
+            {
+                this.cachedBytes -= cachedResponse.sizeBytes ();
+                iterator.remove ();
+                
+                this.invalidations.incrementAndGet ();
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    public synchronized void clear ()
+    {
+        this.cachedResponses.clear ();
+        this.cachedBytes = 0;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public long getHits () { return this.hits.get (); }
+    
+    public long getMisses () { return this.misses.get (); }
+    
+    public long getRevalidations () { return this.revalidations.get (); }
+    
+    public long getEvictions () { return this.evictions.get (); }
+    
+    public long getInvalidations () { return this.invalidations.get (); }
+    
+    //--------------------------------------------------------------
+    
+    public synchronized JSONObject getStatistics ()
+    {
+        return
+            new JSONObject ()
+                .put ("entries", this.cachedResponses.size ())
+                .put ("bytes", this.cachedBytes)
+                .put ("hits", this.getHits ())
+                .put ("misses", this.getMisses ())
+                .put ("revalidations", this.getRevalidations ())
+                .put ("evictions", this.getEvictions ())
+                .put ("invalidations", this.getInvalidations ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestResponseCache
+        (   int         maxEntries,
+            long        maxBytes,
+            Duration    timeToLive
+        )
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+    
+    //--------------------------------------------------------------
+}
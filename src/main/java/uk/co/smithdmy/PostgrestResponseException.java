@@ -0,0 +1,47 @@
+package uk.co.smithdmy;
+
+import lombok.Getter;
+
+import org.json.JSONObject;
+
+/**
+  * Thrown by the typed wrapper methods, which have no API response to return the status code in, when a
+  * request fails or PostgREST returns an error response. Failures to send the request have a status code
+  * of 500, as per the synthetic API response returned by getHttpResponse ().
+  */
+public class PostgrestResponseException extends RuntimeException
+{
+    //--------------------------------------------------------------
+    
+    private static final long serialVersionUID = 1L;
+    
+    //--------------------------------------------------------------
+    
+    @Getter
+    private final int statusCode;
+    
+    // The error response body, e.g. {"message": "..."}, or null if there was none
+    @Getter
+    private final JSONObject body;
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestResponseException
+        (   int         statusCode,
+            JSONObject  body,
+            Throwable   cause
+        )
+    {
+        super
+            (       "postgREST request failed with status " + statusCode
+                +   (body != null && body.has ("message") ? ": " + body.getString ("message") : ""),
+                cause
+            );
+        
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+    
+    //--------------------------------------------------------------
+}
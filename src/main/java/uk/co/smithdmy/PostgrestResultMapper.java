@@ -0,0 +1,118 @@
+package uk.co.smithdmy;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.DeserializationFeature;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.ObjectReader;
+import tools.jackson.databind.json.JsonMapper;
+
+/**
+  * Binds PostgREST response bodies directly to Java records or classes with Jackson, reading from the
+  * response stream without building an intermediate JSON tree. The readers for each row type are built
+  * once and cached, as they are immutable and safe to share between threads.
+  */
+public final class PostgrestResultMapper
+{
+    //--------------------------------------------------------------
+    
+    // Columns the row type has no property for (e.g. from select=*) are ignored rather than failing
+    private static final ObjectMapper OBJECT_MAPPER =
+        JsonMapper
+            .builder ()
+            .disable (DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .build ();
+    
+    private static final Map<Class<?>, ObjectReader> ROW_READERS = new ConcurrentHashMap<> ();
+    private static final Map<Class<?>, ObjectReader> LIST_READERS = new ConcurrentHashMap<> ();
+    
+    //--------------------------------------------------------------
+    
+    private static ObjectReader getRowReader (Class<?> rowType)
+    {
+        // Rows are read one at a time from within the array, so the tokens following each row are expected
+        return
+            ROW_READERS
+                .computeIfAbsent
+                    (   rowType,
+                        type ->
+                            OBJECT_MAPPER
+                                .readerFor (type)
+                                .without (DeserializationFeature.FAIL_ON_TRAILING_TOKENS)
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static ObjectReader getListReader (Class<?> rowType)
+    {
+        return LIST_READERS.computeIfAbsent (rowType, OBJECT_MAPPER::readerForListOf);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Binds a JSON array of rows to a list of the row type.
+      */
+    public static <T> List<T> readList
+        (   InputStream     bodyStream,
+            Class<T>        rowType
+        )
+    {
+        return getListReader (rowType).readValue (bodyStream);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Binds a single JSON object row to the row type. A JSON array holding a single row is also accepted,
+      * for upstreams that do not support singular responses. Returns null for an empty body or array.
+      */
+    public static <T> T readSingle
+        (   InputStream     bodyStream,
+            Class<T>        rowType
+        )
+    {
+        ObjectReader rowReader = getRowReader (rowType);
+        
+        try (JsonParser jsonParser = rowReader.createParser (bodyStream))
+        {
+            JsonToken jsonToken = jsonParser.nextToken ();
+            
+            if (jsonToken == null)
+            {
+                return null;
+            }
+            
+            if (jsonToken != JsonToken.START_ARRAY)
+            {
+                return rowReader.readValue (jsonParser);
+            }
+            
+            if (jsonParser.nextToken () == JsonToken.END_ARRAY)
+            {
+                return null;
+            }
+            
+            T row = rowReader.readValue (jsonParser);
+            
+            if (jsonParser.nextToken () != JsonToken.END_ARRAY)
+            {
+                throw new IllegalStateException ("Expected a single row but more than one was returned");
+            }
+            
+            return row;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    private PostgrestResultMapper () {} // Hides the constructor
+    
+    //--------------------------------------------------------------
+}
@@ -0,0 +1,173 @@
+package uk.co.smithdmy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+  * Incrementally reads the rows of a PostgREST JSON response body, one JSON object at a time, so that
+  * only the row currently being read is held in memory rather than the whole response body.
+  *
+  * Accepts either a JSON array of objects (the usual PostgREST response) or a single JSON object
+  * (e.g. from an RPC call or a singular response), which is returned as a single row.
+  */
+public class PostgrestRowReader implements Iterator<JSONObject>, AutoCloseable
+{
+    //--------------------------------------------------------------
+    
+    private final Reader reader;
+    private final JSONTokener tokener;
+    
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean singleObject = false;
+    
+    private JSONObject nextRow;
+    
+    //--------------------------------------------------------------
+    
+    // Reads the opening token of the body and determines whether it is an array or a single object
+    private void start ()
+    {
+        this.started = true;
+        
+        char openingChar = this.tokener.nextClean ();
+        
+        switch (openingChar)
+        {
+            case '[':
+            {
+                if (this.tokener.nextClean () == ']')
+                {
+                    this.finished = true;
+                    break;
+                }
+                
+                this.tokener.back ();
+                break;
+            }
+            case '{':
+            {
+                this.tokener.back ();
+                this.singleObject = true;
+                break;
+            }
+            case 0: // Empty body
+            {
+                this.finished = true;
+                break;
+            }
+            default:
+            {
+                throw this.tokener.syntaxError ("A JSON array or object must begin with '[' or '{'");
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Reads the next row from the body, returning null once the end of the body is reached
+    private JSONObject readRow ()
+    {
+        if (!this.started)
+        {
+            this.start ();
+        }
+        
+        if (this.finished)
+        {
+            return null;
+        }
+        
+        Object value = this.tokener.nextValue ();
+        
+        if (!(value instanceof JSONObject))
+        {
+            throw this.tokener.syntaxError ("Expected a JSON object row but found: " + value);
+        }
+        
+        if (this.singleObject)
+        {
+            this.finished = true;
+            
+            return (JSONObject) value;
+        }
+        
+        switch (this.tokener.nextClean ())
+        {
+            case ',':
+                break;
+            case ']':
+                this.finished = true;
+                break;
+            default:
+                throw this.tokener.syntaxError ("Expected a ',' or ']' between rows");
+        }
+        
+        return (JSONObject) value;
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    public boolean hasNext ()
+    {
+        if (this.nextRow == null)
+        {
+            this.nextRow = this.readRow ();
+        }
+        
+        return this.nextRow != null;
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    public JSONObject next ()
+    {
+        if (!this.hasNext ())
+        {
+            throw new NoSuchElementException ();
+        }
+        
+        JSONObject row = this.nextRow;
+        this.nextRow = null;
+        
+        return row;
+    }
+    
+    //--------------------------------------------------------------
+    
+    @Override
+    public void close () throws IOException
+    {
+        this.reader.close ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestRowReader (InputStream inputStream) throws JSONException
+    {
+        this.reader =
+            new BufferedReader
+                (   new InputStreamReader
+                        (   inputStream,
+                            StandardCharsets.UTF_8
+                        )
+                );
+        
+        this.tokener = new JSONTokener (this.reader);
+    }
+    
+    //--------------------------------------------------------------
+}
@@ -1,5 +1,6 @@
 package uk.co.smithdmy;
 
+import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
 import lombok.AllArgsConstructor;
@@ -17,17 +18,26 @@ import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -43,10 +53,34 @@ public class PostgrestStub
     private final String PASSWORD = "password";
     private final String AUTH_STRING = "Pd1WuMdnkuZ4pXZZGyhCTsT0Y0K4Ql";
     
-    private Connection dbConnection;
-    private String whereClause;
-    private String orderByClause;
-    private List<String> whereClausesList;
+    // Pooled connections to a private, in-memory H2 database, so that requests can query concurrently
+    private final JdbcConnectionPool dbConnectionPool;
+    
+    // Runs the request handlers - shut down when the server is stopped if created by the stub
+    private final ExecutorService executor;
+    private final boolean executorOwned;
+    
+    private static final ObjectWriter OBJECT_WRITER = new ObjectMapper ().writer ();
+    
+    private static final List<String> MOVIE_COLUMNS = List.of ("id", "title", "running_mins");
+    
+    private static final Pattern COUNT_PREFERENCE_PATTERN = Pattern.compile ("(?:^|[\\s,])count=(exact|planned|estimated)(?:$|[\\s,])");
+    
+    // Estimated counts are exact up to this many rows, like PostgREST's db-max-rows
+    private static final int ESTIMATED_COUNT_THRESHOLD = 1000;
+    
+    // A fault injected into the next faultsRemaining requests to /movies/
+    private record Fault
+        (   int         statusCode,
+            Duration    delay,
+            String      retryAfter
+        )
+    {
+        
+    };
+    
+    private volatile Fault fault;
+    private final AtomicInteger faultsRemaining = new AtomicInteger ();
     
     //--------------------------------------------------------------
     
@@ -70,6 +104,25 @@ public class PostgrestStub
     
     //--------------------------------------------------------------
     
+    // Holds the state of a single request to /movies/, so that concurrent requests share none
+    private class MovieQuery
+    {
+        private String whereClause = "";
+        private String orderByClause = "";
+        private List<String> whereClausesList = new ArrayList<> ();
+        private String limitClause = "";
+        private int offset = 0;
+        private List<Movie> filteredMovies = new ArrayList<> ();
+        
+        // Response keys and the columns they are taken from, from select= - if null, every column is returned
+        private List<Map.Entry<String, String>> selectedColumns = null;
+        
+        // The count= value of the Prefer header - exact, planned or estimated - or null if no count is wanted
+        private String countPreference = null;
+    };
+    
+    //--------------------------------------------------------------
+    
     @Getter
     private final int PORT = 8001;
     
@@ -78,43 +131,41 @@ public class PostgrestStub
     
     //--------------------------------------------------------------
     
-    @Getter
-    @Setter
-    private List<Movie> filteredMovies;
-    
-    //--------------------------------------------------------------
-    
     // For API requests to /movies/:MOVIE_ID
-    private void filterMoviesById (int id) throws SQLException
+    private void filterMoviesById (MovieQuery movieQuery, int id) throws SQLException
     {
         List<Movie> filteredList = new ArrayList<> ();
         
-        var statement = dbConnection.prepareStatement ("SELECT * FROM movies WHERE id = ?");
-        statement.setInt (1, id);
-        ResultSet resultSet = statement.executeQuery ();
-        
-        while (resultSet.next ())
+        try (   Connection dbConnection = dbConnectionPool.getConnection ();
+                var statement = dbConnection.prepareStatement ("SELECT * FROM movies WHERE id = ?")
+            )
         {
-            filteredList.add
-                (   new Movie
-                        (   resultSet.getInt ("id"),
-                            resultSet.getString ("title"),
-                            resultSet.getInt ("running_mins")
-                        )
-                );
+            statement.setInt (1, id);
+            ResultSet resultSet = statement.executeQuery ();
+            
+            while (resultSet.next ())
+            {
+                filteredList.add
+                    (   new Movie
+                            (   resultSet.getInt ("id"),
+                                resultSet.getString ("title"),
+                                resultSet.getInt ("running_mins")
+                            )
+                    );
+            }
         }
         
-        this.filteredMovies = filteredList;
+        movieQuery.filteredMovies = filteredList;
     }
     
     //--------------------------------------------------------------
     
     // For API requests to /movies/{query_parameter(s)}
-    private void queryMovies (String queryString) throws UnsupportedEncodingException, SQLException
+    private void queryMovies (MovieQuery movieQuery, String queryString) throws UnsupportedEncodingException, SQLException
     {
         List<Movie> filteredList = new ArrayList<> ();
         
-        var baseSQL = "SELECT * FROM movies #WHERE_CLAUSE# #ORDER_BY_CLAUSE#;";
+        var baseSQL = "SELECT * FROM movies #WHERE_CLAUSE# #ORDER_BY_CLAUSE# #PAGING_CLAUSE#;";
         
         log.info ("queryMovies(): Started");
         log.info ("Splitting query string: " + queryString);
@@ -128,6 +179,37 @@ public class PostgrestStub
             {   
                 log.info ("Parsing parameter: " + parameter);
                 
+                // Column projection - only the selected columns are returned
+                if (parameter.matches ("^\\??select=.*$"))
+                {
+                    this.selectColumns (movieQuery, URLDecoder.decode (parameter.substring (parameter.indexOf ('=') + 1), StandardCharsets.UTF_8));
+                    
+                    log.info ("Added select parameter: " + parameter);
+                    
+                    continue;
+                }
+                
+                // LIMIT/OFFSET clause - used for paging through results
+                Matcher pagingMatcher = Pattern.compile ("^\\??(limit|offset)=(\\d+)$").matcher (parameter);
+                
+                if (pagingMatcher.matches ())
+                {
+                    int pagingValue = Integer.parseInt (pagingMatcher.group (2));
+                    
+                    if (pagingMatcher.group (1).equals ("offset"))
+                    {
+                        movieQuery.offset = pagingValue;
+                    }
+                    else
+                    {
+                        movieQuery.limitClause = "FETCH NEXT " + pagingValue + " ROWS ONLY";
+                    }
+                    
+                    log.info ("Added paging parameter: " + parameter);
+                    
+                    continue;
+                }
+                
                 Pattern pattern = Pattern.compile ("^\\??([a-zA-z_]+)=([a-z_]+)\\.(.+)$"); // The expected format of the query string
                 Matcher matcher = pattern.matcher (parameter);
                 
@@ -161,9 +243,9 @@ public class PostgrestStub
                             Arrays.asList ("asc", "desc", "").contains (value)
                         )
                     {
-                        orderByClause = "ORDER BY " + operator + (value.equals ("desc") ? " DESC" : " ASC");
+                        movieQuery.orderByClause = "ORDER BY " + operator + (value.equals ("desc") ? " DESC" : " ASC");
                         
-                        log.info ("Added ORDER BY clause: " + orderByClause);
+                        log.info ("Added ORDER BY clause: " + movieQuery.orderByClause);
                         
                         continue;
                     }
@@ -175,7 +257,7 @@ public class PostgrestStub
                 // WHERE clause statements
                 if  (   Arrays.asList ("title", "id").contains (column)
                         &&
-                        Arrays.asList ("eq", "neq").contains (operator)
+                        Arrays.asList ("eq", "neq", "lt", "gt", "lte", "gte").contains (operator)
                     )
                 {
                     var sqlOperator = "";
@@ -183,16 +265,20 @@ public class PostgrestStub
                     {
                         case "eq": sqlOperator = " ="; break;
                         case "neq": sqlOperator = " !="; break;
+                        case "lt": sqlOperator = " <"; break; // lt/gt on the key column for keyset paging
+                        case "gt": sqlOperator = " >"; break;
+                        case "lte": sqlOperator = " <="; break;
+                        case "gte": sqlOperator = " >="; break;
                     }
                     
-                    whereClause =
-                            (!whereClause.equals ("") ? " AND " : "WHERE ")
-                        +   whereClause
+                    movieQuery.whereClause =
+                            movieQuery.whereClause
+                        +   (movieQuery.whereClause.isEmpty () ? "WHERE " : " AND ")
                         +   column
                         +   sqlOperator
                         +   " ?";
                     
-                    whereClausesList.add (value);
+                    movieQuery.whereClausesList.add (value);
                     
                     log.info ("Added " + column + sqlOperator + " " + value + " to WHERE clause");
                     
@@ -215,14 +301,14 @@ public class PostgrestStub
                         case "gte": sqlOperator = " >="; break;
                     }
                     
-                    whereClause =
-                            (!whereClause.equals ("") ? " AND " : "WHERE ")
-                        +   whereClause
+                    movieQuery.whereClause =
+                            movieQuery.whereClause
+                        +   (movieQuery.whereClause.isEmpty () ? "WHERE " : " AND ")
                         +   column
                         +   sqlOperator
                         +   " ?";
                     
-                    whereClausesList.add (value);
+                    movieQuery.whereClausesList.add (value);
                     
                     log.info ("Added " + column + sqlOperator + " " + value + " to WHERE clause");
                     
@@ -232,14 +318,82 @@ public class PostgrestStub
         }
         
         // Complete SQL statement construction
-        baseSQL = baseSQL.replace ("#WHERE_CLAUSE#", whereClause);
-        baseSQL = baseSQL.replace ("#ORDER_BY_CLAUSE#", orderByClause);
+        baseSQL = baseSQL.replace ("#WHERE_CLAUSE#", movieQuery.whereClause);
+        baseSQL = baseSQL.replace ("#ORDER_BY_CLAUSE#", movieQuery.orderByClause);
+        baseSQL = baseSQL.replace ("#PAGING_CLAUSE#", "OFFSET " + movieQuery.offset + " ROWS " + movieQuery.limitClause);
         
         log.info ("Query to execute: " + baseSQL);
         
-        var statement = dbConnection.prepareStatement (baseSQL);
+        try (   Connection dbConnection = dbConnectionPool.getConnection ();
+                var statement = dbConnection.prepareStatement (baseSQL)
+            )
+        {
+            setWhereClauseParameters (statement, movieQuery.whereClausesList);
+            
+            // Execute SQL query
+            ResultSet resultSet = statement.executeQuery ();
+            
+            while (resultSet.next ())
+            {
+                filteredList.add
+                    (   new Movie
+                            (   resultSet.getInt ("id"),
+                                resultSet.getString ("title"),
+                                resultSet.getInt ("running_mins")
+                            )
+                    );
+            }
+        }
+        
+        movieQuery.filteredMovies = filteredList;
+        
+        log.info ("queryMovies(): Ended");
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Parses select= into response keys and columns - each item is column, alias:column or *
+    private void selectColumns (MovieQuery movieQuery, String select)
+    {
+        movieQuery.selectedColumns = new ArrayList<> ();
         
-        // Set WHERE clause parameters
+        for (var item : select.split (","))
+        {
+            if (item.contains ("("))
+            {
+                // Movies have no related resources to embed
+                throw new IllegalArgumentException ("Could not find a relationship between 'movies' and '" + item.substring (0, item.indexOf ('(')) + "'.");
+            }
+            
+            var alias = (item.contains (":") ? item.substring (0, item.indexOf (':')) : item);
+            var column = (item.contains (":") ? item.substring (item.indexOf (':') + 1) : item);
+            
+            if (column.equals ("*"))
+            {
+                for (var movieColumn : MOVIE_COLUMNS)
+                {
+                    movieQuery.selectedColumns.add (Map.entry (movieColumn, movieColumn));
+                }
+                
+                continue;
+            }
+            
+            if (!MOVIE_COLUMNS.contains (column))
+            {
+                throw new IllegalArgumentException ("Column movies." + column + " does not exist.");
+            }
+            
+            movieQuery.selectedColumns.add (Map.entry (alias, column));
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    private static void setWhereClauseParameters
+        (   PreparedStatement   statement,
+            List<String>        whereClausesList
+        ) throws SQLException
+    {
         for (int idx = 0; idx < whereClausesList.size (); idx++)
         {
             // Attempt to cast value to an integer first, then a string
@@ -252,88 +406,301 @@ public class PostgrestStub
                 statement.setString (idx + 1, whereClausesList.get (idx));
             }
         }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns an unsigned JWT expiring at the given time, for testing token expiry - the stub does not accept it
+    private static String getUnsignedJwt (long expiryEpochSeconds)
+    {
+        Base64.Encoder encoder = Base64.getUrlEncoder ().withoutPadding ();
         
-        // Execute SQL query
-        ResultSet resultSet = statement.executeQuery ();
-        
-        while (resultSet.next ())
+        return
+                encoder.encodeToString ("{\"alg\":\"none\"}".getBytes (StandardCharsets.UTF_8))
+            +   "."
+            +   encoder.encodeToString (new JSONObject ().put ("exp", expiryEpochSeconds).toString ().getBytes (StandardCharsets.UTF_8))
+            +   ".";
+    }
+    
+    //--------------------------------------------------------------
+    
+    // The planner's estimate stands in for PostgREST's planned count - the table's row count estimate,
+    // which unlike PostgreSQL's ignores any filters
+    private long getMoviesEstimate () throws SQLException
+    {
+        try (   Connection dbConnection = dbConnectionPool.getConnection ();
+                var statement = dbConnection.prepareStatement ("SELECT ROW_COUNT_ESTIMATE FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'MOVIES'")
+            )
         {
-            filteredList.add
-                (   new Movie
-                        (   resultSet.getInt ("id"),
-                            resultSet.getString ("title"),
-                            resultSet.getInt ("running_mins")
-                        )
-                );
+            ResultSet resultSet = statement.executeQuery ();
+            
+            resultSet.next ();
+            
+            return resultSet.getLong ("ROW_COUNT_ESTIMATE");
         }
-        
-        this.setFilteredMovies (filteredList);
-        
-        log.info ("queryMovies(): Ended");
     }
     
     //--------------------------------------------------------------
     
-    // For populating the Content-Range header (X-Y/Z)
-    private String getMoviesCount
-        (   String  whereClause,
-            String  orderByClause
-        ) throws SQLException
+    // For populating the Content-Range header (X-Y/Z) - Z is counted as the Prefer header asks, or * if it does not
+    private String getMoviesCount (MovieQuery movieQuery) throws SQLException
     {
+        int rowsReturned = movieQuery.filteredMovies.size ();
+        
+        // No range can be given when no rows are returned, e.g. when paging past the last row
+        var range =
+            (   rowsReturned == 0
+                ?   "*"
+                :   movieQuery.offset + "-" + (movieQuery.offset + rowsReturned - 1)
+            );
+        
+        if (movieQuery.countPreference == null)
+        {
+            return range + "/*";
+        }
+        
+        if (!movieQuery.countPreference.equals ("exact"))
+        {
+            long estimate = this.getMoviesEstimate ();
+            
+            if (movieQuery.countPreference.equals ("planned") || estimate > ESTIMATED_COUNT_THRESHOLD)
+            {
+                return range + "/" + estimate;
+            }
+        }
+        
         var baseSQL =
             (   """
                     SELECT
-                            MIN (item) - 1
-                        ||  '-'
-                        ||  MAX (item) - 1
-                        ||  '/'
-                        ||  COUNT (item) AS result_count
+                        COUNT (*) AS result_count
                     FROM
-                        (   SELECT
-                                ROW_NUMBER () OVER (#ORDER_BY_CLAUSE#) AS item
-                            FROM
-                                movies m
-                            #WHERE_CLAUSE#
-                        )
+                        movies m
+                    #WHERE_CLAUSE#
                 """
             );
         
-        baseSQL = baseSQL.replace ("#WHERE_CLAUSE#", whereClause);
-        baseSQL = baseSQL.replace ("#ORDER_BY_CLAUSE#", orderByClause);
+        baseSQL = baseSQL.replace ("#WHERE_CLAUSE#", movieQuery.whereClause);
         
-        var statement = dbConnection.prepareStatement (baseSQL);
+        int resultCount;
         
-        // Set WHERE clause parameters
-        for (int idx = 0; idx < this.whereClausesList.size (); idx++)
+        try (   Connection dbConnection = dbConnectionPool.getConnection ();
+                var statement = dbConnection.prepareStatement (baseSQL)
+            )
         {
-            // Attempt to cast value to an integer first, then a string
+            setWhereClauseParameters (statement, movieQuery.whereClausesList);
+            
+            ResultSet resultSet = statement.executeQuery ();
+            
+            resultSet.next ();
+            
+            resultCount = resultSet.getInt ("result_count");
+        }
+        
+        return range + "/" + resultCount;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Converts the movies to a JSON array, of only the selected columns if any - used to build response body
+    private String getMoviesJSON (MovieQuery movieQuery)
+    {
+        if (movieQuery.selectedColumns == null)
+        {
+            return OBJECT_WRITER.writeValueAsString (movieQuery.filteredMovies);
+        }
+        
+        List<Map<String, Object>> projectedMovies = new ArrayList<> ();
+        
+        for (var movie : movieQuery.filteredMovies)
+        {
+            Map<String, Object> projectedMovie = new LinkedHashMap<> ();
+            
+            for (var selectedColumn : movieQuery.selectedColumns)
+            {
+                projectedMovie.put
+                    (   selectedColumn.getKey (),
+                        switch (selectedColumn.getValue ())
+                        {
+                            case "id" -> movie.getId ();
+                            case "title" -> movie.getTitle ();
+                            default -> movie.getRunningMins ();
+                        }
+                    );
+            }
+            
+            projectedMovies.add (projectedMovie);
+        }
+        
+        return OBJECT_WRITER.writeValueAsString (projectedMovies);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Bulk-loads generated movies into the database, after any already there, for testing against realistic
+      * data volumes - a million rows load in well under a minute. Generated rows are deterministic: the same row
+      * count always produces the same ids, titles and running times.
+      *
+      * @param  rowCount  The number of movies to add
+      * @return           The largest movie id after loading
+      */
+    public int seedMovies (int rowCount) throws SQLException
+    {
+        var insertRecordsSQL =
+            """
+                INSERT INTO movies (id, title, running_mins)
+                SELECT
+                    ? + X * 10,
+                    CONCAT ('Generated Movie #', X),
+                    80 + MOD (X * 7919, 121)
+                FROM
+                    SYSTEM_RANGE (1, ?)
+            """;
+        
+        try (   Connection dbConnection = dbConnectionPool.getConnection ();
+                var maxIdStatement = dbConnection.prepareStatement ("SELECT COALESCE (MAX (id), 0) AS max_id FROM movies");
+                var insertStatement = dbConnection.prepareStatement (insertRecordsSQL)
+            )
+        {
+            ResultSet resultSet = maxIdStatement.executeQuery ();
+            resultSet.next ();
+            
+            int maxId = resultSet.getInt ("max_id");
+            
+            insertStatement.setInt (1, maxId);
+            insertStatement.setInt (2, rowCount);
+            
+            log.info ("Seeded " + insertStatement.executeUpdate () + " movies");
+            
+            return maxId + rowCount * 10;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Inserts the movies in a single transaction - or merges them into existing movies with the same ids -
+    // committing, or rolling back as with PostgREST's Prefer: tx=rollback
+    private void writeMovies
+        (   JSONArray   movies,
+            boolean     merge,
+            boolean     rollback
+        )
+        throws SQLException
+    {
+        var writeMovieSQL =
+            (   merge
+                ?   "MERGE INTO movies (id, title, running_mins) KEY (id) VALUES (?, ?, ?)"
+                :   "INSERT INTO movies (id, title, running_mins) VALUES (?, ?, ?)"
+            );
+        
+        try (   Connection dbConnection = dbConnectionPool.getConnection ();
+                var writeStatement = dbConnection.prepareStatement (writeMovieSQL)
+            )
+        {
+            dbConnection.setAutoCommit (false);
+            
             try
             {
-                statement.setInt (idx + 1, Integer.valueOf (this.whereClausesList.get (idx)));
+                for (int index = 0; index < movies.length (); index++)
+                {
+                    JSONObject movie = movies.getJSONObject (index);
+                    
+                    writeStatement.setInt (1, movie.getInt ("id"));
+                    writeStatement.setString (2, movie.optString ("title", null));
+                    writeStatement.setObject (3, movie.has ("running_mins") ? movie.getInt ("running_mins") : null);
+                    writeStatement.executeUpdate ();
+                }
+                
+                if (rollback)
+                {
+                    dbConnection.rollback ();
+                }
+                else
+                {
+                    dbConnection.commit ();
+                }
+            }
+            catch (SQLException | JSONException exception)
+            {
+                dbConnection.rollback ();
+                
+                throw exception;
             }
-            catch (NumberFormatException exception)
+            finally
             {
-                statement.setString (idx + 1, this.whereClausesList.get (idx));
+                dbConnection.setAutoCommit (true);
             }
         }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Handles a POST of a JSON array of movies, as PostgREST does for bulk inserts and upserts
+    private void postMovies (HttpExchange httpExchange) throws IOException
+    {
+        var prefer = httpExchange.getRequestHeaders ().getFirst ("Prefer");
+        prefer = (prefer == null ? "" : prefer);
+        
+        int statusCode = 201;
+        String responseBody = "";
+        
+        try (InputStream in = httpExchange.getRequestBody ())
+        {
+            JSONArray movies = new JSONArray (new String (in.readAllBytes (), StandardCharsets.UTF_8));
+            
+            this.writeMovies (movies, prefer.contains ("resolution=merge-duplicates"), prefer.contains ("tx=rollback"));
+            
+            if (prefer.contains ("return=representation"))
+            {
+                responseBody = movies.toString ();
+            }
+        }
+        catch (JSONException exception)
+        {
+            statusCode = 400;
+            responseBody = new JSONObject ().put ("message", exception.getMessage ()).toString ();
+        }
+        catch (SQLException exception)
+        {
+            // Unique violations are conflicts, as in PostgREST - anything else is a server error
+            statusCode = ("23505".equals (exception.getSQLState ()) ? 409 : 500);
+            responseBody = new JSONObject ().put ("message", exception.getMessage ()).toString ();
+        }
         
-        ResultSet resultSet = statement.executeQuery ();
+        byte response[] = responseBody.getBytes ("UTF-8");
         
-        resultSet.next ();
+        httpExchange
+            .getResponseHeaders ()
+            .add ("Content-Type", "application/json; charset=UTF-8");
         
-        return resultSet.getString ("result_count");
+        httpExchange.sendResponseHeaders (statusCode, response.length == 0 ? -1 : response.length);
+        
+        OutputStream out = httpExchange.getResponseBody ();
+        
+        out.write (response);
+        out.close ();
     }
     
     //--------------------------------------------------------------
     
-    // Converts this.filteredMovies to a JSON array - used to build response body
-    private String getMoviesJSON ()
+    /**
+      * Makes the next requests to /movies/ respond slowly or with an error, for testing how clients cope
+      * with a failing upstream.
+      * 
+      * @param  requestCount  The number of requests to inject the fault into
+      * @param  statusCode    The error status to respond with - or 0 to respond as normal, after the delay
+      * @param  delay         How long to wait before responding
+      * @param  retryAfter    The Retry-After header to respond with, or null for none
+      */
+    public void injectFaults
+        (   int         requestCount,
+            int         statusCode,
+            Duration    delay,
+            String      retryAfter
+        )
     {
-        ObjectMapper objectMapper = new ObjectMapper ();
-        
-        ObjectWriter objectWriter = objectMapper.writer ();
-
-        return objectWriter.writeValueAsString (this.getFilteredMovies ());
+        this.fault = new Fault (statusCode, delay, retryAfter);
+        this.faultsRemaining.set (requestCount);
     }
     
     //--------------------------------------------------------------
@@ -348,6 +715,13 @@ public class PostgrestStub
     public void stopServer ()
     {
         this.httpServer.stop (10);
+        
+        if (this.executorOwned)
+        {
+            this.executor.shutdown ();
+        }
+        
+        this.dbConnectionPool.dispose ();
     }
     
     //--------------------------------------------------------------
@@ -369,59 +743,103 @@ public class PostgrestStub
     
     public PostgrestStub () throws IOException, ClassNotFoundException, SQLException
     {
-        // Connect to a private, in-memory H2 database
-        this.dbConnection = DriverManager.getConnection ("jdbc:h2:mem:", "sa", "");
+        this (HttpClientSettings.newVirtualThreadExecutor (), true);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Creates a stub whose requests are handled by the given executor, which is left running when the
+      * server is stopped.
+      */
+    public PostgrestStub (ExecutorService executor) throws IOException, ClassNotFoundException, SQLException
+    {
+        this (executor, false);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    private PostgrestStub
+        (   ExecutorService executor,
+            boolean         executorOwned
+        ) throws IOException, ClassNotFoundException, SQLException
+    {
+        this.executor = executor;
+        this.executorOwned = executorOwned;
         
-        // Create the HTTP server
-        this.httpServer = HttpServer.create (new InetSocketAddress ("localhost", PORT), 0);
+        // The JDK server otherwise delays small responses (Nagle's algorithm), adding tens of ms per request
+        if (System.getProperty ("sun.net.httpserver.nodelay") == null)
+        {
+            System.setProperty ("sun.net.httpserver.nodelay", "true");
+        }
         
-        // Create the DB table for the HTTP API and populate it
-        var statement = dbConnection.createStatement ();
+        // Pool connections to a private, in-memory H2 database - named, so every pooled connection sees the same DB
+        this.dbConnectionPool =
+            JdbcConnectionPool.create
+                (   "jdbc:h2:mem:movies_" + UUID.randomUUID () + ";DB_CLOSE_DELAY=-1",
+                    "sa",
+                    ""
+                );
         
-        var createTableSQL =
-            """
-                CREATE TABLE movies
-                    (   id              INT PRIMARY KEY,
-                        title           VARCHAR (255),
-                        running_mins    INT
-                    );
-            """;
-        statement.executeUpdate (createTableSQL);
+        // Create the HTTP server, handling requests concurrently on the executor
+        this.httpServer = HttpServer.create (new InetSocketAddress ("localhost", PORT), 0);
+        this.httpServer.setExecutor (executor);
         
-        var insertRecordsSQL =
-            """
-                INSERT INTO movies
-                SELECT 10, 'Terminator 2: Judgement Day', 137
-                UNION ALL
-                SELECT 20, 'Dune: Part Two', 166
-                UNION ALL
-                SELECT 30, 'Twelve Monkeys', 129
-                UNION ALL
-                SELECT 40, 'Inception', 148
-                UNION ALL
-                SELECT 50, 'Incredibles, The', 115
-                UNION ALL
-                SELECT 60, 'Groundhog Day', 101
-                UNION ALL
-                SELECT 70, 'Shawshank Redemption, The', 142
-                UNION ALL
-                SELECT 80, 'Avengers: Endgame', 181
-                UNION ALL
-                SELECT 90, 'Matrix, The', 136
-                UNION ALL
-                SELECT 100, 'Everything Everywhere All at Once', 139
-                UNION ALL
-                SELECT 110, 'Lord of the Rings: The Fellowship of the Ring, The', 178
-                UNION ALL
-                SELECT 120, 'Knives Out', 130
-                UNION ALL
-                SELECT 130, 'Back to the Future Part II', 108
-                UNION ALL
-                SELECT 140, 'Spider-Man: Across the Spider-Verse', 140
-                UNION ALL
-                SELECT 150, 'Amélie', 123;
-            """;
-        statement.executeUpdate (insertRecordsSQL);
+        // Create the DB table for the HTTP API and populate it
+        try (   Connection dbConnection = dbConnectionPool.getConnection ();
+                var statement = dbConnection.createStatement ()
+            )
+        {
+            
+            var createTableSQL =
+                """
+                    CREATE TABLE movies
+                        (   id              INT PRIMARY KEY,
+                            title           VARCHAR (255),
+                            running_mins    INT
+                        );
+                """;
+            statement.executeUpdate (createTableSQL);
+            
+            // Keeps running_mins filters quick once the table has been seeded with many rows
+            statement.executeUpdate ("CREATE INDEX movies_running_mins ON movies (running_mins);");
+            
+            var insertRecordsSQL =
+                """
+                    INSERT INTO movies
+                    SELECT 10, 'Terminator 2: Judgement Day', 137
+                    UNION ALL
+                    SELECT 20, 'Dune: Part Two', 166
+                    UNION ALL
+                    SELECT 30, 'Twelve Monkeys', 129
+                    UNION ALL
+                    SELECT 40, 'Inception', 148
+                    UNION ALL
+                    SELECT 50, 'Incredibles, The', 115
+                    UNION ALL
+                    SELECT 60, 'Groundhog Day', 101
+                    UNION ALL
+                    SELECT 70, 'Shawshank Redemption, The', 142
+                    UNION ALL
+                    SELECT 80, 'Avengers: Endgame', 181
+                    UNION ALL
+                    SELECT 90, 'Matrix, The', 136
+                    UNION ALL
+                    SELECT 100, 'Everything Everywhere All at Once', 139
+                    UNION ALL
+                    SELECT 110, 'Lord of the Rings: The Fellowship of the Ring, The', 178
+                    UNION ALL
+                    SELECT 120, 'Knives Out', 130
+                    UNION ALL
+                    SELECT 130, 'Back to the Future Part II', 108
+                    UNION ALL
+                    SELECT 140, 'Spider-Man: Across the Spider-Verse', 140
+                    UNION ALL
+                    SELECT 150, 'Amélie', 123;
+                """;
+            statement.executeUpdate (insertRecordsSQL);
+        }
         
         // Create contexts
         httpServer.createContext
@@ -520,6 +938,8 @@ public class PostgrestStub
                     byte response[] =
                         new JSONObject ()
                             .put ("authToken", this.AUTH_STRING)
+                            .put ("shortLivedToken", getUnsignedJwt (System.currentTimeMillis () / 1000 + 3))
+                            .put ("expiredToken", getUnsignedJwt (System.currentTimeMillis () / 1000 - 60))
                             .toString ()
                             .getBytes ("UTF-8");
                     
@@ -536,7 +956,54 @@ public class PostgrestStub
             (   "/movies/",
                 httpExchange    ->
                 {
-                    if (!httpExchange.getRequestMethod ().equals ("GET"))
+                    if (this.faultsRemaining.getAndUpdate (faults -> Math.max (0, faults - 1)) > 0)
+                    {
+                        Fault fault = this.fault;
+                        
+                        try
+                        {
+                            Thread.sleep (fault.delay ().toMillis ());
+                        }
+                        catch (InterruptedException exception)
+                        {
+                            Thread.currentThread ().interrupt ();
+                        }
+                        
+                        if (fault.statusCode () != 0)
+                        {
+                            byte response[] =
+                                new JSONObject ()
+                                    .put ("message", "Injected fault.")
+                                    .toString ()
+                                    .getBytes ("UTF-8");
+                            
+                            if (fault.retryAfter () != null)
+                            {
+                                httpExchange
+                                    .getResponseHeaders ()
+                                    .add ("Retry-After", fault.retryAfter ());
+                            }
+                            
+                            httpExchange.sendResponseHeaders (fault.statusCode (), response.length);
+                            
+                            OutputStream out = httpExchange.getResponseBody ();
+                            
+                            out.write (response);
+                            out.close ();
+                            
+                            return;
+                        }
+                    }
+                    
+                    // HEAD responds with the headers of a GET only, e.g. for fetching the count alone
+                    boolean headRequest = httpExchange.getRequestMethod ().equals ("HEAD");
+                    
+                    if  (   !httpExchange.getRequestMethod ().equals ("GET")
+                            &&
+                            !httpExchange.getRequestMethod ().equals ("POST")
+                            &&
+                            !headRequest
+                        )
                     {
                         byte response[] =
                             new JSONObject ()
@@ -585,9 +1052,19 @@ public class PostgrestStub
                         return;
                     }
                     
-                    this.whereClause = "";
-                    this.orderByClause = "";
-                    this.whereClausesList = new ArrayList<> ();
+                    if (httpExchange.getRequestMethod ().equals ("POST"))
+                    {
+                        this.postMovies (httpExchange);
+                        
+                        return;
+                    }
+                    
+                    var movieQuery = new MovieQuery ();
+                    
+                    var prefer = httpExchange.getRequestHeaders ().getFirst ("Prefer");
+                    Matcher countPreferenceMatcher = COUNT_PREFERENCE_PATTERN.matcher (prefer == null ? "" : prefer);
+                    
+                    movieQuery.countPreference = (countPreferenceMatcher.find () ? countPreferenceMatcher.group (1) : null);
                     
                     var pathVariable = 
                         httpExchange
@@ -616,7 +1093,7 @@ public class PostgrestStub
                         
                         try
                         {
-                            this.queryMovies (pathVariable);
+                            this.queryMovies (movieQuery, pathVariable);
                         }
                         catch (SQLException exception)
                         {
@@ -665,7 +1142,7 @@ public class PostgrestStub
                         {
                             int id = Integer.valueOf (pathVariable);
                             
-                            this.filterMoviesById (id);
+                            this.filterMoviesById (movieQuery, id);
                         }
                         catch (SQLException exception)
                         {
@@ -689,14 +1166,14 @@ public class PostgrestStub
                     }
                     
                     byte response[] =
-                        this.getMoviesJSON ()
+                        this.getMoviesJSON (movieQuery)
                             .getBytes ("UTF-8");
                     
                     try
                     {
                         httpExchange
                             .getResponseHeaders ()
-                            .add ("Content-Range", this.getMoviesCount (this.whereClause, this.orderByClause));
+                            .add ("Content-Range", this.getMoviesCount (movieQuery));
                     }
                     catch (SQLException exception)
                     {
@@ -722,6 +1199,29 @@ public class PostgrestStub
                         .getResponseHeaders ()
                         .add ("Range-Units", "items");
                     
+                    // Entity tag for conditional requests - respond 304 Not Modified if the client's copy is current
+                    var eTag = "\"" + Integer.toHexString (Arrays.hashCode (response)) + "\"";
+                    
+                    httpExchange
+                        .getResponseHeaders ()
+                        .add ("ETag", eTag);
+                    
+                    if (eTag.equals (httpExchange.getRequestHeaders ().getFirst ("If-None-Match")))
+                    {
+                        httpExchange.sendResponseHeaders (304, -1);
+                        httpExchange.close ();
+                        
+                        return;
+                    }
+                    
+                    if (headRequest)
+                    {
+                        httpExchange.sendResponseHeaders (200, -1);
+                        httpExchange.close ();
+                        
+                        return;
+                    }
+                    
                     httpExchange.sendResponseHeaders (200, response.length);
                     
                     OutputStream out = httpExchange.getResponseBody ();
@@ -0,0 +1,266 @@
+package uk.co.smithdmy;
+
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import lombok.Getter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatusCode;
+
+/**
+  * Replays a weighted mix of GET requests against a resource at a target rate, recording a latency
+  * histogram per operation, for load testing against PostgrestStub (or a real PostgREST).
+  *
+  * The load is open-loop: each request is scheduled at a fixed interval from the start of the run and its
+  * latency is measured from when it was scheduled, not from when it was sent. A slow server therefore
+  * shows up as higher latency, rather than silently lowering the rate requests are sent at.
+  */
+public class PostgrestWorkload
+{
+    //--------------------------------------------------------------
+    
+    private Log log = LogFactory.getLog (this.getClass ());
+    
+    //--------------------------------------------------------------
+    
+    private record Operation
+        (   String                      name,
+            int                         weight,
+            Function<Random, String>    queryStringGenerator,
+            LatencyHistogram            latencyHistogram,
+            AtomicLong                  errors
+        )
+    {
+    
+    };
+    
+    //--------------------------------------------------------------
+    
+    private final PostgrestWrapper postgrestWrapper;
+    
+    private final List<Operation> operations = new ArrayList<> ();
+    private int totalWeight = 0;
+    
+    @Getter
+    private double requestsPerSecond = 100;
+    
+    @Getter
+    private Duration duration = Duration.ofSeconds (10);
+    
+    @Getter
+    private int maxConcurrency = 64;
+    
+    @Getter
+    private long seed = 0;
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Adds an operation to the mix.
+      *
+      * @param  name                  Identifies the operation in the results
+      * @param  weight                Relative frequency of the operation in the mix
+      * @param  queryStringGenerator  Returns the query string of each request, given the workload's random generator
+      */
+    public PostgrestWorkload operation
+        (   String                      name,
+            int                         weight,
+            Function<Random, String>    queryStringGenerator
+        )
+    {
+        if (weight < 1)
+        {
+            throw new IllegalArgumentException ("Operation weight must be at least 1");
+        }
+        
+        this.operations.add (new Operation (name, weight, queryStringGenerator, new LatencyHistogram (), new AtomicLong ()));
+        this.totalWeight += weight;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestWorkload requestsPerSecond (double requestsPerSecond)
+    {
+        this.requestsPerSecond = requestsPerSecond;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    public PostgrestWorkload duration (Duration duration)
+    {
+        this.duration = duration;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Requests beyond this are delayed until one completes - and their latency includes the delay
+    public PostgrestWorkload maxConcurrency (int maxConcurrency)
+    {
+        this.maxConcurrency = maxConcurrency;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Seeds the random generator, so that runs with the same seed send the same requests in the same order
+    public PostgrestWorkload seed (long seed)
+    {
+        this.seed = seed;
+        
+        return this;
+    }
+    
+    //--------------------------------------------------------------
+    
+    private Operation chooseOperation (Random random)
+    {
+        int choice = random.nextInt (this.totalWeight);
+        
+        for (Operation operation : this.operations)
+        {
+            choice -= operation.weight ();
+            
+            if (choice < 0)
+            {
+                return operation;
+            }
+        }
+        
+        return this.operations.get (this.operations.size () - 1);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Runs the workload for its duration, then waits for requests in flight to complete, and returns the
+      * number of requests and errors, the rate achieved, and latency statistics overall and per operation.
+      */
+    public JSONObject run ()
+    {
+        if (this.operations.isEmpty ())
+        {
+            throw new IllegalStateException ("No operations have been added to the workload");
+        }
+        
+        Random random = new Random (this.seed);
+        Semaphore concurrencyPermits = new Semaphore (this.maxConcurrency);
+        LatencyHistogram latencyHistogram = new LatencyHistogram ();
+        
+        long intervalNanos = (long) (1_000_000_000 / this.requestsPerSecond);
+        long requestCount = this.duration.toNanos () / intervalNanos;
+        
+        List<CompletableFuture<?>> futureResponses = new ArrayList<> ();
+        
+        log.info ("Running workload of " + requestCount + " requests at " + this.requestsPerSecond + " requests/s");
+        
+        long startNanos = System.nanoTime ();
+        
+        try
+        {
+            for (long request = 0; request < requestCount; request++)
+            {
+                long scheduledNanos = startNanos + request * intervalNanos;
+                
+                // Wait until the request is due, then for a free permit if too many are in flight
+                for (long waitNanos = scheduledNanos - System.nanoTime (); waitNanos > 0; waitNanos = scheduledNanos - System.nanoTime ())
+                {
+                    LockSupport.parkNanos (waitNanos);
+                }
+                
+                Operation operation = this.chooseOperation (random);
+                String queryString = operation.queryStringGenerator ().apply (random);
+                
+                concurrencyPermits.acquire ();
+                
+                futureResponses.add
+                    (   this.postgrestWrapper
+                            .copyWithQueryString (queryString)
+                            .getHttpResponseAsync ()
+                            .whenComplete
+                                (   (httpResponse, exception) ->
+                                    {
+                                        concurrencyPermits.release ();
+                                        
+                                        long latencyNanos = System.nanoTime () - scheduledNanos;
+                                        
+                                        latencyHistogram.recordNanos (latencyNanos);
+                                        operation.latencyHistogram ().recordNanos (latencyNanos);
+                                        
+                                        if  (   exception != null
+                                                ||
+                                                HttpStatusCode.valueOf (httpResponse.optInt ("status_code", HttpURLConnection.HTTP_INTERNAL_ERROR)).isError ()
+                                            )
+                                        {
+                                            operation.errors ().incrementAndGet ();
+                                        }
+                                    }
+                                )
+                    );
+            }
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread ().interrupt ();
+            
+            throw new IllegalStateException ("Interrupted while running workload", exception);
+        }
+        
+        CompletableFuture.allOf (futureResponses.toArray (new CompletableFuture<?>[0])).exceptionally (exception -> null).join ();
+        
+        double elapsedSeconds = (System.nanoTime () - startNanos) / 1e9;
+        
+        Map<String, JSONObject> operationResults = new LinkedHashMap<> ();
+        long errors = 0;
+        
+        for (Operation operation : this.operations)
+        {
+            operationResults.put
+                (   operation.name (),
+                    operation.latencyHistogram ()
+                        .getStatistics ()
+                        .put ("errors", operation.errors ().get ())
+                );
+            
+            errors += operation.errors ().get ();
+        }
+        
+        return
+            new JSONObject ()
+                .put ("requests", requestCount)
+                .put ("errors", errors)
+                .put ("elapsed_s", Math.round (elapsedSeconds * 1000) / 1000.0)
+                .put ("requests_per_second", Math.round (requestCount / elapsedSeconds * 10) / 10.0)
+                .put ("latency", latencyHistogram.getStatistics ())
+                .put ("operations", new JSONObject (operationResults));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestWorkload (PostgrestWrapper postgrestWrapper)
+    {
+        this.postgrestWrapper = postgrestWrapper;
+    }
+    
+    //--------------------------------------------------------------
+}
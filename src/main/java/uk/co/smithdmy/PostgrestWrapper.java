@@ -1,18 +1,33 @@
 package uk.co.smithdmy;
 
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
 import java.net.URLDecoder;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.net.HttpURLConnection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,26 +51,13 @@ public class PostgrestWrapper
     
     //--------------------------------------------------------------
     
-    private record RequestMethodProperties
-        (   boolean         bodyExpected,
-            boolean         countExpected,
-            String          responseReturn,
-            String          profileType
-        )
-    {
-        
-    };
-    
-    //--------------------------------------------------------------
+    // Fields that make up the request template are set through the setters below, which discard the
+    // compiled template so that it is recompiled from the new settings on the next request
     
     @Getter
-    @Setter
     private String baseUrl;
     
-    private HttpRequest.Builder httpRequestBuilder = HttpRequest.newBuilder ();
-    
     @Getter
-    @Setter
     private String resource;
     
     @Getter
@@ -63,15 +65,16 @@ public class PostgrestWrapper
     private String resourceId;
     
     @Getter
-    @Setter
     private RequestMethod requestMethod = RequestMethod.GET;
     
     @Getter
     @Setter
     private String queryString;
     
+    // The columns to return, in PostgREST's select syntax - if null, every column is returned
     @Getter
-    @Setter
+    private String select;
+    
     private Map<String, String> headers = new HashMap<> ();
     
     @Getter
@@ -79,69 +82,175 @@ public class PostgrestWrapper
     private JSONObject body;
     
     @Getter
-    @Setter
     private String dbSchema = "public";
     
     @Getter
-    @Setter
     private String jwtAuthString;
     
+    // Takes the JWT for jwtPrincipal from the token manager for each request, in place of jwtAuthString
+    @Getter
+    @Setter
+    private JwtTokenManager jwtTokenManager;
+    
     @Getter
     @Setter
+    private String jwtPrincipal;
+    
+    @Getter
     private boolean commitTransaction = true;
     
+    // How rows are counted for the total in Content-Range - NONE leaves counting to fetchCount ()
     @Getter
-    private final Map<RequestMethod, RequestMethodProperties> REQUEST_METHODS =
-        Map.of
-            (   RequestMethod.DELETE,   new RequestMethodProperties
-                                            (   false,
-                                                false,
-                                                "minimal",
-                                                "Content"
-                                            ),
-                RequestMethod.GET,      new RequestMethodProperties
-                                            (   false,
-                                                true,
-                                                "minimal",
-                                                "Accept"
-                                            ),
-                RequestMethod.HEAD,     new RequestMethodProperties
-                                            (   false,
-                                                false,
-                                                "minimal",
-                                                "Accept"
-                                            ),
-                RequestMethod.OPTIONS,  new RequestMethodProperties
-                                            (   false,
-                                                false,
-                                                "minimal",
-                                                "Content"
-                                            ),
-                RequestMethod.PATCH,    new RequestMethodProperties
-                                            (   true,
-                                                false,
-                                                "representation",
-                                                "Content"
-                                            ),
-                RequestMethod.POST,     new RequestMethodProperties
-                                            (   true,
-                                                false,
-                                                "representation",
-                                                "Content"
-                                            ),
-                RequestMethod.PUT,      new RequestMethodProperties
-                                            (   true,
-                                                false,
-                                                "minimal",
-                                                "Content"
-                                            ),
-                RequestMethod.TRACE,    new RequestMethodProperties
-                                            (   false,
-                                                false,
-                                                "minimal",
-                                                "Content"
-                                            )
-            );
+    private CountStrategy countStrategy = CountStrategy.EXACT;
+    
+    // The client to send requests with - if null, the client registered for the base URL is used
+    @Getter
+    @Setter
+    private HttpClient httpClient;
+    
+    // Runs the client's asynchronous tasks, dependent stages and delays, e.g. virtual threads - if null,
+    // the client's own executor and the common pool are used
+    @Getter
+    @Setter
+    private Executor executor;
+    
+    // Opt-in cache of GET responses - if null, every request is sent upstream
+    @Getter
+    @Setter
+    private PostgrestResponseCache responseCache;
+    
+    // Opt-in cache of counts fetched by fetchCount () - if null, every count is sent upstream
+    @Getter
+    @Setter
+    private PostgrestCountCache countCache;
+    
+    // Opt-in single-flight of identical in-flight GET requests - if null, every request is sent separately
+    @Getter
+    @Setter
+    private PostgrestRequestCoalescer requestCoalescer;
+    
+    // Receives metrics for every request sent upstream - if null, no metrics are recorded
+    @Getter
+    @Setter
+    private PostgrestMetricsListener metricsListener;
+    
+    // What is logged about each request, and how much of it
+    @Getter
+    @Setter
+    private LoggingSettings loggingSettings = LoggingSettings.defaults ();
+    
+    // Retries failed idempotent requests - if null, requests are sent once
+    @Getter
+    @Setter
+    private RetryPolicy retryPolicy;
+    
+    // Hedges slow GET requests - if null, requests are not hedged
+    @Getter
+    @Setter
+    private HedgingPolicy hedgingPolicy;
+    
+    // Adaptive limit on requests in flight, shared by wrappers for the same upstream - if null, unlimited
+    @Getter
+    @Setter
+    private ConcurrencyLimiter concurrencyLimiter;
+    
+    // Fixed limit on requests in flight, shared by wrappers for the same resource - if null, unlimited
+    @Getter
+    @Setter
+    private ConcurrencyLimiter bulkhead;
+    
+    // Fails requests fast while the upstream is failing, shared via CircuitBreakerRegistry - if null, never trips
+    @Getter
+    @Setter
+    private CircuitBreaker circuitBreaker;
+    
+    private volatile PostgrestRequestTemplate requestTemplate;
+    
+    //--------------------------------------------------------------
+    
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile ("(\\d+)-(\\d+)/(\\d+|\\*)");
+    
+    //--------------------------------------------------------------
+    
+    public void setBaseUrl (String baseUrl)
+    {
+        this.baseUrl = baseUrl;
+        this.requestTemplate = null;
+    }
+    
+    public void setResource (String resource)
+    {
+        this.resource = resource;
+        this.requestTemplate = null;
+    }
+    
+    public void setRequestMethod (RequestMethod requestMethod)
+    {
+        this.requestMethod = requestMethod;
+        this.requestTemplate = null;
+    }
+    
+    public void setSelect (String select)
+    {
+        this.select = select;
+        this.requestTemplate = null;
+    }
+    
+    // Read-only, as the headers are compiled into the request template - change them with setHeaders ()
+    public Map<String, String> getHeaders ()
+    {
+        return Collections.unmodifiableMap (this.headers);
+    }
+    
+    public void setHeaders (Map<String, String> headers)
+    {
+        this.headers = new HashMap<> (headers);
+        this.requestTemplate = null;
+    }
+    
+    public void setDbSchema (String dbSchema)
+    {
+        this.dbSchema = dbSchema;
+        this.requestTemplate = null;
+    }
+    
+    public void setJwtAuthString (String jwtAuthString)
+    {
+        this.jwtAuthString = jwtAuthString;
+        this.requestTemplate = null;
+    }
+    
+    public void setCommitTransaction (boolean commitTransaction)
+    {
+        this.commitTransaction = commitTransaction;
+        this.requestTemplate = null;
+    }
+    
+    public void setCountStrategy (CountStrategy countStrategy)
+    {
+        this.countStrategy = countStrategy;
+        this.requestTemplate = null;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns the compiled request template for the current settings, compiling it if the settings have
+      * changed since it was last compiled.
+      */
+    public PostgrestRequestTemplate getRequestTemplate ()
+    {
+        PostgrestRequestTemplate requestTemplate = this.requestTemplate;
+        
+        if (requestTemplate == null)
+        {
+            requestTemplate = PostgrestRequestTemplate.compile (this);
+            
+            this.requestTemplate = requestTemplate;
+        }
+        
+        return requestTemplate;
+    }
     
     //--------------------------------------------------------------
     
@@ -151,14 +260,16 @@ public class PostgrestWrapper
       * 
       * @param  contentRange  The Content-Range response header
       */
-    private Map<String, Integer> parseContentRange (String contentRange)
+    Map<String, Integer> parseContentRange (String contentRange)
     {
-        log.info ("Parsing Content-Range header: " + contentRange);
+        if (log.isTraceEnabled ())
+        {
+            log.trace ("Parsing Content-Range header: " + contentRange);
+        }
         
         // Match defined content range, e.g. 1-10/15, 11-20/*
         
-        Pattern pattern = Pattern.compile ("(\\d+)-(\\d+)/(\\d+|\\*)");
-        Matcher matcher = pattern.matcher (contentRange);
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher (contentRange);
 
         if (matcher.matches ())
         {
@@ -191,6 +302,30 @@ public class PostgrestWrapper
     {
         JSONObject apiResponse = new JSONObject ();
         
+        // Report the underlying failure rather than the wrapper added by the future
+        if (exception instanceof CompletionException && exception.getCause () != null)
+        {
+            exception = exception.getCause ();
+        }
+        
+        // Requests shed before they were sent are reported as unavailable, rather than as upstream failures
+        if (exception instanceof PostgrestRejectedException)
+        {
+            return
+                apiResponse
+                    .put ("status_code", HttpURLConnection.HTTP_UNAVAILABLE)
+                    .put ("body", new JSONObject ().put ("message", exception.getMessage ()));
+        }
+        
+        // Failed logins by the token manager are reported with the login's status and message
+        if (exception instanceof PostgrestResponseException postgrestResponseException)
+        {
+            return
+                apiResponse
+                    .put ("status_code", postgrestResponseException.getStatusCode ())
+                    .put ("body", postgrestResponseException.getBody () != null ? postgrestResponseException.getBody () : new JSONObject ());
+        }
+        
         apiResponse = apiResponse.put ("status_code", HttpURLConnection.HTTP_INTERNAL_ERROR);
         
         log.warn (exception.getMessage ());
@@ -200,278 +335,1482 @@ public class PostgrestWrapper
     
     //--------------------------------------------------------------
     
-    private void buildHttpRequest ()
+    // Adds the parsed Content-Range header values to the API response
+    private JSONObject putContentRange (JSONObject apiResponse, String contentRange)
     {
-        var queryString =
-            (   this.queryString == null
-                ?   ""
-                :   !this.queryString.startsWith ("?")
-                    ?   "?" + this.queryString
-                    :   this.queryString
-            );
-        
-        this.httpRequestBuilder =
-            this.httpRequestBuilder
-                .uri
-                    (   URI
-                            .create
-                                (   String
-                                        .format
-                                            (   this.baseUrl + "%s%s",
-                                                this.resource + (this.resource.endsWith ("/") ? "" : "/"),
-                                                queryString
-                                            )
-                                )
-                    );
-        
-        this.httpRequestBuilder =
-            this.httpRequestBuilder
-                .method
-                    (   this.requestMethod.toString (),
-                        REQUEST_METHODS
-                            .get (this.requestMethod)
-                            .bodyExpected
-                                ?   HttpRequest.BodyPublishers.ofString (this.body.toString ())
-                                :   HttpRequest.BodyPublishers.noBody ()
-                    );
-        
-        this.httpRequestBuilder =
-            this.httpRequestBuilder
-                .header
-                    (   "Content-Type",
-                        "application/json"
-                    );
-        
-        this.httpRequestBuilder =
-            this.httpRequestBuilder
-                .header
-                    (   "Prefer",
-                            "count=exact" // Returns exact count of returned resources
-                        +   ", return="
-                        +   REQUEST_METHODS
-                                .get (this.requestMethod)
-                                .responseReturn ()
-                        +   ", tx=" // For determining whether to commit a write request
-                        +   (  this.commitTransaction
-                                ?  "commit"
-                                :  "rollback"
-                            )
-                    );
+        Map<String, Integer> contentRangeMap = this.parseContentRange (contentRange);
         
-        this.httpRequestBuilder =
-            this.httpRequestBuilder
-                .header
-                    (       REQUEST_METHODS
-                                .get (this.requestMethod)
-                                .profileType ()
-                        +   "-Profile",
-                        this.dbSchema
-                    );
-        
-        if (this.jwtAuthString != null)
+        for (Map.Entry<String, Integer> contentRangeEntry : contentRangeMap.entrySet ())
         {
-            this.httpRequestBuilder =
-                this.httpRequestBuilder
-                    .header ("Authorization", "Bearer " + this.jwtAuthString);
-        };
+            apiResponse = apiResponse.put (contentRangeEntry.getKey (), contentRangeEntry.getValue ());
+        }
         
-        for (Map.Entry<String, String> header : this.headers.entrySet ())
+        return apiResponse;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the decoded Content-Location header in the response
+    private String getContentLocation (HttpHeaders httpHeaders)
+    {
+        try
         {
-            this.httpRequestBuilder =
-                this.httpRequestBuilder
-                    .header
-                        (   header.getKey (),
-                            header.getValue ()
-                        );
+            return
+                URLDecoder.decode
+                    (   httpHeaders
+                            .firstValue ("Content-Location")
+                            .orElse (""),
+                        StandardCharsets
+                            .UTF_8
+                            .toString ()
+                    );
+        }
+        catch (UnsupportedEncodingException exception) // This *should* never happen unless UTF-8 encoding ceases to be ...
+        {
+            throw new AssertionError ("UTF-8 is unknown");
         }
     }
     
     //--------------------------------------------------------------
     
-    public JSONObject getHttpResponse ()
+    private void logHttpRequest (HttpRequest httpRequest)
     {
-        JSONObject apiResponse = new JSONObject ();
-        
-        HttpClient httpClient =
-            SingleHttpClient
-                .getInstance ()
-                .getHttpClient ();
-        
-        this.buildHttpRequest ();
-        var httpRequest = this.httpRequestBuilder.build ();
-        
-        log.info (httpRequest.headers ().toString ());
-        
-        // Send Asynchronous HTTP request
-        CompletableFuture<HttpResponse<String>> futureResponse =
-            httpClient
-                .sendAsync
-                    (   httpRequest,
-                        HttpResponse
-                            .BodyHandlers
-                            .ofString ()
-                    );
-        
-        // Process the HTTP response as it is received
-        futureResponse.thenApply (HttpResponse::body);
-        
-        // Get the HTTP response
-        HttpResponse<String> httpResponse;
-        try
+        if (log.isDebugEnabled ())
         {
-            httpResponse = futureResponse.get ();
+            log.debug
+                (       "Request: "
+                    +   httpRequest.method ()
+                    +   " "
+                    +   httpRequest.uri ()
+                    +   " "
+                    +   this.loggingSettings.formatHeaders (httpRequest.headers ())
+                );
         }
-        catch (InterruptedException | ExecutionException exception)
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Logs the response status and headers - and a sample of response bodies, truncated, at TRACE
+    private void logHttpResponse
+        (   HttpResponse<?>     httpResponse,
+            String              body
+        )
+    {
+        if (log.isDebugEnabled ())
         {
-            return this.getInternalServerErrorResponse (exception);
+            log.debug
+                (       "Response: "
+                    +   httpResponse.statusCode ()
+                    +   " "
+                    +   httpResponse.request ().method ()
+                    +   " "
+                    +   httpResponse.uri ()
+                    +   " "
+                    +   this.loggingSettings.formatHeaders (httpResponse.headers ())
+                );
         }
         
-        log.info (httpResponse.toString ());
-        
-        apiResponse = apiResponse.put ("status_code", httpResponse.statusCode ());
-        
-        HttpStatusCode httpStatusCode = HttpStatusCode.valueOf (httpResponse.statusCode ());
-        
-        if (!httpStatusCode.isError ())
+        if (body != null && log.isTraceEnabled () && this.loggingSettings.isBodySampled ())
         {
-            // Create the appropriate JSON Array OR Object depending on the type returned by the API response
-            if (httpResponse.body ().startsWith ("["))
-            {
-                apiResponse = apiResponse.put ("body", new JSONArray (httpResponse.body ()));
-            }
-            else if (httpResponse.body ().startsWith ("{"))
-            {
-                apiResponse = apiResponse.put ("body", new JSONObject (httpResponse.body ()));
-            }
-            
-            // Get row details for GET requests
-            if (this.requestMethod == RequestMethod.GET)
-            {
-                // Get the Content-Range header in the response
-                String contentRange =
-                    httpResponse
-                        .headers ()
-                        .firstValue ("Content-Range")
-                        .orElse ("");
-                
-                switch (apiResponse.getJSONArray ("body").length ())
-                {
-                    case 0:
-                    {
-                        apiResponse = apiResponse.put ("rownum_from", 0);
-                        apiResponse = apiResponse.put ("rownum_to", 0);
-                        apiResponse = apiResponse.put ("rowcount", 0);
-                        break;
-                    }
-                    default:
-                    {
-                        for (String contentRangeKey : this.parseContentRange (contentRange).keySet ())
-                        {
-                            apiResponse =
-                                apiResponse
-                                    .put
-                                        (   contentRangeKey,
-                                            this
-                                                .parseContentRange (contentRange)
-                                                .get (contentRangeKey)
-                                        );
-                        }
-                    }
-                }
-            }
-            
-            // Get the Content-Location header in the response
-            String contentLocation;
-            try
-            {
-                contentLocation =
-                    URLDecoder.decode
-                        (   httpResponse
-                                .headers ()
-                                .firstValue ("Content-Location")
-                                .orElse (""),
-                            StandardCharsets
-                                .UTF_8
-                                .toString ()
-                        );
-            }
-            catch (UnsupportedEncodingException exception) // This *should* never happen unless UTF-8 encoding ceases to be ...
-            {
-                throw new AssertionError ("UTF-8 is unknown");
-            }
-            
-            apiResponse = apiResponse.put ("content_location", contentLocation);
+            log.trace ("Response body: " + this.loggingSettings.formatBody (body));
         }
-        else
+    }
+    
+    //--------------------------------------------------------------
+    
+    HttpClient getUpstreamHttpClient ()
+    {
+        if (this.httpClient != null)
         {
-            apiResponse = apiResponse.put ("body", new JSONObject (httpResponse.body ()));
+            return this.httpClient;
         }
         
-        log.info ("postgREST database API response: " + apiResponse.toString ());
+        return
+            (   this.executor != null
+                ?   HttpClientRegistry.getInstance ().getHttpClient (this.baseUrl, this.executor)
+                :   HttpClientRegistry.getInstance ().getHttpClient (this.baseUrl)
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns an executor that runs tasks after the delay, on the wrapper's executor if it has one
+    private Executor getDelayedExecutor (long delayNanos)
+    {
+        return
+            (   this.executor != null
+                ?   CompletableFuture.delayedExecutor (delayNanos, TimeUnit.NANOSECONDS, this.executor)
+                :   CompletableFuture.delayedExecutor (delayNanos, TimeUnit.NANOSECONDS)
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the token manager's JWT for the principal, or null if the wrapper has no token manager - completing
+    // at once unless the principal has to log in first, and exceptionally if the login fails
+    CompletableFuture<String> getJwtAsync ()
+    {
+        if (this.jwtTokenManager == null)
+        {
+            return CompletableFuture.completedFuture (null);
+        }
         
-        return apiResponse;
+        return this.jwtTokenManager.getTokenAsync (this.jwtPrincipal);
     }
     
     //--------------------------------------------------------------
     
-    // CONSTRUCTOR
-    public PostgrestWrapper
-        (   String baseUrl,
-            String resource
-        )
+    // As getJwtAsync (), waiting for the JWT - for the methods that wait for their response anyway
+    private String getJwt ()
     {
-        this.baseUrl = baseUrl;
-        this.resource = resource;
+        return (this.jwtTokenManager != null ? this.jwtTokenManager.getToken (this.jwtPrincipal) : null);
     }
     
     //--------------------------------------------------------------
     
-    public static JSONObject authenticateUser
-        (   String  baseUrl,
-            String  functionName,
-            String  email,
-            String  password
+    // Discards the token manager's JWT if PostgREST rejected it, so that the next request logs in again
+    void checkJwtRejected
+        (   String  jwt,
+            int     statusCode
         )
     {
-        final int FAILURE_DELAY_SECONDS = 1;
-        
-        var authPostgrestWrapper =
-            new PostgrestWrapperBuilder (baseUrl, functionName)
-                .requestMethod (RequestMethod.POST)
-                .body
-                    (   new JSONObject ()
-                            .put ("p_email", email)
-                            .put ("p_password", password)
+        if (jwt != null && statusCode == HttpURLConnection.HTTP_UNAUTHORIZED)
+        {
+            this.jwtTokenManager.invalidate (this.jwtPrincipal, jwt);
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the request authorised with the JWT in place of the template's Authorization header, if not null
+    static HttpRequest authorise
+        (   HttpRequest     httpRequest,
+            String          jwt
+        )
+    {
+        if (jwt == null)
+        {
+            return httpRequest;
+        }
+        
+        return
+            HttpRequest
+                .newBuilder (httpRequest, (name, value) -> !name.equalsIgnoreCase ("Authorization"))
+                .header ("Authorization", "Bearer " + jwt)
+                .build ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Creates the HTTP request from the compiled request template, with this wrapper's query string and body,
+    // waiting for the token manager's JWT if the principal has to log in first
+    HttpRequest buildHttpRequest ()
+    {
+        return this.buildHttpRequest (this.getJwt ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    // As buildHttpRequest (), but authorised with the given JWT if not null
+    private HttpRequest buildHttpRequest (String jwt)
+    {
+        PostgrestRequestTemplate requestTemplate = this.getRequestTemplate ();
+        
+        return
+            authorise
+                (   requestTemplate
+                        .newHttpRequest
+                            (   this.queryString,
+                                requestTemplate.isBodyExpected ()
+                                    ?   this.body.toString ()
+                                    :   null
+                            ),
+                    jwt
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Sends the request asynchronously, with the response parsing, Content-Range handling and error mapping
+      * composed onto the returned future, so that no caller thread is blocked while the request is in flight.
+      * Failures to send the request complete the future with the same synthetic 500 response as getHttpResponse().
+      */
+    public CompletableFuture<JSONObject> getHttpResponseAsync ()
+    {
+        if (this.jwtTokenManager == null)
+        {
+            return this.getCoalescedHttpResponseAsync (this.buildHttpRequest (null));
+        }
+        
+        // The token is cached, so this completes at once unless the principal has to log in first
+        return
+            this.getJwtAsync ()
+                .handle
+                    (   (jwt, exception) ->
+                            exception == null
+                                ?   this.getAuthorisedHttpResponseAsync (jwt)
+                                :   CompletableFuture.completedFuture (this.getInternalServerErrorResponse (exception))
+                    )
+                .thenCompose (Function.identity ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends the request with the token manager's JWT, discarding the token if PostgREST rejects it
+    private CompletableFuture<JSONObject> getAuthorisedHttpResponseAsync (String jwt)
+    {
+        return
+            this.getCoalescedHttpResponseAsync (this.buildHttpRequest (jwt))
+                .thenApply
+                    (   apiResponse ->
+                        {
+                            this.checkJwtRejected (jwt, apiResponse.getInt ("status_code"));
+                            
+                            return apiResponse;
+                        }
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Logs the request, then sends it, or shares the response of an identical request in flight
+    private CompletableFuture<JSONObject> getCoalescedHttpResponseAsync (HttpRequest httpRequest)
+    {
+        this.logHttpRequest (httpRequest);
+        
+        // Share the API response of an identical request already in flight, if there is one
+        if  (   this.requestCoalescer != null
+                &&
+                (   this.requestMethod == RequestMethod.GET
+                    ||
+                    this.requestMethod == RequestMethod.HEAD
+                )
+            )
+        {
+            return
+                this.requestCoalescer
+                    .execute
+                        (   PostgrestRequestCoalescer.getKey (httpRequest),
+                            () -> this.getHttpResponseAsync (httpRequest)
+                        );
+        }
+        
+        return this.getHttpResponseAsync (httpRequest);
+    }
+    
+    //--------------------------------------------------------------
+    
+    private CompletableFuture<JSONObject> getHttpResponseAsync (HttpRequest httpRequest)
+    {
+        if (this.responseCache != null)
+        {
+            return this.getCachedHttpResponseAsync (httpRequest);
+        }
+        
+        // Send Asynchronous HTTP request, processing the HTTP response as it is received
+        return
+            this.sendHttpRequestAsync (httpRequest)
+                .handle
+                    (   (httpResponse, exception) ->
+                            exception == null
+                                ?   this.parseHttpResponse (httpResponse)
+                                :   this.getInternalServerErrorResponse (exception)
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends the HTTP request upstream - all requests made by the wrapper are sent through here, to be
+    // retried and hedged according to the wrapper's policies
+    <T> CompletableFuture<HttpResponse<T>> sendHttpRequestAsync
+        (   HttpRequest                     httpRequest,
+            HttpResponse.BodyHandler<T>     bodyHandler
+        )
+    {
+        if (this.retryPolicy == null)
+        {
+            return this.sendHedgedHttpRequestAsync (httpRequest, bodyHandler);
+        }
+        
+        return this.sendHttpRequestAsync (httpRequest, bodyHandler, this.retryPolicy, 1);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends the given attempt of the request, then sends it again after a delay if the retry policy allows
+    private <T> CompletableFuture<HttpResponse<T>> sendHttpRequestAsync
+        (   HttpRequest                     httpRequest,
+            HttpResponse.BodyHandler<T>     bodyHandler,
+            RetryPolicy                     retryPolicy,
+            int                             attempt
+        )
+    {
+        RequestMethod requestMethod = RequestMethod.valueOf (httpRequest.method ());
+        
+        return
+            this.sendHedgedHttpRequestAsync (httpRequest, bodyHandler)
+                .handle
+                    (   (httpResponse, exception) ->
+                        {
+                            long retryDelayNanos = retryPolicy.getRetryDelayNanos (requestMethod, attempt, httpResponse, exception);
+                            
+                            if (retryDelayNanos < 0)
+                            {
+                                return
+                                    (   exception == null
+                                        ?   CompletableFuture.completedFuture (httpResponse)
+                                        :   CompletableFuture.<HttpResponse<T>>failedFuture (exception)
+                                    );
+                            }
+                            
+                            discardBody (httpResponse);
+                            
+                            if (log.isDebugEnabled ())
+                            {
+                                log.debug
+                                    (       "Retrying "
+                                        +   requestMethod
+                                        +   " "
+                                        +   httpRequest.uri ()
+                                        +   " in "
+                                        +   TimeUnit.NANOSECONDS.toMillis (retryDelayNanos)
+                                        +   " ms after attempt "
+                                        +   attempt
+                                        +   (httpResponse == null ? " failed" : " returned " + httpResponse.statusCode ())
+                                    );
+                            }
+                            
+                            if (this.metricsListener != null)
+                            {
+                                this.metricsListener.requestRetried (this.resource, requestMethod, attempt);
+                            }
+                            
+                            // Wait without blocking a thread, then send the next attempt
+                            return
+                                CompletableFuture
+                                    .runAsync (() -> {}, this.getDelayedExecutor (retryDelayNanos))
+                                    .thenCompose (ignored -> this.sendHttpRequestAsync (httpRequest, bodyHandler, retryPolicy, attempt + 1));
+                        }
+                    )
+                .thenCompose (Function.identity ());
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends a GET or HEAD request, and an identical hedge request if the first has not responded within the
+    // hedging policy's delay, completing with whichever response arrives first
+    private <T> CompletableFuture<HttpResponse<T>> sendHedgedHttpRequestAsync
+        (   HttpRequest                     httpRequest,
+            HttpResponse.BodyHandler<T>     bodyHandler
+        )
+    {
+        HedgingPolicy hedgingPolicy = this.hedgingPolicy;
+        
+        if  (   hedgingPolicy == null
+                ||
+                !(   httpRequest.method ().equals ("GET")
+                     ||
+                     httpRequest.method ().equals ("HEAD")
+                 )
+            )
+        {
+            return this.sendUpstreamHttpRequestAsync (httpRequest, bodyHandler);
+        }
+        
+        long hedgeDelayNanos = hedgingPolicy.getHedgeDelayNanos ();
+        long startNanos = System.nanoTime ();
+        
+        CompletableFuture<HttpResponse<T>> firstRequest =
+            this.sendUpstreamHttpRequestAsync (httpRequest, bodyHandler)
+                .whenComplete
+                    (   (httpResponse, exception) ->
+                        {
+                            if (exception == null)
+                            {
+                                hedgingPolicy.recordLatencyNanos (System.nanoTime () - startNanos);
+                            }
+                        }
+                    );
+        
+        if (hedgeDelayNanos < 0) // Too few latencies recorded to hedge yet
+        {
+            return firstRequest;
+        }
+        
+        CompletableFuture<HttpResponse<T>> firstResponse = new CompletableFuture<> ();
+        
+        // Requests sent that have not failed - the first response only fails once every request has failed
+        AtomicInteger pendingRequests = new AtomicInteger (1);
+        
+        BiConsumer<HttpResponse<T>, Throwable> completeFirstResponse =
+            (httpResponse, exception) ->
+            {
+                if (exception == null)
+                {
+                    if (!firstResponse.complete (httpResponse))
+                    {
+                        discardBody (httpResponse);
+                    }
+                }
+                else if (pendingRequests.decrementAndGet () == 0)
+                {
+                    firstResponse.completeExceptionally (exception);
+                }
+            };
+        
+        firstRequest.whenComplete (completeFirstResponse);
+        
+        this.getDelayedExecutor (hedgeDelayNanos)
+            .execute
+                (   () ->
+                    {
+                        // Only hedge if the first request is still in flight
+                        if  (   firstResponse.isDone ()
+                                ||
+                                pendingRequests.getAndUpdate (requests -> requests == 0 ? 0 : requests + 1) == 0
+                            )
+                        {
+                            return;
+                        }
+                        
+                        hedgingPolicy.recordHedgedRequest ();
+                        
+                        this.sendUpstreamHttpRequestAsync (httpRequest, bodyHandler).whenComplete (completeFirstResponse);
+                    }
+                );
+        
+        return firstResponse;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Releases the connection of a response that will not be used, if its body is still to be read
+    private static void discardBody (HttpResponse<?> httpResponse)
+    {
+        if (httpResponse != null && httpResponse.body () instanceof InputStream bodyStream)
+        {
+            try
+            {
+                bodyStream.close ();
+            }
+            catch (IOException exception)
+            {
+                // Nothing more can be done with a response that is being discarded
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends a single attempt of the HTTP request upstream unless the circuit breaker is open, recording its outcome
+    private <T> CompletableFuture<HttpResponse<T>> sendUpstreamHttpRequestAsync
+        (   HttpRequest                     httpRequest,
+            HttpResponse.BodyHandler<T>     bodyHandler
+        )
+    {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        
+        if (circuitBreaker == null)
+        {
+            return this.sendLimitedHttpRequestAsync (httpRequest, bodyHandler);
+        }
+        
+        long generation = circuitBreaker.tryAcquire ();
+        
+        if (generation < 0)
+        {
+            return CompletableFuture.failedFuture (new PostgrestRejectedException ("Circuit breaker open for " + this.resource));
+        }
+        
+        return
+            this.sendLimitedHttpRequestAsync (httpRequest, bodyHandler)
+                .whenComplete
+                    (   (httpResponse, exception) ->
+                        {
+                            Throwable cause = (exception instanceof CompletionException ? exception.getCause () : exception);
+                            
+                            if (cause instanceof PostgrestRejectedException) // Shed before it was sent
+                            {
+                                circuitBreaker.recordNotSent (generation);
+                            }
+                            else
+                            {
+                                circuitBreaker.recordResult (generation, (httpResponse == null ? 0 : httpResponse.statusCode ()), exception);
+                            }
+                        }
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends a single attempt of the HTTP request upstream once the bulkhead and concurrency limiter allow
+    private <T> CompletableFuture<HttpResponse<T>> sendLimitedHttpRequestAsync
+        (   HttpRequest                     httpRequest,
+            HttpResponse.BodyHandler<T>     bodyHandler
+        )
+    {
+        if (this.bulkhead == null && this.concurrencyLimiter == null)
+        {
+            return this.sendMeteredHttpRequestAsync (httpRequest, bodyHandler);
+        }
+        
+        ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        
+        return
+            ConcurrencyLimiter
+                .acquire (this.bulkhead)
+                .thenCompose
+                    (   bulkheadPermit ->
+                            ConcurrencyLimiter
+                                .acquire (concurrencyLimiter)
+                                .whenComplete
+                                    (   (limiterPermit, exception) ->
+                                        {
+                                            if (exception != null) // Rejected by the limiter
+                                            {
+                                                bulkheadPermit.release (0, null);
+                                            }
+                                        }
+                                    )
+                                .thenCompose
+                                    (   limiterPermit ->
+                                            this.sendMeteredHttpRequestAsync (httpRequest, bodyHandler)
+                                                .whenComplete
+                                                    (   (httpResponse, exception) ->
+                                                        {
+                                                            int statusCode = (httpResponse == null ? 0 : httpResponse.statusCode ());
+                                                            
+                                                            limiterPermit.release (statusCode, exception);
+                                                            bulkheadPermit.release (statusCode, exception);
+                                                        }
+                                                    )
+                                    )
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends the HTTP request upstream, reporting it to the metrics listener
+    private <T> CompletableFuture<HttpResponse<T>> sendMeteredHttpRequestAsync
+        (   HttpRequest                     httpRequest,
+            HttpResponse.BodyHandler<T>     bodyHandler
+        )
+    {
+        PostgrestMetricsListener metricsListener = this.metricsListener;
+        
+        if (metricsListener == null)
+        {
+            return
+                this.getUpstreamHttpClient ()
+                    .sendAsync
+                        (   httpRequest,
+                            bodyHandler
+                        );
+        }
+        
+        RequestMethod requestMethod = RequestMethod.valueOf (httpRequest.method ());
+        LongAdder bytesReceived = new LongAdder ();
+        
+        // A failing listener must not fail the request, nor stop its completion being reported
+        try
+        {
+            metricsListener.requestStarted (this.resource, requestMethod);
+        }
+        catch (RuntimeException listenerException)
+        {
+            log.warn ("Metrics listener failed: " + listenerException.getMessage ());
+        }
+        
+        long startNanos = System.nanoTime ();
+        
+        return
+            this.getUpstreamHttpClient ()
+                .sendAsync
+                    (   httpRequest,
+                        countBytesReceived (bodyHandler, bytesReceived)
+                    )
+                .whenComplete
+                    (   (httpResponse, exception) ->
+                        {
+                            long latencyNanos = System.nanoTime () - startNanos;
+                            
+                            long bytesSent =
+                                httpRequest
+                                    .bodyPublisher ()
+                                    .map (bodyPublisher -> Math.max (0, bodyPublisher.contentLength ()))
+                                    .orElse (0L);
+                            
+                            // A streamed body has not been read yet, so fall back on its declared length
+                            long bodyBytesReceived =
+                                (   httpResponse == null
+                                    ?   bytesReceived.sum ()
+                                    :   Math.max
+                                            (   bytesReceived.sum (),
+                                                httpResponse.headers ().firstValueAsLong ("Content-Length").orElse (0)
+                                            )
+                                );
+                            
+                            var requestMetrics =
+                                new PostgrestRequestMetrics
+                                    (   this.resource,
+                                        requestMethod,
+                                        httpResponse == null ? 0 : httpResponse.statusCode (),
+                                        latencyNanos,
+                                        bytesSent,
+                                        bodyBytesReceived,
+                                        httpResponse == null ? 0 : getRowsReturned (httpResponse.headers ()),
+                                        exception
+                                    );
+                            
+                            // A failing listener must not fail the request
+                            try
+                            {
+                                metricsListener.requestCompleted (requestMetrics);
+                            }
+                            catch (RuntimeException listenerException)
+                            {
+                                log.warn ("Metrics listener failed: " + listenerException.getMessage ());
+                            }
+                        }
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Wraps the body handler to count the bytes of the response body as they are received
+    private static <T> HttpResponse.BodyHandler<T> countBytesReceived
+        (   HttpResponse.BodyHandler<T>     bodyHandler,
+            LongAdder                       bytesReceived
+        )
+    {
+        return
+            responseInfo ->
+            {
+                HttpResponse.BodySubscriber<T> bodySubscriber = bodyHandler.apply (responseInfo);
+                
+                return
+                    new HttpResponse.BodySubscriber<T> ()
+                    {
+                        @Override
+                        public CompletionStage<T> getBody () { return bodySubscriber.getBody (); }
+                        
+                        @Override
+                        public void onSubscribe (Flow.Subscription subscription) { bodySubscriber.onSubscribe (subscription); }
+                        
+                        @Override
+                        public void onNext (List<ByteBuffer> byteBuffers)
+                        {
+                            for (ByteBuffer byteBuffer : byteBuffers)
+                            {
+                                bytesReceived.add (byteBuffer.remaining ());
+                            }
+                            
+                            bodySubscriber.onNext (byteBuffers);
+                        }
+                        
+                        @Override
+                        public void onError (Throwable throwable) { bodySubscriber.onError (throwable); }
+                        
+                        @Override
+                        public void onComplete () { bodySubscriber.onComplete (); }
+                    };
+            };
+    }
+    
+    //--------------------------------------------------------------
+    
+    // The number of rows in the Content-Range header, e.g. 10 for 0-9/15, or 0 if there are none
+    private static long getRowsReturned (HttpHeaders httpHeaders)
+    {
+        Matcher matcher =
+            CONTENT_RANGE_PATTERN.matcher
+                (   httpHeaders
+                        .firstValue ("Content-Range")
+                        .orElse ("")
+                );
+        
+        return
+            (   matcher.matches ()
+                ?   Long.parseLong (matcher.group (2)) - Long.parseLong (matcher.group (1)) + 1
+                :   0
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    CompletableFuture<HttpResponse<String>> sendHttpRequestAsync (HttpRequest httpRequest)
+    {
+        return
+            this.sendHttpRequestAsync
+                (   httpRequest,
+                    HttpResponse
+                        .BodyHandlers
+                        .ofString ()
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns fresh GET responses from the response cache (revalidating stale ones where possible), and
+    // invalidates the resource's cached responses on successful writes
+    private CompletableFuture<JSONObject> getCachedHttpResponseAsync (HttpRequest httpRequest)
+    {
+        String resourceUri = this.getRequestTemplate ().getResourceUri ();
+        
+        if (this.requestMethod != RequestMethod.GET)
+        {
+            return
+                this.sendHttpRequestAsync (httpRequest)
+                    .handle
+                        (   (httpResponse, exception) ->
+                            {
+                                if (exception != null)
+                                {
+                                    return this.getInternalServerErrorResponse (exception);
+                                }
+                                
+                                // HEAD and OPTIONS requests change nothing, so leave the cached responses in place
+                                if  (   PostgrestResponseCache.isInvalidatedBy (this.requestMethod)
+                                        &&
+                                        !HttpStatusCode.valueOf (httpResponse.statusCode ()).isError ()
+                                    )
+                                {
+                                    this.responseCache.invalidate (resourceUri);
+                                }
+                                
+                                return this.parseHttpResponse (httpResponse);
+                            }
+                        );
+        }
+        
+        String cacheKey = PostgrestResponseCache.getKey (httpRequest);
+        
+        var cachedResponse = this.responseCache.get (cacheKey);
+        
+        if (cachedResponse != null && cachedResponse.isFresh ())
+        {
+            return
+                CompletableFuture
+                    .completedFuture (cachedResponse.httpResponse ())
+                    .thenApply (this::parseHttpResponse);
+        }
+        
+        // Ask the upstream to respond 304 Not Modified if the stale response is still current
+        var conditionalHttpRequest =
+            (   cachedResponse != null && cachedResponse.etag () != null
+                ?   HttpRequest
+                        .newBuilder (httpRequest, (name, value) -> true)
+                        .header ("If-None-Match", cachedResponse.etag ())
+                        .build ()
+                :   httpRequest
+            );
+        
+        return
+            this.sendHttpRequestAsync (conditionalHttpRequest)
+                .handle
+                    (   (httpResponse, exception) ->
+                        {
+                            if (exception != null)
+                            {
+                                return this.getInternalServerErrorResponse (exception);
+                            }
+                            
+                            if (httpResponse.statusCode () == HttpURLConnection.HTTP_NOT_MODIFIED && cachedResponse != null)
+                            {
+                                return
+                                    this.parseHttpResponse
+                                        (   this.responseCache
+                                                .revalidate (cacheKey, cachedResponse)
+                                                .httpResponse ()
+                                        );
+                            }
+                            
+                            if (httpResponse.statusCode () == HttpURLConnection.HTTP_OK)
+                            {
+                                this.responseCache.put (cacheKey, resourceUri, httpResponse);
+                            }
+                            
+                            return this.parseHttpResponse (httpResponse);
+                        }
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    public JSONObject getHttpResponse ()
+    {
+        try
+        {
+            return this.getHttpResponseAsync ().join ();
+        }
+        catch (CompletionException exception)
+        {
+            // Rethrow parsing failures as they would be thrown had the response been parsed on this thread
+            if (exception.getCause () instanceof RuntimeException runtimeException)
+            {
+                throw runtimeException;
+            }
+            
+            throw exception;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Converts the HTTP response into the API response returned to the caller
+    JSONObject parseHttpResponse (HttpResponse<String> httpResponse)
+    {
+        JSONObject apiResponse = new JSONObject ();
+        
+        this.logHttpResponse (httpResponse, httpResponse.body ());
+        
+        apiResponse = apiResponse.put ("status_code", httpResponse.statusCode ());
+        
+        HttpStatusCode httpStatusCode = HttpStatusCode.valueOf (httpResponse.statusCode ());
+        
+        if (!httpStatusCode.isError ())
+        {
+            // Create the appropriate JSON Array OR Object depending on the type returned by the API response
+            if (httpResponse.body ().startsWith ("["))
+            {
+                apiResponse = apiResponse.put ("body", new JSONArray (httpResponse.body ()));
+            }
+            else if (httpResponse.body ().startsWith ("{"))
+            {
+                apiResponse = apiResponse.put ("body", new JSONObject (httpResponse.body ()));
+            }
+            
+            // Get row details for GET requests
+            if (this.requestMethod == RequestMethod.GET)
+            {
+                // Get the Content-Range header in the response
+                String contentRange =
+                    httpResponse
+                        .headers ()
+                        .firstValue ("Content-Range")
+                        .orElse ("");
+                
+                switch (apiResponse.getJSONArray ("body").length ())
+                {
+                    case 0:
+                    {
+                        apiResponse = apiResponse.put ("rownum_from", 0);
+                        apiResponse = apiResponse.put ("rownum_to", 0);
+                        apiResponse = apiResponse.put ("rowcount", 0);
+                        break;
+                    }
+                    default:
+                    {
+                        apiResponse = this.putContentRange (apiResponse, contentRange);
+                    }
+                }
+            }
+            
+            // Get the Content-Location header in the response
+            String contentLocation = this.getContentLocation (httpResponse.headers ());
+            
+            apiResponse = apiResponse.put ("content_location", contentLocation);
+        }
+        else
+        {
+            apiResponse = apiResponse.put ("body", new JSONObject (httpResponse.body ()));
+        }
+        
+        return apiResponse;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Sends the request and passes each row of the response body to the row consumer as it is read
+      * from the connection, rather than buffering the whole response body in memory first. The returned
+      * API response holds the same status and Content-Range details as getHttpResponse(), along with the
+      * number of rows streamed, but no body (except for error responses, whose body is returned as normal).
+      * 
+      * @param  rowConsumer  Called once for each row in the response body, in the order returned
+      */
+    public JSONObject streamRows (Consumer<JSONObject> rowConsumer)
+    {
+        JSONObject apiResponse = new JSONObject ();
+        
+        String jwt;
+        try
+        {
+            jwt = this.getJwt ();
+        }
+        catch (PostgrestResponseException exception)
+        {
+            return this.getInternalServerErrorResponse (exception);
+        }
+        
+        var httpRequest = this.buildHttpRequest (jwt);
+        
+        this.logHttpRequest (httpRequest);
+        
+        // Completes as soon as the response headers have been received - the body is read as it is consumed
+        HttpResponse<InputStream> httpResponse;
+        try
+        {
+            httpResponse =
+                this.sendHttpRequestAsync
+                    (   httpRequest,
+                        HttpResponse
+                            .BodyHandlers
+                            .ofInputStream ()
                     )
-                .build ();
+                    .join ();
+        }
+        catch (CompletionException exception)
+        {
+            return this.getInternalServerErrorResponse (exception);
+        }
+        
+        this.logHttpResponse (httpResponse, null);
+        this.checkJwtRejected (jwt, httpResponse.statusCode ());
         
-        //System.out.println (authPostgrestWrapper.toString ());
+        apiResponse = apiResponse.put ("status_code", httpResponse.statusCode ());
         
-        var authHttpResponse = authPostgrestWrapper.getHttpResponse ();
+        HttpStatusCode httpStatusCode = HttpStatusCode.valueOf (httpResponse.statusCode ());
         
-        switch (authHttpResponse.getInt ("status_code"))
+        try (InputStream bodyStream = httpResponse.body ())
         {
-            case 200:
-                authHttpResponse.put ("succeeded", true);
-                break;
-            case 403:
-                authHttpResponse.put ("succeeded", false);
+            if (httpStatusCode.isError ())
+            {
+                apiResponse =
+                    apiResponse
+                        .put
+                            (   "body",
+                                new JSONObject
+                                    (   new String
+                                            (   bodyStream.readAllBytes (),
+                                                StandardCharsets.UTF_8
+                                            )
+                                    )
+                            );
                 
-                try
+                return apiResponse;
+            }
+            
+            int rowsStreamed = 0;
+            
+            try (var rowReader = new PostgrestRowReader (bodyStream))
+            {
+                while (rowReader.hasNext ())
+                {
+                    rowConsumer.accept (rowReader.next ());
+                    rowsStreamed++;
+                }
+            }
+            
+            apiResponse = apiResponse.put ("rows_streamed", rowsStreamed);
+        }
+        catch (IOException exception)
+        {
+            return this.getInternalServerErrorResponse (exception);
+        }
+        
+        // Get the Content-Range header in the response
+        String contentRange =
+            httpResponse
+                .headers ()
+                .firstValue ("Content-Range")
+                .orElse ("");
+        
+        // Get row details for GET requests
+        if (this.requestMethod == RequestMethod.GET)
+        {
+            switch (apiResponse.getInt ("rows_streamed"))
+            {
+                case 0:
                 {
-                    TimeUnit.SECONDS.sleep (FAILURE_DELAY_SECONDS); // Built in delay to mitigate DDoS attacks
+                    apiResponse = apiResponse.put ("rownum_from", 0);
+                    apiResponse = apiResponse.put ("rownum_to", 0);
+                    apiResponse = apiResponse.put ("rowcount", 0);
+                    break;
                 }
-                catch (InterruptedException exception)
+                default:
                 {
-                    throw new UnsupportedOperationException ("Unsupported API response: " + authHttpResponse.getInt ("status_code"));
+                    apiResponse = this.putContentRange (apiResponse, contentRange);
                 }
+            }
+        }
+        
+        apiResponse = apiResponse.put ("content_location", this.getContentLocation (httpResponse.headers ()));
+        
+        if (log.isDebugEnabled ())
+        {
+            log.debug ("postgREST database API streamed response: " + apiResponse.toString ());
+        }
+        
+        return apiResponse;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Sends the request and binds the response body with the binder, throwing for error responses
+    private <T> T fetchBody
+        (   HttpRequest                     httpRequest,
+            String                          jwt,
+            Function<InputStream, T>        bodyBinder
+        )
+    {
+        this.logHttpRequest (httpRequest);
+        
+        HttpResponse<InputStream> httpResponse;
+        try
+        {
+            httpResponse =
+                this.sendHttpRequestAsync
+                    (   httpRequest,
+                        HttpResponse
+                            .BodyHandlers
+                            .ofInputStream ()
+                    )
+                    .join ();
+        }
+        catch (CompletionException exception)
+        {
+            throw
+                new PostgrestResponseException
+                    (   exception.getCause () instanceof PostgrestRejectedException
+                            ?   HttpURLConnection.HTTP_UNAVAILABLE
+                            :   HttpURLConnection.HTTP_INTERNAL_ERROR,
+                        null,
+                        exception.getCause ()
+                    );
+        }
+        
+        this.logHttpResponse (httpResponse, null);
+        this.checkJwtRejected (jwt, httpResponse.statusCode ());
+        
+        try (InputStream bodyStream = httpResponse.body ())
+        {
+            if (HttpStatusCode.valueOf (httpResponse.statusCode ()).isError ())
+            {
+                var errorBody = new String (bodyStream.readAllBytes (), StandardCharsets.UTF_8);
+                
+                throw
+                    new PostgrestResponseException
+                        (   httpResponse.statusCode (),
+                            errorBody.startsWith ("{") ? new JSONObject (errorBody) : null,
+                            null
+                        );
+            }
+            
+            return bodyBinder.apply (bodyStream);
+        }
+        catch (IOException exception)
+        {
+            throw
+                new PostgrestResponseException
+                    (   HttpURLConnection.HTTP_INTERNAL_ERROR,
+                        null,
+                        exception
+                    );
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Sends the request and binds each row of the response body directly to an instance of the row type
+      * (a record or a class Jackson can bind to), without building an intermediate JSONObject for each row.
+      * Bypasses the response cache and request coalescing, which hold parsed JSON responses.
+      * 
+      * @param  rowType  The type to bind each row to - property names must match the row's column names
+      * @throws PostgrestResponseException  If the request fails or an error response is returned
+      */
+    public <T> List<T> fetchList (Class<T> rowType)
+    {
+        String jwt = this.getJwt ();
+        
+        return
+            this.fetchBody
+                (   this.buildHttpRequest (jwt),
+                    jwt,
+                    bodyStream -> PostgrestResultMapper.readList (bodyStream, rowType)
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * As fetchList (), but for a request expected to return a single row, which is requested from PostgREST
+      * as a singular JSON object. Returns null if no row is returned.
+      * 
+      * @param  rowType  The type to bind the row to - property names must match the row's column names
+      * @throws PostgrestResponseException  If the request fails or an error response is returned
+      */
+    public <T> T fetch (Class<T> rowType)
+    {
+        String jwt = this.getJwt ();
+        
+        var httpRequest =
+            HttpRequest
+                .newBuilder (this.buildHttpRequest (jwt), (name, value) -> true)
+                .setHeader ("Accept", "application/vnd.pgrst.object+json")
+                .build ();
+        
+        return
+            this.fetchBody
+                (   httpRequest,
+                    jwt,
+                    bodyStream -> PostgrestResultMapper.readSingle (bodyStream, rowType)
+                );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the total from a Content-Range header, e.g. 15 for 0-9/15 or */15, or -1 if it is * or missing
+    static long getTotalCount (HttpHeaders httpHeaders)
+    {
+        String contentRange = httpHeaders.firstValue ("Content-Range").orElse ("");
+        String total = contentRange.substring (contentRange.lastIndexOf ('/') + 1);
+        
+        return (total.matches ("\\d+") ? Long.parseLong (total) : -1);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Counts the rows matching this wrapper's query with a separate HEAD request, which returns no rows -
+      * so requests can omit the count (CountStrategy.NONE) and the total is only fetched when it is needed.
+      * Counts are shared through the count cache, if the wrapper has one.
+      * 
+      * @param  countStrategy  How to count the rows - NONE is not allowed
+      * @return                A future of the count, or of -1 if PostgREST did not return one
+      */
+    public CompletableFuture<Long> fetchCountAsync (CountStrategy countStrategy)
+    {
+        if (countStrategy == CountStrategy.NONE)
+        {
+            throw new IllegalArgumentException ("A count strategy is required to fetch a count");
+        }
+        
+        return this.getJwtAsync ().thenCompose (jwt -> this.fetchCountAsync (countStrategy, jwt));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // As fetchCountAsync (CountStrategy), authorised with the given JWT if not null
+    private CompletableFuture<Long> fetchCountAsync
+        (   CountStrategy   countStrategy,
+            String          jwt
+        )
+    {
+        var httpRequest =
+            HttpRequest
+                .newBuilder (this.buildHttpRequest (jwt), (name, value) -> !name.equalsIgnoreCase ("Prefer"))
+                .method ("HEAD", HttpRequest.BodyPublishers.noBody ())
+                .setHeader ("Prefer", "count=" + countStrategy.getPreference ())
+                .build ();
+        
+        Supplier<CompletableFuture<Long>> countSupplier =
+            () ->
+            {
+                this.logHttpRequest (httpRequest);
                 
-                break;
-            default:
-                throw new UnsupportedOperationException ("Unsupported API response: " + authHttpResponse.getInt ("status_code"));
+                return
+                    this.sendHttpRequestAsync (httpRequest, HttpResponse.BodyHandlers.discarding ())
+                        .handle
+                            (   (httpResponse, exception) ->
+                                {
+                                    if (exception != null)
+                                    {
+                                        Throwable cause = (exception instanceof CompletionException ? exception.getCause () : exception);
+                                        
+                                        throw
+                                            new PostgrestResponseException
+                                                (   cause instanceof PostgrestRejectedException
+                                                        ?   HttpURLConnection.HTTP_UNAVAILABLE
+                                                        :   HttpURLConnection.HTTP_INTERNAL_ERROR,
+                                                    null,
+                                                    cause
+                                                );
+                                    }
+                                    
+                                    this.logHttpResponse (httpResponse, null);
+                                    this.checkJwtRejected (jwt, httpResponse.statusCode ());
+                                    
+                                    if (HttpStatusCode.valueOf (httpResponse.statusCode ()).isError ())
+                                    {
+                                        throw new PostgrestResponseException (httpResponse.statusCode (), null, null);
+                                    }
+                                    
+                                    return getTotalCount (httpResponse.headers ());
+                                }
+                            );
+            };
+        
+        if (this.countCache == null)
+        {
+            return countSupplier.get ();
+        }
+        
+        return
+            this.countCache
+                .get
+                    (   PostgrestResponseCache.getKey (httpRequest) + "\n" + countStrategy,
+                        countSupplier
+                    );
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * As fetchCountAsync (), waiting for the count - with the wrapper's count strategy, or an exact count if
+      * the wrapper's requests omit the count.
+      * 
+      * @throws PostgrestResponseException  If the request fails or an error response is returned
+      */
+    public long fetchCount ()
+    {
+        try
+        {
+            return
+                this.fetchCountAsync
+                    (   this.countStrategy == CountStrategy.NONE
+                            ?   CountStrategy.EXACT
+                            :   this.countStrategy
+                    )
+                    .join ();
+        }
+        catch (CompletionException exception)
+        {
+            if (exception.getCause () instanceof PostgrestResponseException responseException)
+            {
+                throw responseException;
+            }
+            
+            throw exception;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    // CONSTRUCTOR
+    public PostgrestWrapper
+        (   String baseUrl,
+            String resource
+        )
+    {
+        this.baseUrl = baseUrl;
+        this.resource = resource;
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns a copy of this wrapper that sends the compiled query, with the values bound to its parameters
+      * in order. The copy shares this wrapper's compiled request template, so this is cheap enough to call
+      * for every request.
+      */
+    public PostgrestWrapper withQuery
+        (   PostgrestQuery.Compiled     compiledQuery,
+            Object...                   values
+        )
+    {
+        return this.copyWithQueryString (compiledQuery.bind (values));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns a copy of this wrapper with a different query string, e.g. for requesting a single page of results
+    PostgrestWrapper copyWithQueryString (String queryString)
+    {
+        var postgrestWrapper =
+            new PostgrestWrapper
+                (   this.baseUrl,
+                    this.resource
+                );
+        
+        postgrestWrapper.setResourceId (this.resourceId);
+        postgrestWrapper.setRequestMethod (this.requestMethod);
+        postgrestWrapper.setQueryString (queryString);
+        postgrestWrapper.setSelect (this.select);
+        postgrestWrapper.setHeaders (this.headers);
+        postgrestWrapper.setBody (this.body);
+        postgrestWrapper.setDbSchema (this.dbSchema);
+        postgrestWrapper.setJwtAuthString (this.jwtAuthString);
+        postgrestWrapper.setJwtTokenManager (this.jwtTokenManager);
+        postgrestWrapper.setJwtPrincipal (this.jwtPrincipal);
+        postgrestWrapper.setCommitTransaction (this.commitTransaction);
+        postgrestWrapper.setCountStrategy (this.countStrategy);
+        postgrestWrapper.setHttpClient (this.httpClient);
+        postgrestWrapper.setExecutor (this.executor);
+        postgrestWrapper.setResponseCache (this.responseCache);
+        postgrestWrapper.setCountCache (this.countCache);
+        postgrestWrapper.setRequestCoalescer (this.requestCoalescer);
+        postgrestWrapper.setMetricsListener (this.metricsListener);
+        postgrestWrapper.setLoggingSettings (this.loggingSettings);
+        postgrestWrapper.setRetryPolicy (this.retryPolicy);
+        postgrestWrapper.setHedgingPolicy (this.hedgingPolicy);
+        postgrestWrapper.setConcurrencyLimiter (this.concurrencyLimiter);
+        postgrestWrapper.setBulkhead (this.bulkhead);
+        postgrestWrapper.setCircuitBreaker (this.circuitBreaker);
+        
+        // Only the query string differs, so the compiled request template can be shared
+        postgrestWrapper.requestTemplate = this.getRequestTemplate ();
+        
+        return postgrestWrapper;
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Failed logins by authenticateUser () are throttled per email and client address once a throttle is set,
+    // e.g. new AuthenticationThrottle () - null, the default, to not throttle. The throttle is shared by every
+    // caller in the JVM, so the allowance is per user across all upstreams. JwtTokenManager logins bypass it
+    private static volatile AuthenticationThrottle authenticationThrottle;
+    
+    public static AuthenticationThrottle getAuthenticationThrottle () { return authenticationThrottle; }
+    
+    public static void setAuthenticationThrottle (AuthenticationThrottle throttle) { authenticationThrottle = throttle; }
+    
+    //--------------------------------------------------------------
+    
+    public static JSONObject authenticateUser
+        (   String  baseUrl,
+            String  functionName,
+            String  email,
+            String  password
+        )
+    {
+        return authenticateUser (baseUrl, functionName, email, password, null);
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * As authenticateUser (baseUrl, functionName, email, password), but with the request sent, and the
+      * delay after a failed login timed, on the given executor - e.g. HttpClientSettings.getVirtualThreadExecutor ().
+      * The calling thread waits for the delay without sleeping, so a caller on a virtual thread holds no
+      * platform thread while it waits.
+      * 
+      * @param  executor  The executor to run on, or null for the client's own executor and the common pool
+      */
+    public static JSONObject authenticateUser
+        (   String      baseUrl,
+            String      functionName,
+            String      email,
+            String      password,
+            Executor    executor
+        )
+    {
+        try
+        {
+            return authenticateUserAsync (baseUrl, functionName, email, password, null, executor).join ();
+        }
+        catch (CompletionException exception)
+        {
+            if (exception.getCause () instanceof RuntimeException runtimeException)
+            {
+                throw runtimeException;
+            }
+            
+            throw exception;
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Logs in asynchronously, completing with the response and whether the login succeeded. No thread is
+      * held while the login is sent, nor during the delay after a failed login - the future completes when
+      * the delay has passed.
+      * 
+      * If an authentication throttle has been set, failed logins are counted per email and per client address.
+      * Once either has failed too often, logins for it complete at once with a 429 status, and the seconds to
+      * wait in retry_after_s, without a request being sent.
+      * 
+      * @param  clientAddress  The address of the client logging in, or null if not known
+      * @param  executor       The executor to run on, or null for the client's own executor and the common pool
+      */
+    public static CompletableFuture<JSONObject> authenticateUserAsync
+        (   String      baseUrl,
+            String      functionName,
+            String      email,
+            String      password,
+            String      clientAddress,
+            Executor    executor
+        )
+    {
+        return authenticateUserAsync (baseUrl, functionName, email, password, clientAddress, executor, authenticationThrottle);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // As authenticateUserAsync (), with the given throttle, or none if null - e.g. for a service's own logins
+    static CompletableFuture<JSONObject> authenticateUserAsync
+        (   String                  baseUrl,
+            String                  functionName,
+            String                  email,
+            String                  password,
+            String                  clientAddress,
+            Executor                executor,
+            AuthenticationThrottle  throttle
+        )
+    {
+        final int FAILURE_DELAY_SECONDS = 1;
+        
+        if (throttle != null)
+        {
+            Duration retryAfter = throttle.getRetryAfter (email, clientAddress);
+            
+            if (!retryAfter.isZero ())
+            {
+                return
+                    CompletableFuture.completedFuture
+                        (   new JSONObject ()
+                                .put ("status_code", 429)
+                                .put ("succeeded", false)
+                                .put ("retry_after_s", (retryAfter.toMillis () + 999) / 1000)
+                                .put ("body", new JSONObject ().put ("message", "Too many failed logins. Try again later."))
+                        );
+            }
         }
         
-        return authHttpResponse;
+        var authPostgrestWrapper =
+            new PostgrestWrapperBuilder (baseUrl, functionName)
+                .requestMethod (RequestMethod.POST)
+                .executor (executor)
+                .body
+                    (   new JSONObject ()
+                            .put ("p_email", email)
+                            .put ("p_password", password)
+                    )
+                .build ();
+        
+        return
+            authPostgrestWrapper
+                .getHttpResponseAsync ()
+                .thenCompose
+                    (   authHttpResponse ->
+                        {
+                            switch (authHttpResponse.getInt ("status_code"))
+                            {
+                                case 200:
+                                    return CompletableFuture.completedFuture (authHttpResponse.put ("succeeded", true));
+                                case 401:
+                                case 403:
+                                    if (throttle != null)
+                                    {
+                                        throttle.recordFailure (email, clientAddress);
+                                    }
+                                    
+                                    // Built in delay to mitigate DDoS attacks, without holding a thread
+                                    return
+                                        CompletableFuture
+                                            .runAsync
+                                                (   () -> {},
+                                                    authPostgrestWrapper.getDelayedExecutor (TimeUnit.SECONDS.toNanos (FAILURE_DELAY_SECONDS))
+                                                )
+                                            .thenApply (ignored -> authHttpResponse.put ("succeeded", false));
+                                default:
+                                    throw new UnsupportedOperationException ("Unsupported API response: " + authHttpResponse.getInt ("status_code"));
+                            }
+                        }
+                    );
     }
     
     //--------------------------------------------------------------
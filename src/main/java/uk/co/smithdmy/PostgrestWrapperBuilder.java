@@ -1,6 +1,9 @@
 package uk.co.smithdmy;
 
+import java.net.http.HttpClient;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import lombok.NoArgsConstructor;
 
@@ -43,9 +46,36 @@ public class PostgrestWrapperBuilder
     
     //---------------------------------------------------------------------
     
+    /**
+      * Sets the query string from the given query, which must not have parameters - for a query with
+      * parameters, bind them per request with PostgrestWrapper.withQuery ().
+      */
+    public PostgrestWrapperBuilder query (PostgrestQuery query)
+    {
+        postgrestWrapper.setQueryString (query.toQueryString ());
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Returns only the given columns of each row, rather than all of them. Columns may be renamed with
+      * PostgrestQuery.alias () and resources embedded with PostgrestQuery.embed (), e.g.
+      * select ("id", PostgrestQuery.alias ("name", "title"), PostgrestQuery.embed ("directors", "name")).
+      */
+    public PostgrestWrapperBuilder select (String... columns)
+    {
+        postgrestWrapper.setSelect (PostgrestQuery.selectList (columns));
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
     public PostgrestWrapperBuilder header (Map.Entry<String, String> header)
     {
-        Map<String, String> headers = postgrestWrapper.getHeaders ();
+        Map<String, String> headers = new HashMap<> (postgrestWrapper.getHeaders ());
         
         headers.put (header.getKey (), header.getValue ());
         
@@ -83,6 +113,18 @@ public class PostgrestWrapperBuilder
     
     //---------------------------------------------------------------------
     
+    /**
+      * Sets how rows are counted for the total returned with each response - by default, exactly.
+      */
+    public PostgrestWrapperBuilder countStrategy (CountStrategy countStrategy)
+    {
+        postgrestWrapper.setCountStrategy (countStrategy);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
     public PostgrestWrapperBuilder jwtAuthString (JSONObject authResponse)
     {
         if (authResponse.getBoolean ("succeeded"))
@@ -100,8 +142,195 @@ public class PostgrestWrapperBuilder
     
     //---------------------------------------------------------------------
     
+    /**
+      * Authorises each request with the principal's JWT from the token manager, which logs the principal in
+      * and refreshes its token as needed, in place of a fixed jwtAuthString. The principal must have been
+      * registered with the token manager.
+      */
+    public PostgrestWrapperBuilder jwtTokenManager
+        (   JwtTokenManager     jwtTokenManager,
+            String              principal
+        )
+    {
+        postgrestWrapper.setJwtTokenManager (jwtTokenManager);
+        postgrestWrapper.setJwtPrincipal (principal);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Sends requests with the given client rather than the one registered for the base URL in HttpClientRegistry.
+      */
+    public PostgrestWrapperBuilder httpClient (HttpClient httpClient)
+    {
+        postgrestWrapper.setHttpClient (httpClient);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Runs the wrapper's asynchronous work on the given executor - the HTTP client's tasks, the stages that
+      * parse responses, and the timers for retries and hedging. Unless an HTTP client is given, the client
+      * is the registry's for the base URL, or one created from the default settings to run on the executor.
+      * That client is kept by HttpClientRegistry for as long as the executor is used, so share one executor
+      * between wrappers rather than creating one per request - see HttpClientRegistry.unregister (Executor).
+      */
+    public PostgrestWrapperBuilder executor (Executor executor)
+    {
+        postgrestWrapper.setExecutor (executor);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Runs the wrapper's asynchronous work on the shared executor from HttpClientSettings.getVirtualThreadExecutor ().
+      * On Java 21 or later that starts a virtual thread per task, so many thousands of requests in flight
+      * need no large thread pool. On Java 17, which the project targets, the threads are NOT virtual: the
+      * executor is a bounded pool of HttpClientSettings.FALLBACK_THREADS platform threads.
+      */
+    public PostgrestWrapperBuilder virtualThreads ()
+    {
+        return this.executor (HttpClientSettings.getVirtualThreadExecutor ());
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Caches GET responses in the given cache, which may be shared between wrappers.
+      */
+    public PostgrestWrapperBuilder responseCache (PostgrestResponseCache responseCache)
+    {
+        postgrestWrapper.setResponseCache (responseCache);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Shares one upstream request between identical GET requests in flight at the same time, using the
+      * given coalescer, which may be shared between wrappers.
+      */
+    public PostgrestWrapperBuilder requestCoalescer (PostgrestRequestCoalescer requestCoalescer)
+    {
+        postgrestWrapper.setRequestCoalescer (requestCoalescer);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Reports metrics for every request sent upstream to the given listener, e.g. a PostgrestMetrics shared
+      * between wrappers.
+      */
+    public PostgrestWrapperBuilder metricsListener (PostgrestMetricsListener metricsListener)
+    {
+        postgrestWrapper.setMetricsListener (metricsListener);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    public PostgrestWrapperBuilder loggingSettings (LoggingSettings loggingSettings)
+    {
+        postgrestWrapper.setLoggingSettings (loggingSettings);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Retries failed idempotent requests according to the policy, e.g. RetryPolicy.defaults ().
+      */
+    public PostgrestWrapperBuilder retryPolicy (RetryPolicy retryPolicy)
+    {
+        postgrestWrapper.setRetryPolicy (retryPolicy);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Hedges slow GET requests according to the policy, which should only be shared by wrappers for the
+      * same endpoint.
+      */
+    public PostgrestWrapperBuilder hedgingPolicy (HedgingPolicy hedgingPolicy)
+    {
+        postgrestWrapper.setHedgingPolicy (hedgingPolicy);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Limits the requests in flight to the upstream with the given limiter, which should be shared by every
+      * wrapper for the same upstream. Requests beyond the limit are queued or shed as unavailable (503).
+      */
+    public PostgrestWrapperBuilder concurrencyLimiter (ConcurrencyLimiter concurrencyLimiter)
+    {
+        postgrestWrapper.setConcurrencyLimiter (concurrencyLimiter);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Limits the requests in flight to the resource with the given bulkhead, e.g. ConcurrencyLimiter.fixed (),
+      * which should be shared by every wrapper for the same resource.
+      */
+    public PostgrestWrapperBuilder bulkhead (ConcurrencyLimiter bulkhead)
+    {
+        postgrestWrapper.setBulkhead (bulkhead);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Fails requests fast with 503 while the upstream is failing, using the given breaker - typically
+      * CircuitBreakerRegistry.getInstance ().getCircuitBreaker (baseUrl), or (baseUrl, resource) for a
+      * breaker that only trips for this resource.
+      */
+    public PostgrestWrapperBuilder circuitBreaker (CircuitBreaker circuitBreaker)
+    {
+        postgrestWrapper.setCircuitBreaker (circuitBreaker);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
+    /**
+      * Caches counts fetched with PostgrestWrapper.fetchCount () in the given cache, which may be shared
+      * between wrappers.
+      */
+    public PostgrestWrapperBuilder countCache (PostgrestCountCache countCache)
+    {
+        postgrestWrapper.setCountCache (countCache);
+        
+        return this;
+    }
+    
+    //---------------------------------------------------------------------
+    
     public PostgrestWrapper build ()
     {
+        // Compile the request template once up front, rather than on the first request
+        postgrestWrapper.getRequestTemplate ();
+        
         return postgrestWrapper;
     }
     
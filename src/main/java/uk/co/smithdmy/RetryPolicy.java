@@ -0,0 +1,204 @@
+package uk.co.smithdmy;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+  * When and how long to wait before sending a failed request again. Only idempotent methods (GET, HEAD,
+  * OPTIONS, PUT, DELETE and TRACE) are retried, and only when the connection could not be made or the
+  * response status is retryable (by default 429 Too Many Requests and 503 Service Unavailable).
+  *
+  * Retries back off exponentially from initialBackoff, with random jitter so that clients do not retry in
+  * step. A Retry-After header in the response is honoured instead, unless it asks for a longer wait than
+  * maxRetryAfter, in which case the response is returned as it is.
+  */
+@Builder
+@Getter
+@ToString
+public class RetryPolicy
+{
+    //--------------------------------------------------------------
+    
+    private static final Set<RequestMethod> IDEMPOTENT_METHODS =
+        Set.of
+            (   RequestMethod.GET,
+                RequestMethod.HEAD,
+                RequestMethod.OPTIONS,
+                RequestMethod.PUT,
+                RequestMethod.DELETE,
+                RequestMethod.TRACE
+            );
+    
+    //--------------------------------------------------------------
+    
+    // Including the first attempt
+    @Builder.Default
+    private final int maxAttempts = 3;
+    
+    @Builder.Default
+    private final Duration initialBackoff = Duration.ofMillis (100);
+    
+    @Builder.Default
+    private final Duration maxBackoff = Duration.ofSeconds (5);
+    
+    @Builder.Default
+    private final double backoffMultiplier = 2.0;
+    
+    // The fraction of each backoff that is randomised - 1.0 waits anywhere between 0 and the full backoff
+    @Builder.Default
+    private final double jitter = 1.0;
+    
+    @Builder.Default
+    private final Set<Integer> retryableStatusCodes = Set.of (429, 503);
+    
+    @Builder.Default
+    private final Duration maxRetryAfter = Duration.ofSeconds (30);
+    
+    //--------------------------------------------------------------
+    
+    public static RetryPolicy defaults ()
+    {
+        return RetryPolicy.builder ().build ();
+    }
+    
+    //--------------------------------------------------------------
+    
+    public static boolean isIdempotent (RequestMethod requestMethod)
+    {
+        return IDEMPOTENT_METHODS.contains (requestMethod);
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Failures to connect are safe to retry for any idempotent request, as the request was never received
+    private static boolean isRetryable (Throwable exception)
+    {
+        if (exception instanceof CompletionException && exception.getCause () != null)
+        {
+            exception = exception.getCause ();
+        }
+        
+        return
+            (   exception instanceof ConnectException
+                ||
+                exception instanceof HttpConnectTimeoutException
+                ||
+                (   exception instanceof IOException
+                    &&
+                    exception.getCause () instanceof ConnectException
+                )
+            );
+    }
+    
+    //--------------------------------------------------------------
+    
+    // The exponential backoff before the given retry (1 for the first retry), with jitter
+    long getBackoffNanos (int retry)
+    {
+        double backoffNanos =
+            Math.min
+                (   this.initialBackoff.toNanos () * Math.pow (this.backoffMultiplier, retry - 1),
+                    this.maxBackoff.toNanos ()
+                );
+        
+        return (long) (backoffNanos * (1 - this.jitter * ThreadLocalRandom.current ().nextDouble ()));
+    }
+    
+    //--------------------------------------------------------------
+    
+    // Returns the Retry-After header in nanoseconds from now - either delay-seconds or an HTTP date - or -1 if none
+    static long getRetryAfterNanos (HttpHeaders httpHeaders)
+    {
+        String retryAfter = httpHeaders.firstValue ("Retry-After").orElse (null);
+        
+        if (retryAfter == null)
+        {
+            return -1;
+        }
+        
+        try
+        {
+            return Duration.ofSeconds (Long.parseLong (retryAfter.trim ())).toNanos ();
+        }
+        catch (NumberFormatException exception)
+        {
+            try
+            {
+                return
+                    Math.max
+                        (   0,
+                            Duration
+                                .between
+                                    (   ZonedDateTime.now (),
+                                        ZonedDateTime.parse (retryAfter.trim (), DateTimeFormatter.RFC_1123_DATE_TIME)
+                                    )
+                                .toNanos ()
+                        );
+            }
+            catch (DateTimeParseException dateTimeParseException)
+            {
+                return -1;
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------
+    
+    /**
+      * Returns how long to wait before the next attempt, or -1 if the request should not be retried.
+      *
+      * @param  requestMethod  The method of the request
+      * @param  attempt        The attempt that has just completed, starting from 1
+      * @param  httpResponse   The response to the attempt, or null if it failed
+      * @param  exception      The failure of the attempt, or null if a response was received
+      */
+    long getRetryDelayNanos
+        (   RequestMethod       requestMethod,
+            int                 attempt,
+            HttpResponse<?>     httpResponse,
+            Throwable           exception
+        )
+    {
+        if (attempt >= this.maxAttempts || !isIdempotent (requestMethod))
+        {
+            return -1;
+        }
+        
+        if (httpResponse == null)
+        {
+            return (isRetryable (exception) ? this.getBackoffNanos (attempt) : -1);
+        }
+        
+        if (!this.retryableStatusCodes.contains (httpResponse.statusCode ()))
+        {
+            return -1;
+        }
+        
+        long retryAfterNanos = getRetryAfterNanos (httpResponse.headers ());
+        
+        if (retryAfterNanos < 0)
+        {
+            return this.getBackoffNanos (attempt);
+        }
+        
+        return (retryAfterNanos <= this.maxRetryAfter.toNanos () ? retryAfterNanos : -1);
+    }
+    
+    //--------------------------------------------------------------
+}
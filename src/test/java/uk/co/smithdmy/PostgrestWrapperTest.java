@@ -1,8 +1,21 @@
 package uk.co.smithdmy;
 
 import java.io.IOException;
+import java.net.http.HttpClient;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Assertions;
 import org.json.JSONArray;
@@ -233,7 +246,7 @@ public class PostgrestWrapperTest
         postgrestWrapper =
             new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
                 .body (new JSONObject ())
-                .requestMethod (RequestMethod.POST)
+                .requestMethod (RequestMethod.PATCH)
                 .build ();
         
         httpResponse = postgrestWrapper.getHttpResponse ();
@@ -241,7 +254,7 @@ public class PostgrestWrapperTest
         Assertions.assertEquals (405, httpResponse.getInt ("status_code"));
         
         Assertions.assertEquals
-            (   "Invalid method: POST.",
+            (   "Invalid method: PATCH.",
                 httpResponse.getJSONObject ("body").getString ("message")
             );
         
@@ -261,6 +274,1483 @@ public class PostgrestWrapperTest
             );
     }
     
+    @Test
+    void testStreamingRows ()
+    {
+        this.setToken ();
+        
+        var expectedResponseBody = new JSONArray ("[{\"id\":80,\"runningMins\":181,\"title\":\"Avengers: Endgame\"},{\"id\":110,\"runningMins\":178,\"title\":\"Lord of the Rings: The Fellowship of the Ring, The\"},{\"id\":20,\"runningMins\":166,\"title\":\"Dune: Part Two\"}]");
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("running_mins=gt.150&order=running_mins.desc")
+                .build ();
+        
+        var streamedRows = new JSONArray ();
+        
+        var httpResponse = postgrestWrapper.streamRows (streamedRows::put);
+        
+        Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        Assertions.assertEquals (3, httpResponse.getInt ("rows_streamed"));
+        Assertions.assertEquals (3, httpResponse.getInt ("record_count"));
+        
+        Assertions.assertTrue (expectedResponseBody.similar (streamedRows));
+    }
+    
+    @Test
+    void testAsyncResponses ()
+    {
+        this.setToken ();
+        
+        var expectedResponseBody = new JSONArray ("[{\"id\":60,\"runningMins\":101,\"title\":\"Groundhog Day\"}]");
+        
+        var futureResponses = new ArrayList<CompletableFuture<JSONObject>> ();
+        
+        for (int idx = 0; idx < 10; idx++)
+        {
+            futureResponses.add
+                (   new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                        .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                        .queryString ("id=eq.60")
+                        .build ()
+                        .getHttpResponseAsync ()
+                );
+        }
+        
+        for (var futureResponse : futureResponses)
+        {
+            var httpResponse = futureResponse.join ();
+            
+            Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+            
+            Assertions.assertTrue (expectedResponseBody.similar (httpResponse.get ("body")));
+        }
+        
+        // Failures to connect are mapped onto the future rather than thrown
+        var httpResponse =
+            new PostgrestWrapperBuilder ("http://localhost:1/", "movies")
+                .build ()
+                .getHttpResponseAsync ()
+                .join ();
+        
+        Assertions.assertEquals (500, httpResponse.getInt ("status_code"));
+    }
+    
+    @Test
+    void testConcurrentStubRequests ()
+    {
+        this.setToken ();
+        
+        // Each query string with the ids it should return - requests in flight at once must not share state
+        var expectedIds =
+            Map.of
+                (   "id=eq.60",                                                 List.of (60),
+                    "running_mins=gt.170&order=id.asc",                         List.of (80, 110),
+                    "running_mins=gte.140&running_mins=lt.150&order=id.desc",   List.of (140, 70, 40),
+                    "order=id.asc&limit=2&offset=3",                            List.of (40, 50)
+                );
+        
+        var futureResponses = new ArrayList<Map.Entry<String, CompletableFuture<JSONObject>>> ();
+        
+        for (int idx = 0; idx < 25; idx++)
+        {
+            for (var queryString : expectedIds.keySet ())
+            {
+                futureResponses.add
+                    (   Map.entry
+                            (   queryString,
+                                new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                                    .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                                    .queryString (queryString)
+                                    .build ()
+                                    .getHttpResponseAsync ()
+                            )
+                    );
+            }
+        }
+        
+        for (var futureResponse : futureResponses)
+        {
+            var httpResponse = futureResponse.getValue ().join ();
+            
+            Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+            
+            var ids = new ArrayList<Integer> ();
+            
+            for (var row : httpResponse.getJSONArray ("body"))
+            {
+                ids.add (((JSONObject) row).getInt ("id"));
+            }
+            
+            Assertions.assertEquals (expectedIds.get (futureResponse.getKey ()), ids, futureResponse.getKey ());
+        }
+    }
+    
+    @Test
+    void testPagination ()
+    {
+        this.setToken ();
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("order=running_mins.asc")
+                .build ();
+        
+        var expectedResponse = postgrestWrapper.getHttpResponse ();
+        
+        var httpResponse = new PostgrestPaginator (postgrestWrapper, 4, 2).fetchAll ();
+        
+        Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        Assertions.assertEquals (15, httpResponse.getInt ("record_count"));
+        
+        Assertions.assertTrue (expectedResponse.getJSONArray ("body").similar (httpResponse.get ("body")));
+        
+        // Pages after the first are passed on as they complete
+        var pagesReceived = new ArrayList<Integer> ();
+        
+        httpResponse =
+            new PostgrestPaginator (postgrestWrapper, 4, 3)
+                .forEachPage ((page, pageResponse) -> pagesReceived.add (page));
+        
+        Assertions.assertEquals (4, httpResponse.getInt ("pages"));
+        Assertions.assertEquals (4, pagesReceived.size ());
+        Assertions.assertEquals (0, pagesReceived.get (0));
+    }
+    
+    @Test
+    void testHttpClientRegistry ()
+    {
+        this.setToken ();
+        
+        var httpClientRegistry = HttpClientRegistry.getInstance ();
+        
+        var httpClient =
+            httpClientRegistry.register
+                (   "http://localhost:8001",
+                    HttpClientSettings
+                        .builder ()
+                        .version (HttpClient.Version.HTTP_1_1)
+                        .connectTimeout (Duration.ofSeconds (5))
+                        .executor (HttpClientSettings.newVirtualThreadExecutor ())
+                        .build ()
+                );
+        
+        try
+        {
+            Assertions.assertSame (httpClient, httpClientRegistry.getHttpClient ("http://localhost:8001/"));
+            Assertions.assertSame (httpClientRegistry.getDefaultHttpClient (), httpClientRegistry.getHttpClient ("http://localhost:8002/"));
+            
+            var httpResponse =
+                new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                    .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                    .queryString ("id=eq.60")
+                    .build ()
+                    .getHttpResponse ();
+            
+            Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        }
+        finally
+        {
+            httpClientRegistry.unregister ("http://localhost:8001/");
+        }
+    }
+    
+    @Test
+    void testRequestTemplate ()
+    {
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer token"))
+                .queryString ("id=eq.60")
+                .build ();
+        
+        var requestTemplate = postgrestWrapper.getRequestTemplate ();
+        
+        // Repeated requests neither recompile the template nor accumulate headers
+        postgrestWrapper.buildHttpRequest ();
+        var httpRequest = postgrestWrapper.buildHttpRequest ();
+        
+        Assertions.assertSame (requestTemplate, postgrestWrapper.getRequestTemplate ());
+        Assertions.assertEquals (1, httpRequest.headers ().allValues ("Prefer").size ());
+        Assertions.assertEquals ("http://localhost:8001/movies/?id=eq.60", httpRequest.uri ().toString ());
+        
+        // Changing the settings recompiles the template
+        postgrestWrapper.setDbSchema ("api");
+        
+        Assertions.assertNotSame (requestTemplate, postgrestWrapper.getRequestTemplate ());
+        Assertions.assertEquals ("api", postgrestWrapper.buildHttpRequest ().headers ().firstValue ("Accept-Profile").orElse (""));
+        
+        // Headers can only be changed through setHeaders (), which recompiles the template too
+        Assertions.assertThrows (UnsupportedOperationException.class, () -> postgrestWrapper.getHeaders ().put ("X-Trace", "1"));
+        
+        var headers = new HashMap<> (postgrestWrapper.getHeaders ());
+        
+        headers.put ("X-Trace", "1");
+        postgrestWrapper.setHeaders (headers);
+        
+        Assertions.assertEquals ("1", postgrestWrapper.buildHttpRequest ().headers ().firstValue ("X-Trace").orElse (""));
+    }
+    
+    @Test
+    void testResponseCache ()
+    {
+        this.setToken ();
+        
+        var expectedResponseBody = new JSONArray ("[{\"id\":60,\"runningMins\":101,\"title\":\"Groundhog Day\"}]");
+        
+        var responseCache = new PostgrestResponseCache (100, 1024 * 1024, Duration.ofMinutes (1));
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.60")
+                .responseCache (responseCache)
+                .build ();
+        
+        for (int idx = 0; idx < 3; idx++)
+        {
+            var httpResponse = postgrestWrapper.getHttpResponse ();
+            
+            Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+            Assertions.assertTrue (expectedResponseBody.similar (httpResponse.get ("body")));
+        }
+        
+        Assertions.assertEquals (1, responseCache.getMisses ());
+        Assertions.assertEquals (2, responseCache.getHits ());
+        
+        // Different credentials never share a cached response
+        var httpResponse =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .queryString ("id=eq.60")
+                .responseCache (responseCache)
+                .build ()
+                .getHttpResponse ();
+        
+        Assertions.assertEquals (401, httpResponse.getInt ("status_code"));
+        
+        // Nor do requests for a different count or format - a response without a total is not returned to a counting caller
+        var keyedCache = new PostgrestResponseCache (100, 1024 * 1024, Duration.ofMinutes (1));
+        
+        var uncountedResponse =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("running_mins=gt.150")
+                .countStrategy (CountStrategy.NONE)
+                .responseCache (keyedCache)
+                .build ()
+                .getHttpResponse ();
+        
+        var countedResponse =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("running_mins=gt.150")
+                .countStrategy (CountStrategy.EXACT)
+                .responseCache (keyedCache)
+                .build ()
+                .getHttpResponse ();
+        
+        Assertions.assertEquals (0, uncountedResponse.getInt ("record_count"));
+        Assertions.assertEquals (3, countedResponse.getInt ("record_count"));
+        
+        new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+            .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+            .header (Map.entry ("Accept", "text/csv"))
+            .queryString ("running_mins=gt.150")
+            .countStrategy (CountStrategy.EXACT)
+            .responseCache (keyedCache)
+            .build ()
+            .getHttpResponse ();
+        
+        Assertions.assertEquals (3, keyedCache.getMisses ());
+        Assertions.assertEquals (0, keyedCache.getHits ());
+        
+        // Expired responses are revalidated with the upstream using their ETag
+        var revalidatingCache = new PostgrestResponseCache (100, 1024 * 1024, Duration.ZERO);
+        
+        postgrestWrapper.setResponseCache (revalidatingCache);
+        
+        postgrestWrapper.getHttpResponse ();
+        httpResponse = postgrestWrapper.getHttpResponse ();
+        
+        Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        Assertions.assertTrue (expectedResponseBody.similar (httpResponse.get ("body")));
+        Assertions.assertEquals (1, revalidatingCache.getRevalidations ());
+        
+        // Failed writes (the stub does not accept DELETE) and HEAD requests leave the resource's cached responses in place
+        new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+            .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+            .requestMethod (RequestMethod.DELETE)
+            .responseCache (responseCache)
+            .build ()
+            .getHttpResponse ();
+        
+        new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+            .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+            .requestMethod (RequestMethod.HEAD)
+            .responseCache (responseCache)
+            .build ()
+            .getHttpResponse ();
+        
+        Assertions.assertEquals (0, responseCache.getInvalidations ());
+        
+        responseCache.invalidate ("http://localhost:8001/movies/");
+        
+        Assertions.assertEquals (1, responseCache.getInvalidations ());
+        
+        // Bulk writes invalidate the resource's cached responses too
+        postgrestWrapper.setResponseCache (responseCache);
+        postgrestWrapper.getHttpResponse ();
+        
+        new PostgrestBulkWriter
+            (   new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                    .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                    .requestMethod (RequestMethod.POST)
+                    .commitTransaction (false)
+                    .responseCache (responseCache)
+                    .build ()
+            )
+            .write (List.of (new JSONObject ().put ("id", 2001).put ("title", "Cache Buster")));
+        
+        Assertions.assertEquals (2, responseCache.getInvalidations ());
+    }
+    
+    @Test
+    void testRequestCoalescing ()
+    {
+        this.setToken ();
+        
+        var expectedResponseBody = new JSONArray ("[{\"id\":60,\"runningMins\":101,\"title\":\"Groundhog Day\"}]");
+        
+        var requestCoalescer = new PostgrestRequestCoalescer ();
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.60")
+                .requestCoalescer (requestCoalescer)
+                .build ();
+        
+        var futureResponses = new ArrayList<CompletableFuture<JSONObject>> ();
+        
+        for (int idx = 0; idx < 10; idx++)
+        {
+            futureResponses.add (postgrestWrapper.getHttpResponseAsync ());
+        }
+        
+        for (var futureResponse : futureResponses)
+        {
+            var httpResponse = futureResponse.join ();
+            
+            Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+            Assertions.assertTrue (expectedResponseBody.similar (httpResponse.get ("body")));
+            
+            // Each caller gets its own copy of the API response
+            httpResponse.put ("status_code", 0);
+        }
+        
+        Assertions.assertEquals (10, requestCoalescer.getUpstreamRequests () + requestCoalescer.getCoalescedRequests ());
+        Assertions.assertEquals (0, requestCoalescer.getInFlightRequests ());
+    }
+    
+    record Movie (int id, String title, int runningMins) {}
+    
+    @Test
+    void testTypedResults ()
+    {
+        this.setToken ();
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("running_mins=gt.150&order=running_mins.desc")
+                .build ();
+        
+        Assertions.assertEquals
+            (   List.of
+                    (   new Movie (80, "Avengers: Endgame", 181),
+                        new Movie (110, "Lord of the Rings: The Fellowship of the Ring, The", 178),
+                        new Movie (20, "Dune: Part Two", 166)
+                    ),
+                postgrestWrapper.fetchList (Movie.class)
+            );
+        
+        postgrestWrapper.setQueryString ("id=eq.60");
+        
+        Assertions.assertEquals (new Movie (60, "Groundhog Day", 101), postgrestWrapper.fetch (Movie.class));
+        
+        var postgrestResponseException =
+            Assertions.assertThrows
+                (   PostgrestResponseException.class,
+                    () ->
+                        new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                            .build ()
+                            .fetchList (Movie.class)
+                );
+        
+        Assertions.assertEquals (401, postgrestResponseException.getStatusCode ());
+    }
+    
+    @Test
+    void testWorkload ()
+    {
+        this.setToken ();
+        
+        var latencyHistogram = new LatencyHistogram ();
+        
+        for (int micros = 1; micros <= 1000; micros++)
+        {
+            latencyHistogram.recordMicros (micros);
+        }
+        
+        Assertions.assertEquals (1000, latencyHistogram.getCount ());
+        Assertions.assertEquals (1000, latencyHistogram.getMaxMicros ());
+        Assertions.assertEquals (500.5, latencyHistogram.getMeanMicros ());
+        
+        // Percentiles are accurate to within one bucket (12.5%)
+        Assertions.assertTrue (Math.abs (latencyHistogram.getPercentileMicros (50) - 500) <= 500 / 8);
+        Assertions.assertTrue (Math.abs (latencyHistogram.getPercentileMicros (99) - 990) <= 990 / 8);
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .build ();
+        
+        var results =
+            new PostgrestWorkload (postgrestWrapper)
+                .operation ("id_lookup", 3, random -> "id=eq." + (random.nextInt (15) + 1) * 10)
+                .operation ("filtered", 1, random -> "running_mins=gte." + (100 + random.nextInt (80)) + "&order=title.asc")
+                .requestsPerSecond (50)
+                .duration (Duration.ofSeconds (2))
+                .seed (42)
+                .run ();
+        
+        Assertions.assertEquals (100, results.getLong ("requests"));
+        Assertions.assertEquals (0, results.getLong ("errors"));
+        Assertions.assertEquals (100, results.getJSONObject ("latency").getLong ("count"));
+        
+        var operations = results.getJSONObject ("operations");
+        
+        Assertions.assertEquals
+            (   100,
+                operations.getJSONObject ("id_lookup").getLong ("count")
+                +
+                operations.getJSONObject ("filtered").getLong ("count")
+            );
+    }
+    
+    @Test
+    void testMetrics ()
+    {
+        this.setToken ();
+        
+        var postgrestMetrics = new PostgrestMetrics ();
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("running_mins=gt.170")
+                .metricsListener (postgrestMetrics)
+                .build ();
+        
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertEquals (2, postgrestWrapper.fetchList (Movie.class).size ());
+        
+        postgrestWrapper.setQueryString ("order=title.sideways");
+        
+        Assertions.assertEquals (400, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        
+        var endpointMetrics = postgrestMetrics.getEndpointMetrics ("movies", RequestMethod.GET);
+        
+        Assertions.assertEquals (3, endpointMetrics.getRequests ());
+        Assertions.assertEquals (0, endpointMetrics.getInFlightRequests ());
+        Assertions.assertEquals (2, endpointMetrics.getStatusCodeCount (200));
+        Assertions.assertEquals (1, endpointMetrics.getStatusCodeCount (400));
+        Assertions.assertEquals (4, endpointMetrics.getRowsReturned ());
+        Assertions.assertEquals (0, endpointMetrics.getBytesSent ());
+        Assertions.assertTrue (endpointMetrics.getBytesReceived () > 0);
+        Assertions.assertEquals (3, endpointMetrics.getLatencyHistogram ().getCount ());
+        
+        Assertions.assertEquals
+            (   3,
+                postgrestMetrics
+                    .getStatistics ()
+                    .getJSONObject ("GET movies")
+                    .getLong ("requests")
+            );
+    }
+    
+    @Test
+    void testLoggingSettings ()
+    {
+        var loggingSettings =
+            LoggingSettings
+                .builder ()
+                .maxBodyChars (10)
+                .build ();
+        
+        var httpRequest =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .build ()
+                .buildHttpRequest ();
+        
+        var formattedHeaders = loggingSettings.formatHeaders (httpRequest.headers ());
+        
+        Assertions.assertTrue (formattedHeaders.contains ("authorization=[***]"));
+        Assertions.assertTrue (formattedHeaders.contains ("accept-profile=[public]"));
+        Assertions.assertFalse (formattedHeaders.contains ("Bearer"));
+        
+        Assertions.assertEquals ("0123456789... (5 more chars)", loggingSettings.formatBody ("012345678901234"));
+        Assertions.assertEquals ("short", loggingSettings.formatBody ("short"));
+    }
+    
+    @Test
+    void testRetries ()
+    {
+        this.setToken ();
+        
+        var postgrestMetrics = new PostgrestMetrics ();
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.60")
+                .retryPolicy
+                    (   RetryPolicy
+                            .builder ()
+                            .initialBackoff (Duration.ofMillis (10))
+                            .build ()
+                    )
+                .metricsListener (postgrestMetrics)
+                .build ();
+        
+        // Two failures are retried within the default three attempts
+        this.postgrestStub.injectFaults (2, 503, Duration.ZERO, null);
+        
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertEquals (2, postgrestMetrics.getEndpointMetrics ("movies", RequestMethod.GET).getRetries ());
+        
+        // Retry-After is honoured
+        this.postgrestStub.injectFaults (1, 429, Duration.ZERO, "1");
+        
+        long startNanos = System.nanoTime ();
+        
+        Assertions.assertEquals (1, postgrestWrapper.fetchList (Movie.class).size ());
+        Assertions.assertTrue (System.nanoTime () - startNanos >= Duration.ofSeconds (1).toNanos ());
+        
+        // The last response is returned once attempts run out, and other errors are not retried
+        this.postgrestStub.injectFaults (3, 503, Duration.ZERO, null);
+        
+        Assertions.assertEquals (503, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        
+        this.postgrestStub.injectFaults (1, 500, Duration.ZERO, null);
+        
+        Assertions.assertEquals (500, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        
+        // Failures to connect are retried with backoff
+        var unreachableMetrics = new PostgrestMetrics ();
+        
+        var httpResponse =
+            new PostgrestWrapperBuilder ("http://localhost:1/", "movies")
+                .retryPolicy (RetryPolicy.builder ().initialBackoff (Duration.ofMillis (10)).build ())
+                .metricsListener (unreachableMetrics)
+                .build ()
+                .getHttpResponse ();
+        
+        Assertions.assertEquals (500, httpResponse.getInt ("status_code"));
+        Assertions.assertEquals (2, unreachableMetrics.getEndpointMetrics ("movies", RequestMethod.GET).getRetries ());
+        Assertions.assertEquals (3, unreachableMetrics.getEndpointMetrics ("movies", RequestMethod.GET).getFailures ());
+        
+        // A failing listener neither fails the request nor misses its completion
+        AtomicInteger completedRequests = new AtomicInteger ();
+        
+        var failingListener =
+            new PostgrestMetricsListener ()
+            {
+                @Override
+                public void requestStarted (String resource, RequestMethod requestMethod)
+                {
+                    throw new IllegalStateException ("Listener failure");
+                }
+                
+                @Override
+                public void requestCompleted (PostgrestRequestMetrics requestMetrics)
+                {
+                    completedRequests.incrementAndGet ();
+                }
+            };
+        
+        httpResponse =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.60")
+                .metricsListener (failingListener)
+                .build ()
+                .getHttpResponse ();
+        
+        Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        Assertions.assertEquals (1, completedRequests.get ());
+    }
+    
+    @Test
+    void testHedgedRequests () throws InterruptedException
+    {
+        this.setToken ();
+        
+        var hedgingPolicy = new HedgingPolicy (95, Duration.ofMillis (100), 5);
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.60")
+                .hedgingPolicy (hedgingPolicy)
+                .build ();
+        
+        // Learn the usual latency
+        for (int idx = 0; idx < 5; idx++)
+        {
+            Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        }
+        
+        Assertions.assertEquals (0, hedgingPolicy.getHedgedRequests ());
+        
+        // The first request stalls, so the hedge request's response is used
+        this.postgrestStub.injectFaults (1, 0, Duration.ofSeconds (3), null);
+        
+        long startNanos = System.nanoTime ();
+        
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertTrue (System.nanoTime () - startNanos < Duration.ofSeconds (2).toNanos ());
+        Assertions.assertEquals (1, hedgingPolicy.getHedgedRequests ());
+        
+        // A latency spike is forgotten once later windows have enough latencies of their own
+        var windowedPolicy = new HedgingPolicy (95, Duration.ofMillis (10), 5, Duration.ofMillis (200));
+        
+        for (int idx = 0; idx < 5; idx++)
+        {
+            windowedPolicy.recordLatencyNanos (Duration.ofSeconds (1).toNanos ());
+        }
+        
+        Assertions.assertTrue (windowedPolicy.getHedgeDelayNanos () > Duration.ofMillis (500).toNanos ());
+        
+        Thread.sleep (250);
+        
+        // The previous window is used until the current one has enough latencies
+        Assertions.assertTrue (windowedPolicy.getHedgeDelayNanos () > Duration.ofMillis (500).toNanos ());
+        
+        for (int idx = 0; idx < 5; idx++)
+        {
+            windowedPolicy.recordLatencyNanos (Duration.ofMillis (1).toNanos ());
+        }
+        
+        Assertions.assertEquals (Duration.ofMillis (10).toNanos (), windowedPolicy.getHedgeDelayNanos ());
+    }
+    
+    @Test
+    void testConcurrencyLimits ()
+    {
+        this.setToken ();
+        
+        // A bulkhead of one with no queue sheds the second of two concurrent requests
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.60")
+                .bulkhead (ConcurrencyLimiter.fixed (1, 0, Duration.ZERO))
+                .build ();
+        
+        this.postgrestStub.injectFaults (1, 0, Duration.ofMillis (500), null);
+        
+        var firstResponse = postgrestWrapper.getHttpResponseAsync ();
+        var secondResponse = postgrestWrapper.getHttpResponseAsync ();
+        
+        Assertions.assertEquals (200, firstResponse.join ().getInt ("status_code"));
+        Assertions.assertEquals (503, secondResponse.join ().getInt ("status_code"));
+        Assertions.assertEquals (1, postgrestWrapper.getBulkhead ().getRejectedRequests ());
+        Assertions.assertEquals (0, postgrestWrapper.getBulkhead ().getInFlightRequests ());
+        
+        // With a queue, the second request waits for the first to complete
+        postgrestWrapper.setBulkhead (ConcurrencyLimiter.fixed (1, 10, Duration.ofSeconds (5)));
+        
+        this.postgrestStub.injectFaults (1, 0, Duration.ofMillis (500), null);
+        
+        firstResponse = postgrestWrapper.getHttpResponseAsync ();
+        secondResponse = postgrestWrapper.getHttpResponseAsync ();
+        
+        Assertions.assertEquals (200, firstResponse.join ().getInt ("status_code"));
+        Assertions.assertEquals (200, secondResponse.join ().getInt ("status_code"));
+        Assertions.assertEquals (0, postgrestWrapper.getBulkhead ().getRejectedRequests ());
+        
+        // The adaptive limit is cut by 10% for each throttled response
+        var concurrencyLimiter = new ConcurrencyLimiter (10, 1, 20, 0, Duration.ZERO);
+        
+        postgrestWrapper.setBulkhead (null);
+        postgrestWrapper.setConcurrencyLimiter (concurrencyLimiter);
+        
+        this.postgrestStub.injectFaults (3, 503, Duration.ZERO, null);
+        
+        for (int idx = 0; idx < 3; idx++)
+        {
+            Assertions.assertEquals (503, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        }
+        
+        Assertions.assertEquals (7, concurrencyLimiter.getLimit ());
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertEquals (0, concurrencyLimiter.getInFlightRequests ());
+        
+        // A burst of throttled responses to requests sent together cuts the limit once, not once per response
+        var burstLimiter = new ConcurrencyLimiter (20, 1, 20, 0, Duration.ZERO);
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<> ();
+        
+        for (int idx = 0; idx < 10; idx++)
+        {
+            permits.add (burstLimiter.acquire ().join ());
+        }
+        
+        permits.forEach (permit -> permit.release (503, null));
+        
+        Assertions.assertEquals (18, burstLimiter.getLimit ());
+        
+        burstLimiter.acquire ().join ().release (503, null);
+        
+        Assertions.assertEquals (16, burstLimiter.getLimit ());
+    }
+    
+    @Test
+    void testCircuitBreaker () throws InterruptedException
+    {
+        this.setToken ();
+        
+        // Breakers are shared per base URL, and optionally per resource
+        var circuitBreakerRegistry = CircuitBreakerRegistry.getInstance ();
+        
+        Assertions.assertSame (circuitBreakerRegistry.getCircuitBreaker ("http://localhost:8001"), circuitBreakerRegistry.getCircuitBreaker ("http://localhost:8001/"));
+        Assertions.assertNotSame (circuitBreakerRegistry.getCircuitBreaker ("http://localhost:8001/"), circuitBreakerRegistry.getCircuitBreaker ("http://localhost:8001/", "movies"));
+        
+        // Opens once all of the last 4 requests have failed, and probes again after 300ms
+        var circuitBreaker = new CircuitBreaker (1.0, 4, 4, Duration.ofMillis (300), 1, Set.of (503));
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.60")
+                .circuitBreaker (circuitBreaker)
+                .build ();
+        
+        this.postgrestStub.injectFaults (4, 503, Duration.ZERO, null);
+        
+        for (int idx = 0; idx < 4; idx++)
+        {
+            Assertions.assertEquals (503, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        }
+        
+        Assertions.assertEquals (CircuitBreaker.State.OPEN, circuitBreaker.getState ());
+        
+        // Fails fast without reaching the stub
+        var httpResponse = postgrestWrapper.getHttpResponse ();
+        
+        Assertions.assertEquals (503, httpResponse.getInt ("status_code"));
+        Assertions.assertTrue (httpResponse.getJSONObject ("body").getString ("message").startsWith ("Circuit breaker open"));
+        Assertions.assertEquals (1, circuitBreaker.getRejectedRequests ());
+        
+        // A successful probe closes the breaker again
+        Thread.sleep (400);
+        
+        Assertions.assertEquals (CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState ());
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertEquals (CircuitBreaker.State.CLOSED, circuitBreaker.getState ());
+        Assertions.assertEquals (1, circuitBreaker.getTimesOpened ());
+        
+        // Late outcomes of requests admitted while closed are not taken for the outcome of the probe
+        var lateBreaker = new CircuitBreaker (0.5, 2, 2, Duration.ofMillis (100), 1, Set.of (503));
+        
+        long slowRequest = lateBreaker.tryAcquire ();
+        
+        lateBreaker.recordResult (lateBreaker.tryAcquire (), 503, null);
+        lateBreaker.recordResult (lateBreaker.tryAcquire (), 503, null);
+        
+        Assertions.assertEquals (CircuitBreaker.State.OPEN, lateBreaker.getState ());
+        
+        Thread.sleep (150);
+        
+        long probe = lateBreaker.tryAcquire ();
+        
+        Assertions.assertTrue (probe >= 0);
+        
+        lateBreaker.recordResult (slowRequest, 200, null);
+        lateBreaker.recordNotSent (slowRequest);
+        
+        Assertions.assertEquals (CircuitBreaker.State.HALF_OPEN, lateBreaker.getState ());
+        Assertions.assertEquals (-1, lateBreaker.tryAcquire ());
+        
+        lateBreaker.recordResult (probe, 200, null);
+        
+        Assertions.assertEquals (CircuitBreaker.State.CLOSED, lateBreaker.getState ());
+    }
+    
+    @Test
+    void testQueryBuilder ()
+    {
+        this.setToken ();
+        
+        // Compiles to the same query string as testQuerying, with the same results
+        var query = new PostgrestQuery ().gt ("running_mins", 150).order ("running_mins", false);
+        
+        Assertions.assertEquals ("running_mins=gt.150&order=running_mins.desc", query.toQueryString ());
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .query (query)
+                .build ();
+        
+        var httpResponse = postgrestWrapper.getHttpResponse ();
+        
+        Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        Assertions.assertEquals (3, httpResponse.getJSONArray ("body").length ());
+        Assertions.assertEquals (80, httpResponse.getJSONArray ("body").getJSONObject (0).getInt ("id"));
+        
+        // Values are encoded, and quoted where PostgREST requires it within groups and lists
+        Assertions.assertEquals
+            (   "select=id,title&title=like.*Ring%2C%20The&id=in.(10,%22a%2Cb%22)&or=(running_mins.lt.90,and(id.gte.100,title.is.null))&limit=5&offset=10",
+                new PostgrestQuery ()
+                    .select ("id", "title")
+                    .like ("title", "*Ring, The")
+                    .in ("id", 10, "a,b")
+                    .or (group -> group.lt ("running_mins", 90).and (nested -> nested.gte ("id", 100).is ("title", null)))
+                    .limit (5)
+                    .offset (10)
+                    .toQueryString ()
+            );
+        
+        // Columns are encoded within groups as they are at the top level
+        Assertions.assertEquals
+            (   "or=(data-%3E%3En%C3%A9.eq.1,pct%25.eq.2,a%2Bb.eq.3)",
+                new PostgrestQuery ()
+                    .or (group -> group.eq ("data->>n\u00e9", 1).eq ("pct%", 2).eq ("a+b", 3))
+                    .toQueryString ()
+            );
+        
+        Assertions.assertThrows (IllegalArgumentException.class, () -> new PostgrestQuery ().eq ("id&x", 1));
+        Assertions.assertThrows (IllegalArgumentException.class, () -> new PostgrestQuery ().eq ("id", null));
+        
+        // A compiled query with parameters is bound on each use
+        var compiledQuery = new PostgrestQuery ().eq ("title", PostgrestQuery.param ("title")).compile ();
+        
+        Assertions.assertEquals (List.of ("title"), compiledQuery.getParameterNames ());
+        Assertions.assertThrows (IllegalStateException.class, compiledQuery::getQueryString);
+        
+        httpResponse = postgrestWrapper.withQuery (compiledQuery, "Lord of the Rings: The Fellowship of the Ring, The").getHttpResponse ();
+        
+        Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        Assertions.assertEquals (110, httpResponse.getJSONArray ("body").getJSONObject (0).getInt ("id"));
+        
+        httpResponse = postgrestWrapper.withQuery (compiledQuery, "Dune: Part Two").getHttpResponse ();
+        
+        Assertions.assertEquals (20, httpResponse.getJSONArray ("body").getJSONObject (0).getInt ("id"));
+    }
+    
+    @Test
+    void testProjection ()
+    {
+        this.setToken ();
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=eq.20")
+                .build ();
+        
+        var fullResponse = postgrestWrapper.getHttpResponse ();
+        
+        // Only the selected columns are returned, under their aliases
+        postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .select ("id", PostgrestQuery.alias ("name", "title"))
+                .queryString ("id=eq.20")
+                .build ();
+        
+        Assertions.assertEquals ("select=id,name:title", postgrestWrapper.getRequestTemplate ().getSelectParameter ());
+        
+        var httpResponse = postgrestWrapper.getHttpResponse ();
+        
+        Assertions.assertEquals (200, httpResponse.getInt ("status_code"));
+        Assertions.assertTrue (new JSONArray ("[{\"id\":20,\"name\":\"Dune: Part Two\"}]").similar (httpResponse.get ("body")));
+        Assertions.assertTrue (httpResponse.getJSONArray ("body").toString ().length () < fullResponse.getJSONArray ("body").toString ().length ());
+        
+        // Copies, e.g. pages, keep the projection
+        httpResponse = postgrestWrapper.withQuery (new PostgrestQuery ().eq ("id", 30).compile ()).getHttpResponse ();
+        
+        Assertions.assertEquals ("Twelve Monkeys", httpResponse.getJSONArray ("body").getJSONObject (0).getString ("name"));
+        
+        // Embedding and unknown columns are rejected by the stub, as movies has no related resources
+        Assertions.assertEquals ("directors(name)", PostgrestQuery.embed ("directors", "name"));
+        
+        postgrestWrapper.setSelect (PostgrestQuery.selectList ("id", PostgrestQuery.embed ("directors")));
+        
+        Assertions.assertEquals (400, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        
+        postgrestWrapper.setSelect ("rating");
+        
+        Assertions.assertEquals (400, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertThrows (IllegalArgumentException.class, () -> PostgrestQuery.selectList ("id&limit=1"));
+        
+        // JSON paths, quoted columns and percent signs are encoded, so they reach the upstream intact
+        Assertions.assertEquals
+            (   "select=id,data-%3E%3Ename,%22Title%22,name:pct%25",
+                new PostgrestQuery ().select ("id", "data->>name", "\"Title\"", PostgrestQuery.alias ("name", "pct%")).toQueryString ()
+            );
+        
+        postgrestWrapper.setSelect (PostgrestQuery.selectList ("id", "data->>name"));
+        
+        Assertions.assertEquals (400, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+    }
+    
+    @Test
+    void testKeysetPagination ()
+    {
+        this.setToken ();
+        
+        // Restricted to the original movies, in case other tests have seeded more
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=lte.150&running_mins=gt.120")
+                .build ();
+        
+        var expectedIds = List.of (10, 20, 30, 40, 70, 80, 90, 100, 110, 120, 140, 150);
+        
+        // Pages of 4 end with an empty page, pages of 5 with a short page - with and without prefetch
+        for (var keysetPaginator : List.of (new PostgrestKeysetPaginator (postgrestWrapper, "id", 4), new PostgrestKeysetPaginator (postgrestWrapper, "id", "id", 5, true, false)))
+        {
+            List<Integer> ids = new ArrayList<> ();
+            
+            keysetPaginator.forEach (row -> ids.add (row.getInt ("id")));
+            
+            Assertions.assertEquals (expectedIds, ids);
+        }
+        
+        // Descending order pages with lt instead of gt
+        List<Integer> ids = new ArrayList<> ();
+        
+        new PostgrestKeysetPaginator (postgrestWrapper, "id", "id", 5, false, true).forEach (row -> ids.add (row.getInt ("id")));
+        
+        Assertions.assertEquals (List.of (150, 140, 120, 110, 100, 90, 80, 70, 40, 30, 20, 10), ids);
+        
+        // Pages do not ask for a count, even though the wrapper does
+        Assertions.assertTrue (postgrestWrapper.buildHttpRequest ().headers ().firstValue ("Prefer").orElse ("").contains ("count=exact"));
+        
+        for (String prefer : new PostgrestKeysetPaginator (postgrestWrapper, "id", 5).getPageWrapper (40).buildHttpRequest ().headers ().allValues ("Prefer"))
+        {
+            Assertions.assertFalse (prefer.contains ("count="));
+        }
+        
+        // Errors are thrown from the iterator
+        postgrestWrapper.setQueryString ("order=rating.desc");
+        
+        var iterator = new PostgrestKeysetPaginator (postgrestWrapper, "id", 5).iterator ();
+        
+        Assertions.assertEquals (400, Assertions.assertThrows (PostgrestResponseException.class, iterator::hasNext).getStatusCode ());
+    }
+    
+    @Test
+    void testCountStrategies ()
+    {
+        this.setToken ();
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=lte.150&running_mins=gt.120&limit=5")
+                .build ();
+        
+        Assertions.assertEquals (12, postgrestWrapper.getHttpResponse ().getInt ("record_count"));
+        
+        // Without a count, the total is fetched only when asked for, and cached
+        postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=lte.150&running_mins=gt.120&limit=5")
+                .countStrategy (CountStrategy.NONE)
+                .countCache (new PostgrestCountCache (100, Duration.ofSeconds (5)))
+                .build ();
+        
+        Assertions.assertFalse (postgrestWrapper.getRequestTemplate ().getHeaders ().get ("Prefer").contains ("count="));
+        
+        var httpResponse = postgrestWrapper.getHttpResponse ();
+        
+        Assertions.assertEquals (5, httpResponse.getJSONArray ("body").length ());
+        Assertions.assertEquals (0, httpResponse.getInt ("record_count"));
+        
+        Assertions.assertEquals (12, postgrestWrapper.fetchCount ());
+        Assertions.assertEquals (12, postgrestWrapper.fetchCount ());
+        Assertions.assertEquals (1, postgrestWrapper.getCountCache ().getHits ());
+        Assertions.assertEquals (1, postgrestWrapper.getCountCache ().getMisses ());
+        
+        // Planned counts are the stub's table estimate, ignoring filters; estimated counts are exact for small tables
+        long plannedCount = postgrestWrapper.fetchCountAsync (CountStrategy.PLANNED).join ();
+        long estimatedCount = postgrestWrapper.fetchCountAsync (CountStrategy.ESTIMATED).join ();
+        
+        Assertions.assertTrue (plannedCount >= 15);
+        Assertions.assertTrue (estimatedCount == 12 || estimatedCount == plannedCount);
+        
+        postgrestWrapper.setQueryString ("order=rating.desc");
+        
+        Assertions.assertEquals (400, Assertions.assertThrows (PostgrestResponseException.class, postgrestWrapper::fetchCount).getStatusCode ());
+    }
+    
+    @Test
+    void testBatches ()
+    {
+        this.setToken ();
+        
+        List<PostgrestWrapper> postgrestWrappers = new ArrayList<> ();
+        
+        for (int id = 10; id <= 100; id += 10)
+        {
+            postgrestWrappers.add
+                (   new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                        .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                        .queryString ("id=eq." + id)
+                        .build ()
+                );
+        }
+        
+        // Responses are returned in order
+        var batchResponse = new PostgrestBatch (4, Duration.ofSeconds (5)).execute (postgrestWrappers);
+        
+        Assertions.assertEquals (200, batchResponse.getInt ("status_code"));
+        Assertions.assertEquals (10, batchResponse.getJSONArray ("responses").length ());
+        
+        for (int idx = 0; idx < 10; idx++)
+        {
+            Assertions.assertEquals ((idx + 1) * 10, batchResponse.getJSONArray ("responses").getJSONObject (idx).getJSONArray ("body").getJSONObject (0).getInt ("id"));
+        }
+        
+        // A slow request times out and a failing one errors, without failing the rest of the batch
+        postgrestWrappers.get (3).setQueryString ("order=rating.desc");
+        
+        this.postgrestStub.injectFaults (1, 0, Duration.ofSeconds (2), null);
+        
+        List<Integer> completedIndexes = new ArrayList<> ();
+        long startNanos = System.nanoTime ();
+        
+        batchResponse =
+            new PostgrestBatch (1, Duration.ofMillis (500))
+                .forEachCompleted
+                    (   postgrestWrappers,
+                        (index, apiResponse) ->
+                        {
+                            completedIndexes.add (index);
+                            
+                            if (index == 0)
+                            {
+                                Assertions.assertEquals (504, apiResponse.getInt ("status_code"));
+                            }
+                        }
+                    );
+        
+        Assertions.assertEquals (207, batchResponse.getInt ("status_code"));
+        Assertions.assertTrue (new JSONArray ("[0, 3]").similar (batchResponse.getJSONArray ("failed")));
+        Assertions.assertEquals (List.of (0, 1, 2, 3, 4, 5, 6, 7, 8, 9), completedIndexes);
+        
+        // The timed out request kept its slot until it completed, so no other request was in flight alongside it
+        Assertions.assertTrue (System.nanoTime () - startNanos >= Duration.ofMillis (1900).toNanos ());
+        
+        // Requests that complete at once, from a response cache, are started in a loop rather than recursively
+        var responseCache = new PostgrestResponseCache (10, 1024 * 1024, Duration.ofMinutes (1));
+        
+        postgrestWrappers.get (0).setResponseCache (responseCache);
+        postgrestWrappers.get (0).getHttpResponse ();
+        
+        List<PostgrestWrapper> cachedWrappers = new ArrayList<> ();
+        
+        for (int idx = 0; idx < 20000; idx++)
+        {
+            cachedWrappers.add (postgrestWrappers.get (0));
+        }
+        
+        batchResponse = new PostgrestBatch (4, null).execute (cachedWrappers);
+        
+        Assertions.assertEquals (200, batchResponse.getInt ("status_code"));
+        Assertions.assertEquals (20000, batchResponse.getInt ("requests"));
+    }
+    
+    @Test
+    void testExecutor ()
+    {
+        // Counts the tasks run on the virtual thread executor
+        var executedTasks = new AtomicInteger ();
+        Executor executor =
+            task ->
+            {
+                executedTasks.incrementAndGet ();
+                HttpClientSettings.getVirtualThreadExecutor ().execute (task);
+            };
+        
+        var authResponse = PostgrestWrapper.authenticateUser ("http://localhost:8001/", "rpc/f_login", "user@email.com", "password", executor);
+        
+        Assertions.assertTrue (authResponse.getBoolean ("succeeded"));
+        Assertions.assertTrue (executedTasks.get () > 0);
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + authResponse.getJSONObject ("body").getString ("authToken")))
+                .queryString ("id=eq.60")
+                .executor (executor)
+                .retryPolicy (RetryPolicy.builder ().initialBackoff (Duration.ofMillis (10)).build ())
+                .build ();
+        
+        // The client for the executor is shared, and distinct from the default client
+        Assertions.assertSame (executor, postgrestWrapper.getUpstreamHttpClient ().executor ().orElse (null));
+        Assertions.assertSame (postgrestWrapper.getUpstreamHttpClient (), postgrestWrapper.copyWithQueryString ("id=eq.70").getUpstreamHttpClient ());
+        Assertions.assertNotSame (HttpClientRegistry.getInstance ().getDefaultHttpClient (), postgrestWrapper.getUpstreamHttpClient ());
+        
+        // Retries are timed on the executor too
+        this.postgrestStub.injectFaults (1, 503, Duration.ZERO, null);
+        
+        int tasksBefore = executedTasks.get ();
+        
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertTrue (executedTasks.get () > tasksBefore);
+        
+        // Many concurrent blocking callers - on virtual threads where there are any, otherwise on threads of
+        // their own, as blocking callers on the bounded fallback pool would leave no threads for the wrapper
+        boolean virtualThreads = (Runtime.version ().feature () >= 21);
+        ExecutorService callerExecutor = (virtualThreads ? HttpClientSettings.getVirtualThreadExecutor () : Executors.newFixedThreadPool (50));
+        List<CompletableFuture<JSONObject>> apiResponses = new ArrayList<> ();
+        
+        for (int idx = 0; idx < 50; idx++)
+        {
+            apiResponses.add (CompletableFuture.supplyAsync (postgrestWrapper::getHttpResponse, callerExecutor));
+        }
+        
+        for (var apiResponse : apiResponses)
+        {
+            Assertions.assertEquals (200, apiResponse.join ().getInt ("status_code"));
+        }
+        
+        if (!virtualThreads)
+        {
+            callerExecutor.shutdown ();
+            
+            // The fallback for virtual threads is bounded
+            Assertions.assertEquals
+                (   HttpClientSettings.FALLBACK_THREADS,
+                    ((ThreadPoolExecutor) HttpClientSettings.getVirtualThreadExecutor ()).getMaximumPoolSize ()
+                );
+        }
+        
+        // Clients created for an executor are kept until it is unregistered
+        HttpClient executorHttpClient = postgrestWrapper.getUpstreamHttpClient ();
+        
+        HttpClientRegistry.getInstance ().unregister (executor);
+        
+        Assertions.assertNotSame (executorHttpClient, postgrestWrapper.getUpstreamHttpClient ());
+        
+        HttpClientRegistry.getInstance ().unregister (executor);
+    }
+    
+    @Test
+    void testAuthenticationThrottle ()
+    {
+        // Off unless set
+        Assertions.assertNull (PostgrestWrapper.getAuthenticationThrottle ());
+        
+        var authenticationThrottle = new AuthenticationThrottle (2, Duration.ofMinutes (1), 4096);
+        
+        PostgrestWrapper.setAuthenticationThrottle (authenticationThrottle);
+        
+        try
+        {
+            // Two failed logins use up the email's allowance, with the delay still applied to each
+            for (int attempt = 0; attempt < 2; attempt++)
+            {
+                var authResponse =
+                    PostgrestWrapper
+                        .authenticateUserAsync ("http://localhost:8001/", "rpc/f_login", "intruder@email.com", "guess" + attempt, "10.0.0.1", null)
+                        .join ();
+                
+                Assertions.assertEquals (401, authResponse.getInt ("status_code"));
+                Assertions.assertFalse (authResponse.getBoolean ("succeeded"));
+            }
+            
+            // Further logins for the email, or from the client address, are refused without a request being sent
+            long startNanos = System.nanoTime ();
+            
+            var throttledResponse =
+                PostgrestWrapper
+                    .authenticateUserAsync ("http://localhost:8001/", "rpc/f_login", "INTRUDER@email.com", "password", null, null)
+                    .join ();
+            
+            Assertions.assertEquals (429, throttledResponse.getInt ("status_code"));
+            Assertions.assertFalse (throttledResponse.getBoolean ("succeeded"));
+            Assertions.assertTrue (throttledResponse.getLong ("retry_after_s") > 0);
+            Assertions.assertTrue (System.nanoTime () - startNanos < 500_000_000L);
+            
+            Assertions.assertEquals
+                (   429,
+                    PostgrestWrapper
+                        .authenticateUserAsync ("http://localhost:8001/", "rpc/f_login", "user@email.com", "password", "10.0.0.1", null)
+                        .join ()
+                        .getInt ("status_code")
+                );
+            
+            // Other users are unaffected
+            var authResponse = PostgrestWrapper.authenticateUser ("http://localhost:8001/", "rpc/f_login", "user@email.com", "password");
+            
+            Assertions.assertTrue (authResponse.getBoolean ("succeeded"));
+            
+            // A token manager's logins are not throttled, so a flood of bad logins cannot stop its refreshes
+            authenticationThrottle.recordFailure ("user@email.com", null);
+            authenticationThrottle.recordFailure ("user@email.com", null);
+            
+            Assertions.assertEquals (429, PostgrestWrapper.authenticateUserAsync ("http://localhost:8001/", "rpc/f_login", "user@email.com", "password", null, null).join ().getInt ("status_code"));
+            
+            var jwtTokenManager = new JwtTokenManager ("http://localhost:8001/", "rpc/f_login", "authToken", Duration.ofMinutes (1), Duration.ofHours (1));
+            
+            jwtTokenManager.register ("user@email.com", "password");
+            
+            Assertions.assertEquals ("Pd1WuMdnkuZ4pXZZGyhCTsT0Y0K4Ql", jwtTokenManager.getToken ("user@email.com"));
+        }
+        finally
+        {
+            PostgrestWrapper.setAuthenticationThrottle (null);
+        }
+        
+        // Each key is counted in several stripes, so sharing a stripe with a throttled key does not throttle a user
+        var throttle = new AuthenticationThrottle (1, Duration.ofMinutes (1), 4096);
+        
+        for (int index = 0; index < 20; index++)
+        {
+            throttle.recordFailure ("intruder" + index + "@email.com", null);
+        }
+        
+        Assertions.assertTrue (throttle.getRetryAfter ("intruder0@email.com", null).toSeconds () > 0);
+        Assertions.assertTrue (throttle.getStatistics ().getInt ("throttled_email_stripes") <= 60);
+        Assertions.assertEquals (0, throttle.getStatistics ().getInt ("throttled_client_stripes"));
+        
+        for (int index = 0; index < 100; index++)
+        {
+            Assertions.assertEquals (Duration.ZERO, throttle.getRetryAfter ("user" + index + "@email.com", "intruder" + index + "@email.com"));
+        }
+    }
+    
+    @Test
+    void testJwtTokenManager () throws InterruptedException
+    {
+        // Expiry is read from the exp claim of a JWT
+        String payload = Base64.getUrlEncoder ().withoutPadding ().encodeToString ("{\"exp\":2000000000}".getBytes ());
+        
+        Assertions.assertEquals (2000000000L, JwtTokenManager.getExpiryEpochSeconds ("e30." + payload + ".signature"));
+        Assertions.assertEquals (-1, JwtTokenManager.getExpiryEpochSeconds ("not-a-jwt"));
+        
+        // The stub's token is not a JWT, so it lasts for the default lifetime
+        var jwtTokenManager = new JwtTokenManager ("http://localhost:8001/", "rpc/f_login", "authToken", Duration.ofMillis (1500), Duration.ofSeconds (2));
+        
+        jwtTokenManager.register ("user@email.com", "password");
+        
+        // Concurrent requests for a token share a single login
+        List<CompletableFuture<String>> futureTokens = new ArrayList<> ();
+        
+        for (int request = 0; request < 10; request++)
+        {
+            futureTokens.add (jwtTokenManager.getTokenAsync ("user@email.com"));
+        }
+        
+        for (CompletableFuture<String> futureToken : futureTokens)
+        {
+            Assertions.assertEquals ("Pd1WuMdnkuZ4pXZZGyhCTsT0Y0K4Ql", futureToken.join ());
+        }
+        
+        Assertions.assertEquals (1, jwtTokenManager.getLogins ());
+        
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .jwtTokenManager (jwtTokenManager, "user@email.com")
+                .queryString ("id=eq.60")
+                .build ();
+        
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        Assertions.assertEquals (1, jwtTokenManager.getLogins ());
+        
+        // The token is refreshed in the background ahead of its expiry, as it has been used
+        for (int wait = 0; wait < 40 && jwtTokenManager.getLogins () < 2; wait++)
+        {
+            Thread.sleep (100);
+        }
+        
+        Assertions.assertEquals (2, jwtTokenManager.getLogins ());
+        Assertions.assertEquals (200, postgrestWrapper.getHttpResponse ().getInt ("status_code"));
+        
+        // Counts, typed and streamed results, and bulk writes are authorised with the cached token too
+        Assertions.assertEquals (1, postgrestWrapper.fetchCountAsync (CountStrategy.EXACT).join ());
+        Assertions.assertEquals (1, postgrestWrapper.fetchList (Movie.class).size ());
+        Assertions.assertEquals (1, postgrestWrapper.streamRows (row -> {}).getInt ("rows_streamed"));
+        
+        var writeResult =
+            new PostgrestBulkWriter
+                (   new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                        .jwtTokenManager (jwtTokenManager, "user@email.com")
+                        .requestMethod (RequestMethod.POST)
+                        .commitTransaction (false)
+                        .build ()
+                )
+                .write (List.of (new JSONObject ().put ("id", 1001).put ("title", "Bulk Movie #1001").put ("running_mins", 90)));
+        
+        Assertions.assertEquals (201, writeResult.getInt ("status_code"));
+        Assertions.assertEquals (2, jwtTokenManager.getLogins ());
+        
+        // Unknown principals are reported rather than sent unauthorised
+        Assertions.assertThrows (IllegalArgumentException.class, () -> jwtTokenManager.getToken ("nobody@email.com"));
+        
+        // Tokens living no longer than refreshAhead are refreshed half way through, not on every request - the
+        // stub does not accept them, so each rejected token is discarded and the next request logs in again
+        var shortLivedTokenManager = new JwtTokenManager ("http://localhost:8001/", "rpc/f_login", "shortLivedToken", Duration.ofMinutes (1), Duration.ofHours (1));
+        
+        shortLivedTokenManager.register ("user@email.com", "password");
+        
+        String shortLivedToken = shortLivedTokenManager.getToken ("user@email.com");
+        
+        for (int request = 0; request < 10; request++)
+        {
+            Assertions.assertEquals (shortLivedToken, shortLivedTokenManager.getToken ("user@email.com"));
+        }
+        
+        Assertions.assertEquals (1, shortLivedTokenManager.getLogins ());
+        
+        var rejectedWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .jwtTokenManager (shortLivedTokenManager, "user@email.com")
+                .build ();
+        
+        var countException = Assertions.assertThrows (PostgrestResponseException.class, rejectedWrapper::fetchCount);
+        
+        Assertions.assertEquals (401, countException.getStatusCode ());
+        Assertions.assertEquals (401, Assertions.assertThrows (PostgrestResponseException.class, () -> rejectedWrapper.fetchList (Movie.class)).getStatusCode ());
+        Assertions.assertEquals (401, rejectedWrapper.streamRows (row -> {}).getInt ("status_code"));
+        Assertions.assertEquals (3, shortLivedTokenManager.getLogins ());
+        
+        shortLivedTokenManager.getToken ("user@email.com");
+        
+        Assertions.assertEquals (4, shortLivedTokenManager.getLogins ());
+        
+        // A login returning a token that has already expired fails
+        var expiredTokenManager = new JwtTokenManager ("http://localhost:8001/", "rpc/f_login", "expiredToken", Duration.ofMinutes (1), Duration.ofHours (1));
+        
+        expiredTokenManager.register ("user@email.com", "password");
+        
+        var loginException = Assertions.assertThrows (PostgrestResponseException.class, () -> expiredTokenManager.getToken ("user@email.com"));
+        
+        Assertions.assertEquals (502, loginException.getStatusCode ());
+        Assertions.assertEquals (0, expiredTokenManager.getLogins ());
+        Assertions.assertEquals (1, expiredTokenManager.getFailedLogins ());
+    }
+    
+    @Test
+    void testBulkWriter ()
+    {
+        setToken ();
+        
+        // Written with tx=rollback, so that the stub's movies are left as they were
+        var postgrestWrapper =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .requestMethod (RequestMethod.POST)
+                .commitTransaction (false)
+                .build ();
+        
+        List<JSONObject> movies = new ArrayList<> ();
+        
+        for (int id = 1001; id <= 1025; id++)
+        {
+            movies.add (new JSONObject ().put ("id", id).put ("title", "Bulk Movie #" + id).put ("running_mins", 90));
+        }
+        
+        // Chunked by rows
+        var writeResult =
+            new PostgrestBulkWriter (postgrestWrapper)
+                .maxChunkRows (10)
+                .returnRepresentation (true)
+                .write (movies);
+        
+        Assertions.assertEquals (201, writeResult.getInt ("status_code"));
+        Assertions.assertEquals (25, writeResult.getInt ("rows_written"));
+        Assertions.assertEquals (3, writeResult.getJSONArray ("chunks").length ());
+        
+        for (int chunk = 0; chunk < 3; chunk++)
+        {
+            var chunkResult = writeResult.getJSONArray ("chunks").getJSONObject (chunk);
+            
+            Assertions.assertEquals (chunk < 2 ? 10 : 5, chunkResult.getInt ("rows"));
+            Assertions.assertEquals (chunkResult.getInt ("rows"), chunkResult.getJSONArray ("body").length ());
+        }
+        
+        // Chunked by bytes
+        writeResult =
+            new PostgrestBulkWriter (postgrestWrapper)
+                .maxChunkBytes (200)
+                .returnRepresentation (true)
+                .write (movies.stream ());
+        
+        Assertions.assertEquals (25, writeResult.getInt ("rows_written"));
+        Assertions.assertTrue (writeResult.getJSONArray ("chunks").length () > 3);
+        
+        for (var chunkResult : writeResult.getJSONArray ("chunks"))
+        {
+            Assertions.assertTrue (((JSONObject) chunkResult).getJSONArray ("body").toString ().length () <= 200);
+        }
+        
+        // A chunk with an existing id fails on its own, without stopping later chunks
+        List<JSONObject> conflictingMovies =
+            List.of
+                (   movies.get (0),
+                    movies.get (1),
+                    new JSONObject ().put ("id", 10).put ("title", "Terminator 2: Judgment Day").put ("running_mins", 137),
+                    movies.get (2),
+                    movies.get (3)
+                );
+        
+        writeResult =
+            new PostgrestBulkWriter (postgrestWrapper)
+                .maxChunkRows (2)
+                .write (conflictingMovies);
+        
+        Assertions.assertEquals (409, writeResult.getInt ("status_code"));
+        Assertions.assertEquals (3, writeResult.getInt ("rows_written"));
+        Assertions.assertEquals (409, writeResult.getJSONArray ("chunks").getJSONObject (1).getInt ("status_code"));
+        Assertions.assertEquals (201, writeResult.getJSONArray ("chunks").getJSONObject (2).getInt ("status_code"));
+        
+        // Upserts merge into the existing row instead
+        writeResult =
+            new PostgrestBulkWriter (postgrestWrapper)
+                .maxChunkRows (2)
+                .upsert ("id")
+                .write (conflictingMovies);
+        
+        Assertions.assertEquals (201, writeResult.getInt ("status_code"));
+        Assertions.assertEquals (5, writeResult.getInt ("rows_written"));
+        
+        // Nothing was committed
+        var httpResponse =
+            new PostgrestWrapperBuilder ("http://localhost:8001/", "movies")
+                .header (Map.entry ("Authorization", "Bearer " + this.authToken))
+                .queryString ("id=gt.1000")
+                .build ()
+                .getHttpResponse ();
+        
+        Assertions.assertEquals (0, httpResponse.getJSONArray ("body").length ());
+        
+        var bulkWriter = new PostgrestBulkWriter (postgrestWrapper);
+        
+        Assertions.assertThrows (IllegalArgumentException.class, () -> bulkWriter.maxConcurrency (0));
+        Assertions.assertThrows (IllegalArgumentException.class, () -> bulkWriter.maxChunkRows (-1));
+    }
+    
     @AfterAll
     void testsTeardown ()
     {